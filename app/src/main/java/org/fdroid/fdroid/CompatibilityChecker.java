@@ -13,10 +13,14 @@ import org.fdroid.fdroid.compat.SupportedArchitectures;
 import org.fdroid.fdroid.data.Apk;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 // Call getIncompatibleReasons(apk) on an instance of this class to
 // find reasons why an apk may be incompatible with the user's device.
@@ -30,6 +34,17 @@ public class CompatibilityChecker {
     private final String cpuAbisDesc;
     private final boolean ignoreTouchscreen;
 
+    /**
+     * Most apks in a repo share the same handful of (minSdk, maxSdk, features, nativecode)
+     * combinations, so the reasons for each combination are worked out once and then shared by
+     * every checker, until the index update they are used for is over (see {@link #clearCache()})
+     * or the device features, the ignore touchscreen preference or the locale (the reasons are
+     * translated) change.
+     */
+    private static Verdicts verdicts;
+
+    private final Map<VerdictKey, String[]> cachedReasons;
+
     public CompatibilityChecker(Context ctx) {
 
         context = ctx.getApplicationContext();
@@ -69,6 +84,25 @@ public class CompatibilityChecker {
             builder.append(abi);
         }
         cpuAbisDesc = builder.toString();
+
+        cachedReasons = getVerdicts(features, ignoreTouchscreen, Locale.getDefault()).reasons;
+    }
+
+    private static synchronized Verdicts getVerdicts(Set<String> features, boolean ignoreTouchscreen, Locale locale) {
+        if (verdicts == null || !verdicts.features.equals(features)
+                || verdicts.ignoreTouchscreen != ignoreTouchscreen || !verdicts.locale.equals(locale)) {
+            Utils.debugLog(TAG, "Device features, touchscreen preference or locale changed, forgetting cached verdicts");
+            verdicts = new Verdicts(features, ignoreTouchscreen, locale);
+        }
+        return verdicts;
+    }
+
+    /**
+     * Forgets the reasons worked out so far, once the index update which needed them has been
+     * committed or thrown away, so that they don't stay in memory until the next one.
+     */
+    public static synchronized void clearCache() {
+        verdicts = null;
     }
 
     private boolean compatibleApi(@Nullable String[] nativecode) {
@@ -87,6 +121,21 @@ public class CompatibilityChecker {
     }
 
     public List<String> getIncompatibleReasons(final Apk apk) {
+        VerdictKey key = new VerdictKey(apk);
+        String[] reasons = cachedReasons.get(key);
+        if (reasons == null) {
+            List<String> incompatibleReasons = calcIncompatibleReasons(apk, key);
+            reasons = incompatibleReasons.toArray(new String[incompatibleReasons.size()]);
+            cachedReasons.put(key, reasons);
+        }
+        return new ArrayList<>(Arrays.asList(reasons));
+    }
+
+    /**
+     * Uses the features and native code of {@code key}, which are sorted, so that the reasons
+     * don't depend on which of the apks sharing them happened to be checked first.
+     */
+    private List<String> calcIncompatibleReasons(final Apk apk, VerdictKey key) {
 
         List<String> incompatibleReasons = new ArrayList<>();
 
@@ -100,8 +149,8 @@ public class CompatibilityChecker {
                     Utils.getAndroidVersionName(apk.maxSdkVersion)));
         }
 
-        if (apk.features != null) {
-            for (final String feat : apk.features) {
+        if (key.features != null) {
+            for (final String feat : key.features) {
                 if (ignoreTouchscreen && "android.hardware.touchscreen".equals(feat)) {
                     continue;
                 }
@@ -112,13 +161,75 @@ public class CompatibilityChecker {
                 }
             }
         }
-        if (!compatibleApi(apk.nativecode)) {
-            Collections.addAll(incompatibleReasons, apk.nativecode);
+        if (!compatibleApi(key.nativecode)) {
+            Collections.addAll(incompatibleReasons, key.nativecode);
             Utils.debugLog(TAG, apk.packageName + " vercode " + apk.versionCode
-                    + " only supports " + TextUtils.join(", ", apk.nativecode)
+                    + " only supports " + TextUtils.join(", ", key.nativecode)
                     + " while your architectures are " + cpuAbisDesc);
         }
 
         return incompatibleReasons;
     }
+
+    private static final class Verdicts {
+        final Set<String> features;
+        final boolean ignoreTouchscreen;
+        final Locale locale;
+        final Map<VerdictKey, String[]> reasons = new ConcurrentHashMap<>();
+
+        Verdicts(Set<String> features, boolean ignoreTouchscreen, Locale locale) {
+            this.features = features;
+            this.ignoreTouchscreen = ignoreTouchscreen;
+            this.locale = locale;
+        }
+    }
+
+    /**
+     * Everything about an {@link Apk} which {@link #calcIncompatibleReasons(Apk, VerdictKey)}
+     * looks at.  The features and native code are sorted copies, as their order in the index
+     * makes no difference to whether the apk is compatible.
+     */
+    private static final class VerdictKey {
+        private final int minSdkVersion;
+        private final int maxSdkVersion;
+        private final String[] features;
+        private final String[] nativecode;
+        private final int hashCode;
+
+        VerdictKey(Apk apk) {
+            minSdkVersion = apk.minSdkVersion;
+            maxSdkVersion = apk.maxSdkVersion;
+            features = sortedCopy(apk.features);
+            nativecode = sortedCopy(apk.nativecode);
+            hashCode = 31 * (31 * (31 * minSdkVersion + maxSdkVersion) + Arrays.hashCode(features))
+                    + Arrays.hashCode(nativecode);
+        }
+
+        @Nullable
+        private static String[] sortedCopy(@Nullable String[] values) {
+            if (values == null) {
+                return null;
+            }
+            String[] sorted = values.clone();
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof VerdictKey)) {
+                return false;
+            }
+            VerdictKey other = (VerdictKey) o;
+            return minSdkVersion == other.minSdkVersion
+                    && maxSdkVersion == other.maxSdkVersion
+                    && Arrays.equals(features, other.features)
+                    && Arrays.equals(nativecode, other.nativecode);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
 }
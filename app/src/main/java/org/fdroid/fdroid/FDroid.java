@@ -47,6 +47,7 @@ import android.widget.Toast;
 import org.fdroid.fdroid.compat.TabManager;
 import org.fdroid.fdroid.data.AppProvider;
 import org.fdroid.fdroid.data.NewRepoConfig;
+import org.fdroid.fdroid.net.DownloaderService;
 import org.fdroid.fdroid.views.AppListFragmentPagerAdapter;
 import org.fdroid.fdroid.views.ManageReposActivity;
 import org.ligi.tracedroid.sending.TraceDroidEmailSender;
@@ -290,7 +291,7 @@ public class FDroid extends AppCompatActivity implements SearchView.OnQueryTextL
                 return true;
 
             case R.id.action_update_all:
-                UpdateService.autoDownloadUpdates(this);
+                UpdateService.autoDownloadUpdates(this, DownloaderService.PRIORITY_USER);
                 return true;
 
             case R.id.action_manage_repos:
@@ -30,7 +30,6 @@ import android.graphics.Bitmap;
 import android.os.Environment;
 import android.os.StrictMode;
 import android.preference.PreferenceManager;
-import androidx.collection.LongSparseArray;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.Display;
@@ -47,8 +46,6 @@ import com.nostra13.universalimageloader.core.process.BitmapProcessor;
 import org.fdroid.fdroid.Preferences.Theme;
 import org.fdroid.fdroid.data.AppProvider;
 import org.fdroid.fdroid.data.InstalledAppProviderService;
-import org.fdroid.fdroid.data.Repo;
-import org.fdroid.fdroid.data.RepoProvider;
 import org.fdroid.fdroid.net.ImageLoaderForUIL;
 import org.ligi.tracedroid.TraceDroid;
 
@@ -149,45 +146,7 @@ public class FDroidApp extends Application {
         super.onConfigurationChanged(newConfig);
         applyLanguage();
     }
-    public static int getTimeout() {
-        return timeout;
-    }
-    public static String getMirror(String urlString, long repoId) throws IOException {
-        return getMirror(urlString, RepoProvider.Helper.findById(getInstance(), repoId));
-    }
 
-    public static String getMirror(String urlString, Repo repo2) throws IOException {
-        if (repo2.hasMirrors()) {
-            String lastWorkingMirror = lastWorkingMirrorArray.get(repo2.getId());
-            if (lastWorkingMirror == null) {
-                lastWorkingMirror = repo2.address;
-            }
-            if (numTries <= 0) {
-                if (timeout == 10000) {
-                    timeout = 30000;
-                    numTries = Integer.MAX_VALUE;
-                } else if (timeout == 30000) {
-                    timeout = 60000;
-                    numTries = Integer.MAX_VALUE;
-                } else {
-                    Utils.debugLog(TAG, "Mirrors: Giving up");
-                    throw new IOException("Ran out of mirrors");
-                }
-            }
-            if (numTries == Integer.MAX_VALUE) {
-                numTries = repo2.getMirrorCount();
-            }
-            String mirror = repo2.getMirror(lastWorkingMirror);
-            String newUrl = urlString.replace(lastWorkingMirror, mirror);
-            Utils.debugLog(TAG, "Trying mirror " + mirror + " after " + lastWorkingMirror + " failed," +
-                    " timeout=" + timeout / 1000 + "s");
-            lastWorkingMirrorArray.put(repo2.getId(), mirror);
-            numTries--;
-            return newUrl;
-        } else {
-            throw new IOException("No mirrors available");
-        }
-    }
     @Override
     public void onCreate() {
         super.onCreate();
@@ -307,18 +266,6 @@ public class FDroidApp extends Application {
         return 2;
     }
 
-    private static volatile LongSparseArray<String> lastWorkingMirrorArray = new LongSparseArray<>(1);
-    private static volatile int numTries = Integer.MAX_VALUE;
-    private static volatile int timeout = 10000;
-    public static void resetMirrorVars() {
-        // Reset last working mirror, numtries, and timeout
-        for (int i = 0; i < lastWorkingMirrorArray.size(); i++) {
-            lastWorkingMirrorArray.removeAt(i);
-        }
-        numTries = Integer.MAX_VALUE;
-        timeout = 10000;
-    }
-
     private static boolean useTor;
 
     /**
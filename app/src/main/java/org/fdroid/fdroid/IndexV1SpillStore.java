@@ -0,0 +1,77 @@
+package org.fdroid.fdroid;
+
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A disk backed holding area for the raw JSON of one side of {@code index-v1.json}
+ * while the other side is still being streamed.  An app entry and its packages
+ * live in two different top level blocks ({@code apps} and {@code packages}), so
+ * whichever of the two comes first has to be parked somewhere until its partner
+ * is parsed.  Only the offsets are kept in memory, keyed by {@code packageName},
+ * the JSON itself is written to a temporary file in the cache dir.
+ */
+final class IndexV1SpillStore implements Closeable {
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+
+    /**
+     * Insertion order is kept so that entries which never find a partner are
+     * handed back in the same order they appeared in the index.
+     */
+    private final Map<String, long[]> offsets = new LinkedHashMap<>();
+    private long writePosition;
+
+    IndexV1SpillStore(File dir) throws IOException {
+        file = File.createTempFile("index-v1-", ".spill", dir);
+        randomAccessFile = new RandomAccessFile(file, "rw");
+    }
+
+    void put(String packageName, byte[] json) throws IOException {
+        randomAccessFile.seek(writePosition);
+        randomAccessFile.write(json);
+        offsets.put(packageName, new long[]{writePosition, json.length});
+        writePosition += json.length;
+    }
+
+    /**
+     * Reads back and forgets the entry for {@code packageName}, if there is one.
+     */
+    @Nullable
+    byte[] remove(String packageName) throws IOException {
+        long[] offset = offsets.remove(packageName);
+        if (offset == null) {
+            return null;
+        }
+        byte[] json = new byte[(int) offset[1]];
+        randomAccessFile.seek(offset[0]);
+        randomAccessFile.readFully(json);
+        return json;
+    }
+
+    List<String> remainingPackageNames() {
+        return new ArrayList<>(offsets.keySet());
+    }
+
+    int size() {
+        return offsets.size();
+    }
+
+    @Override
+    public void close() {
+        offsets.clear();
+        Utils.closeQuietly(randomAccessFile);
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+}
@@ -31,7 +31,9 @@ import android.util.Log;
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.annotation.PropertyAccessor;
 import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.InjectableValues;
@@ -39,17 +41,21 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.io.FileUtils;
 import org.fdroid.fdroid.data.Apk;
 import org.fdroid.fdroid.data.App;
+import org.fdroid.fdroid.data.LocalizedDeserializer;
 import org.fdroid.fdroid.data.Repo;
 import org.fdroid.fdroid.data.RepoPersister;
 import org.fdroid.fdroid.data.RepoProvider;
 import org.fdroid.fdroid.data.Schema;
 import org.fdroid.fdroid.net.Downloader;
 import org.fdroid.fdroid.net.DownloaderFactory;
+import org.fdroid.fdroid.net.MirrorFailover;
+import org.fdroid.fdroid.net.MirrorHealth;
 
 import javax.net.ssl.SSLHandshakeException;
 import javax.net.ssl.SSLKeyException;
 import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.net.ssl.SSLProtocolException;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -89,6 +95,10 @@ public class IndexV1Updater extends IndexUpdater {
     private static final String SIGNED_FILE_NAME = "index-v1.jar";
     public static final String DATA_FILE_NAME = "index-v1.json";
 
+    private File downloadedIndexFile;
+    private String downloadedCacheTag;
+    private String downloadedCacheTagMirror;
+
     public IndexV1Updater(@NonNull Context context, @NonNull Repo repo) {
         super(context, repo);
     }
@@ -99,70 +109,52 @@ public class IndexV1Updater extends IndexUpdater {
     }
 
     /**
+     * Downloads and then processes the index, see {@link #downloadIndex()} and
+     * {@link #processIndex()} for the two stages of this.
+     *
      * @return whether this successfully found an index of this version
      * @throws IndexUpdater.UpdateException
      * @see org.fdroid.fdroid.net.DownloaderService#handleIntent(android.content.Intent)
      */
     public boolean update() throws IndexUpdater.UpdateException {
+        if (!downloadIndex()) {
+            return false;
+        }
+        processIndex();
+        return true;
+    }
+
+    /**
+     * The network stage of {@link #update()}: checks whether the index has
+     * changed and, if so, downloads it, trying the mirrors when the main
+     * address is not reachable.  This does not touch the database, so it can
+     * run in parallel to {@link #processIndex()} of another repo.
+     *
+     * @return whether this successfully found an index of this version
+     */
+    public boolean downloadIndex() throws IndexUpdater.UpdateException {
+        MirrorFailover failover = new MirrorFailover(context, repo, indexUrl);
         Downloader downloader = null;
         try {
-            // read file name from file
-            downloader = DownloaderFactory.create(context, indexUrl);
-            downloader.setCacheTag(repo.lastetag);
-            downloader.setListener(downloadListener);
-            downloader.download();
-            if (downloader.isNotFound()) {
-                return false;
-            }
-            hasChanged = downloader.hasChanged();
-
-            if (!hasChanged) {
-                return true;
-            }
-
-            processDownloadedIndex(downloader.outputFile, downloader.getCacheTag());
-        } catch (ConnectException | HttpRetryException | NoRouteToHostException | SocketTimeoutException
-                | SSLHandshakeException | SSLKeyException | SSLPeerUnverifiedException | SSLProtocolException
-                | ProtocolException | UnknownHostException e) {
-            // if the above list changes, also change below and in DownloaderService.handleIntent()
-            Utils.debugLog(TAG, "Trying to download the index from a mirror");
-            // Mirror logic here, so that the default download code is untouched.
-            String mirrorUrl;
-            String prevMirrorUrl = indexUrl;
-            FDroidApp.resetMirrorVars();
-            int n = repo.getMirrorCount() * 3; // 3 is the number of timeouts we have. 10s, 30s & 60s
-            for (int i = 0; i <= n; i++) {
+            while (true) {
                 try {
-                    mirrorUrl = FDroidApp.getMirror(prevMirrorUrl, repo);
-                    prevMirrorUrl = mirrorUrl;
-                    downloader = DownloaderFactory.create(context, mirrorUrl);
+                    downloader = DownloaderFactory.create(context, failover.getUrl());
                     downloader.setCacheTag(repo.lastetag);
                     downloader.setListener(downloadListener);
-                    downloader.setTimeout(FDroidApp.getTimeout());
+                    downloader.setTimeout(failover.getTimeout());
                     downloader.download();
-                    if (downloader.isNotFound()) {
-                        return false;
-                    }
-                    hasChanged = downloader.hasChanged();
-
-                    if (!hasChanged) {
-                        return true;
-                    }
-
-                    processDownloadedIndex(downloader.outputFile, downloader.getCacheTag());
-                    break;
+                    MirrorHealth.recordSuccess(context, failover.getMirror(), downloader);
+                    return onIndexDownloaded(downloader, failover.getMirror());
                 } catch (ConnectException | HttpRetryException | NoRouteToHostException | SocketTimeoutException
                         | SSLHandshakeException | SSLKeyException | SSLPeerUnverifiedException | SSLProtocolException
-                        | ProtocolException | UnknownHostException e2) {
-                    // We'll just let this try the next mirror
-                    Utils.debugLog(TAG, "Trying next mirror");
-                } catch (IOException e2) {
+                        | ProtocolException | UnknownHostException e) {
+                    // if the above list changes, also change it in DownloaderService.handleIntent()
+                    MirrorHealth.recordFailure(context, failover.getMirror());
                     if (downloader != null) {
                         FileUtils.deleteQuietly(downloader.outputFile);
                     }
-                    throw new IndexUpdater.UpdateException("Error getting index file", e2);
-                } catch (InterruptedException e2) {
-                    // ignored if canceled, the local database just won't be updated
+                    Utils.debugLog(TAG, "Trying to download the index from another mirror");
+                    failover.next();
                 }
             }
         } catch (IOException e) {
@@ -177,14 +169,112 @@ public class IndexV1Updater extends IndexUpdater {
         return true;
     }
 
+    /**
+     * A quick check of the etag of the index on the server, without the
+     * mirror handling or the download of {@link #downloadIndex()}.  Etags
+     * differ between mirrors, so this asks the mirror which the stored one
+     * came from, see {@link Repo#lastEtagMirror}.  Anything that goes wrong
+     * here counts as "might have changed", so that the repo still goes
+     * through the full update, which handles errors properly.
+     *
+     * @param timeout connect and read timeout in milliseconds
+     * @return whether the index is known to be the same as the one in the database
+     */
+    public boolean isIndexUnchanged(int timeout) {
+        if (TextUtils.isEmpty(repo.lastetag)) {
+            return false;
+        }
+        String etagUrl = indexUrl;
+        if (repo.lastEtagMirror != null) {
+            if (!repo.getMirrorList().contains(repo.lastEtagMirror)) {
+                // the mirror is gone, so there is nothing to compare the etag with
+                return false;
+            }
+            etagUrl = repo.lastEtagMirror + indexUrl.substring(repo.address.length());
+        }
+        Downloader downloader = null;
+        try {
+            downloader = DownloaderFactory.create(context, etagUrl);
+            downloader.setCacheTag(repo.lastetag);
+            downloader.setTimeout(timeout);
+            return downloader.isCached();
+        } catch (IOException e) {
+            Utils.debugLog(TAG, "Could not check " + etagUrl + " for changes: " + e.getMessage());
+            return false;
+        } finally {
+            if (downloader != null) {
+                FileUtils.deleteQuietly(downloader.outputFile);
+            }
+        }
+    }
+
+    private boolean onIndexDownloaded(Downloader downloader, String mirror) {
+        if (downloader.isNotFound()) {
+            return false;
+        }
+        hasChanged = downloader.hasChanged();
+        if (hasChanged) {
+            downloadedIndexFile = downloader.outputFile;
+            downloadedCacheTag = downloader.getCacheTag();
+            downloadedCacheTagMirror = repo.address.equals(mirror) ? null : mirror;
+        }
+        return true;
+    }
+
+    /**
+     * The database stage of {@link #update()}: parses, verifies and commits
+     * the index fetched by {@link #downloadIndex()}, if it had changed.  All of
+     * this goes through the single {@link org.fdroid.fdroid.data.TempAppProvider}
+     * staging area, so only one repo at a time may be in this stage.
+     */
+    public void processIndex() throws IndexUpdater.UpdateException {
+        if (downloadedIndexFile == null) {
+            return;
+        }
+        try {
+            processDownloadedIndex(downloadedIndexFile, downloadedCacheTag);
+        } catch (IOException e) {
+            FileUtils.deleteQuietly(downloadedIndexFile);
+            throw new IndexUpdater.UpdateException("Error getting index file", e);
+        } finally {
+            downloadedIndexFile = null;
+        }
+    }
+
     private void processDownloadedIndex(File outputFile, String cacheTag)
             throws IOException, IndexUpdater.UpdateException {
         JarFile jarFile = new JarFile(outputFile, true);
-        JarEntry indexEntry = (JarEntry) jarFile.getEntry(DATA_FILE_NAME);
-        InputStream indexInputStream = new ProgressBufferedInputStream(jarFile.getInputStream(indexEntry),
-                processIndexListener, repo.address, (int) indexEntry.getSize());
-        processIndexV1(indexInputStream, indexEntry, cacheTag);
-        jarFile.close();
+        try {
+            JarEntry indexEntry = (JarEntry) jarFile.getEntry(DATA_FILE_NAME);
+            verifyIndexEntry(jarFile, indexEntry);
+            InputStream indexInputStream = new ProgressBufferedInputStream(jarFile.getInputStream(indexEntry),
+                    processIndexListener, repo.address, (int) indexEntry.getSize());
+            processIndexV1(indexInputStream, indexEntry, cacheTag);
+        } finally {
+            jarFile.close();
+        }
+    }
+
+    /**
+     * The signature of a jar entry is only checked once all of it has been read, but
+     * {@link #processIndexV1(InputStream, JarEntry, String)} writes to the database while
+     * it reads, so the entry is read through once here first, and then again to parse it.
+     * That way nothing from an index with a missing or wrong signature gets anywhere near
+     * the database.
+     */
+    private void verifyIndexEntry(JarFile jarFile, JarEntry indexEntry) throws IOException, SigningException {
+        InputStream input = jarFile.getInputStream(indexEntry);
+        try {
+            byte[] buffer = new byte[8192];
+            while (input.read(buffer) != -1) {
+                // reading it is all that is needed for the JarFile to verify it
+            }
+        } catch (SecurityException e) {
+            throw new SigningException(repo, "Invalid signature on " + DATA_FILE_NAME + ": " + e.getMessage());
+        } finally {
+            Utils.closeQuietly(input);
+        }
+        verifySigningCertificate(getSigningCertFromJar(indexEntry));
     }
 
     /**
@@ -214,7 +304,8 @@ public class IndexV1Updater extends IndexUpdater {
      * {@link Repo#id}.  That has to happen first, then the rest of the {@code Repo}
      * data must be added later.
      *
-     * @param indexInputStream {@link InputStream} to {@code index-v1.json}
+     * @param indexInputStream {@link InputStream} to {@code index-v1.json}, which must already
+     *                         have been verified, see {@link #verifyIndexEntry(JarFile, JarEntry)}
      * @param etag             the {@code etag} value from HTTP headers
      * @throws IOException
      * @throws UpdateException
@@ -226,34 +317,68 @@ public class IndexV1Updater extends IndexUpdater {
         ObjectMapper mapper = getObjectMapperInstance(repo.getId());
         JsonFactory f = mapper.getFactory();
         JsonParser parser = f.createParser(indexInputStream);
+
+        // Apps and packages are handed to the RepoPersister while they are being parsed, so the
+        // whole index is never held in memory at once. The signature was already checked before
+        // getting here, since new package, category and anti-feature names go straight into the
+        // real tables as they are parsed. Apps and apks only get there in RepoPersister#commit().
+        RepoPersister repoPersister = new RepoPersister(context, repo);
+        try {
+            processIndexV1(mapper, parser, indexEntry, etag, repoPersister, profiler);
+        } finally {
+            repoPersister.discard();
+        }
+    }
+
+    private void processIndexV1(ObjectMapper mapper, JsonParser parser, JarEntry indexEntry, String etag,
+                                RepoPersister repoPersister, Utils.Profiler profiler)
+            throws IOException, UpdateException {
         HashMap<String, Object> repoMap = null;
-        App[] apps = null;
         Map<String, String[]> requests = null;
-        Map<String, List<Apk>> packages = null;
-
-        parser.nextToken(); // go into the main object block
-        while (true) {
-            String fieldName = parser.nextFieldName();
-            if (fieldName == null) {
-                break;
-            }
-            switch (fieldName) {
-                case "repo":
-                    repoMap = parseRepo(mapper, parser);
-                    break;
-                case "requests":
-                    requests = parseRequests(mapper, parser);
-                    break;
-                case "apps":
-                    apps = parseApps(mapper, parser);
-                    break;
-                case "packages":
-                    packages = parsePackages(mapper, parser);
+        IndexV1SpillStore spillStore = new IndexV1SpillStore(context.getCacheDir());
+        boolean appsParsed = false;
+        boolean packagesParsed = false;
+        try {
+            parser.nextToken(); // go into the main object block
+            while (true) {
+                String fieldName = parser.nextFieldName();
+                if (fieldName == null) {
                     break;
+                }
+                switch (fieldName) {
+                    case "repo":
+                        repoMap = parseRepo(mapper, parser);
+                        break;
+                    case "requests":
+                        requests = parseRequests(mapper, parser);
+                        break;
+                    case "apps":
+                        streamApps(mapper, parser, repoPersister, spillStore, packagesParsed);
+                        appsParsed = true;
+                        break;
+                    case "packages":
+                        streamPackages(mapper, parser, repoPersister, spillStore, appsParsed);
+                        packagesParsed = true;
+                        break;
+                    default:
+                        parser.nextToken();
+                        parser.skipChildren();
+                        break;
+                }
             }
+
+            if (appsParsed && !packagesParsed) {
+                // index without any packages, every app that was set aside still needs saving
+                for (String packageName : spillStore.remainingPackageNames()) {
+                    App app = mapper.readValue(spillStore.remove(packageName), App.class);
+                    saveApp(repoPersister, app, null);
+                }
+            }
+        } finally {
+            parser.close(); // ensure resources get cleaned up timely and properly
+            spillStore.close();
         }
-        parser.close(); // ensure resources get cleaned up timely and properly
-        profiler.log("Finished processing index-v1.json. Now verifying certificate...");
+        profiler.log("Finished processing index-v1.json. Now checking certificate...");
 
         if (repoMap == null) {
             return;
@@ -266,6 +391,7 @@ public class IndexV1Updater extends IndexUpdater {
                     + timestamp + " < " + repo.timestamp);
         }
 
+        // already verified, this only makes sure it was still the same entry that was parsed
         X509Certificate certificate = getSigningCertFromJar(indexEntry);
         verifySigningCertificate(certificate);
 
@@ -275,6 +401,7 @@ public class IndexV1Updater extends IndexUpdater {
         repo.timestamp = timestamp;
         // below are optional, can be null
         repo.lastetag = etag;
+        repo.lastEtagMirror = downloadedCacheTagMirror;
         repo.name = getStringRepoValue(repoMap, "name");
         repo.icon = getStringRepoValue(repoMap, "icon");
         repo.description = getStringRepoValue(repoMap, "description");
@@ -283,38 +410,6 @@ public class IndexV1Updater extends IndexUpdater {
         repo.maxage = getIntRepoValue(repoMap, "maxage");
         repo.version = getIntRepoValue(repoMap, "version");
 
-        RepoPersister repoPersister = new RepoPersister(context, repo);
-        if (apps != null && apps.length > 0) {
-            int appCount = 0;
-            for (App app : apps) {
-                appCount++;
-                List<Apk> apks = null;
-                if (packages != null) {
-                    apks = packages.get(app.packageName);
-                }
-
-                if (apks == null) {
-                    Log.i(TAG, "processIndexV1 empty packages");
-                    apks = new ArrayList<>(0);
-                }
-
-                if (apks.size() > 0) {
-                    app.preferredSigner = apks.get(0).sig;
-                    app.isApk = true;
-                    for (Apk apk : apks) {
-                        if (!apk.isApk()) {
-                            app.isApk = false;
-                        }
-                    }
-                }
-
-                if (appCount % 50 == 0) {
-                    notifyProcessingApps(appCount, apps.length);
-                }
-
-                repoPersister.saveToDb(app, apks);
-            }
-        }
         profiler.log("Saved to database, but only a temporary table. Now persisting to database...");
         notifyCommittingToDb();
 
@@ -322,6 +417,7 @@ public class IndexV1Updater extends IndexUpdater {
         contentValues.put(Schema.RepoTable.Cols.LAST_UPDATED, Utils.formatTime(new Date(), ""));
         contentValues.put(Schema.RepoTable.Cols.TIMESTAMP, repo.timestamp);
         contentValues.put(Schema.RepoTable.Cols.LAST_ETAG, repo.lastetag);
+        contentValues.put(Schema.RepoTable.Cols.LAST_ETAG_MIRROR, repo.lastEtagMirror);
         if (repo.version != Repo.INT_UNSET_VALUE) {
             contentValues.put(Schema.RepoTable.Cols.VERSION, repo.version);
         }
@@ -385,18 +481,142 @@ public class IndexV1Updater extends IndexUpdater {
         return mapper.readValue(parser, typeRef);
     }
 
-    private App[] parseApps(ObjectMapper mapper, JsonParser parser) throws IOException {
-        TypeReference<App[]> typeRef = new TypeReference<App[]>() {
+    /**
+     * Reads the {@code apps} array one {@link App} at a time.  If the packages
+     * have already been read, each app is saved straight away together with its
+     * packages from {@code spillStore}.  Otherwise, the raw JSON of each app is
+     * set aside in {@code spillStore} until its packages come along.
+     */
+    private void streamApps(ObjectMapper mapper, JsonParser parser, RepoPersister repoPersister,
+                            IndexV1SpillStore spillStore, boolean packagesParsed)
+            throws IOException, UpdateException {
+        TypeReference<List<Apk>> typeRef = new TypeReference<List<Apk>>() {
         };
+        int appCount = 0;
+        int totalApps = spillStore.size();
+        LocalizedDeserializer locales = new LocalizedDeserializer();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
         parser.nextToken(); // START_ARRAY
-        return mapper.readValue(parser, typeRef);
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            if (packagesParsed) {
+                App app = mapper.readValue(parser, App.class);
+                byte[] apksJson = spillStore.remove(app.packageName);
+                List<Apk> apks = apksJson == null ? null : mapper.readValue(apksJson, typeRef);
+                saveApp(repoPersister, app, apks);
+                appCount++;
+                if (appCount % 50 == 0) {
+                    notifyProcessingApps(appCount, totalApps);
+                }
+            } else {
+                JsonGenerator generator = mapper.getFactory().createGenerator(buffer);
+                String packageName = copyApp(parser, generator, locales);
+                generator.close();
+                if (packageName == null) {
+                    Log.i(TAG, "processIndexV1 app entry without packageName");
+                } else {
+                    spillStore.put(packageName, buffer.toByteArray());
+                }
+                buffer.reset();
+            }
+        }
     }
 
-    private Map<String, List<Apk>> parsePackages(ObjectMapper mapper, JsonParser parser) throws IOException {
-        TypeReference<HashMap<String, List<Apk>>> typeRef = new TypeReference<HashMap<String, List<Apk>>>() {
+    /**
+     * Copies the app entry the parser is at to {@code generator}, token by token, leaving
+     * out the locales in its {@code localized} block which would be dropped when it is
+     * finally parsed anyway.
+     *
+     * @return the {@code packageName} of the app, if it has one.
+     */
+    private static String copyApp(JsonParser parser, JsonGenerator generator, LocalizedDeserializer locales)
+            throws IOException {
+        String packageName = null;
+        generator.writeStartObject();
+        String field;
+        while ((field = parser.nextFieldName()) != null) {
+            JsonToken token = parser.nextToken();
+            generator.writeFieldName(field);
+            if ("localized".equals(field) && token == JsonToken.START_OBJECT) {
+                generator.writeStartObject();
+                String locale;
+                while ((locale = parser.nextFieldName()) != null) {
+                    parser.nextToken();
+                    if (locales.isWanted(locale)) {
+                        generator.writeFieldName(locale);
+                        generator.copyCurrentStructure(parser);
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                generator.writeEndObject();
+            } else {
+                if ("packageName".equals(field) && token == JsonToken.VALUE_STRING) {
+                    packageName = parser.getText();
+                }
+                generator.copyCurrentStructure(parser);
+            }
+        }
+        generator.writeEndObject();
+        return packageName;
+    }
+
+    /**
+     * Reads the {@code packages} object one package name at a time.  If the apps
+     * have already been set aside in {@code spillStore}, each one is read back and
+     * saved along with its packages.  Otherwise, the raw JSON of the packages is
+     * set aside in {@code spillStore} until the apps come along.
+     */
+    private void streamPackages(ObjectMapper mapper, JsonParser parser, RepoPersister repoPersister,
+                                IndexV1SpillStore spillStore, boolean appsParsed)
+            throws IOException, UpdateException {
+        TypeReference<List<Apk>> typeRef = new TypeReference<List<Apk>>() {
         };
+        int appCount = 0;
+        int totalApps = spillStore.size();
         parser.nextToken(); // START_OBJECT
-        return mapper.readValue(parser, typeRef);
+        String packageName;
+        while ((packageName = parser.nextFieldName()) != null) {
+            parser.nextToken(); // START_ARRAY
+            if (appsParsed) {
+                List<Apk> apks = mapper.readValue(parser, typeRef);
+                byte[] appJson = spillStore.remove(packageName);
+                if (appJson == null) {
+                    continue; // packages without app metadata are not shown anywhere
+                }
+                saveApp(repoPersister, mapper.readValue(appJson, App.class), apks);
+                appCount++;
+                if (appCount % 50 == 0) {
+                    notifyProcessingApps(appCount, totalApps);
+                }
+            } else {
+                spillStore.put(packageName, mapper.writeValueAsBytes(mapper.readTree(parser)));
+            }
+        }
+
+        if (appsParsed) {
+            for (String remaining : spillStore.remainingPackageNames()) {
+                saveApp(repoPersister, mapper.readValue(spillStore.remove(remaining), App.class), null);
+            }
+        }
+    }
+
+    private void saveApp(RepoPersister repoPersister, App app, List<Apk> apks) throws UpdateException {
+        if (apks == null) {
+            Log.i(TAG, "processIndexV1 empty packages");
+            apks = new ArrayList<>(0);
+        }
+
+        if (apks.size() > 0) {
+            app.preferredSigner = apks.get(0).sig;
+            app.isApk = true;
+            for (Apk apk : apks) {
+                if (!apk.isApk()) {
+                    app.isApk = false;
+                }
+            }
+        }
+
+        repoPersister.saveToDb(app, apks);
     }
 
     /**
@@ -59,6 +59,10 @@ public final class Preferences implements SharedPreferences.OnSharedPreferenceCh
     public static final String PREF_PROXY_HOST = "proxyHost";
     public static final String PREF_PROXY_PORT = "proxyPort";
     public static final String PREF_POST_PRIVILEGED_INSTALL = "postPrivilegedInstall";
+    public static final String PREF_UPDATE_REPO_CONCURRENCY = "updateRepoConcurrency";
+    public static final String PREF_DOWNLOAD_CONCURRENCY = "downloadConcurrency";
+    public static final String PREF_DOWNLOAD_CONCURRENCY_PER_HOST = "downloadConcurrencyPerHost";
+    public static final String PREF_IN_MEMORY_SUGGESTED_VERSIONS = "inMemorySuggestedVersions";
 
     private static final boolean DEFAULT_ROOTED = true;
     private static final boolean DEFAULT_HIDE_ANTI_FEATURE_APPS = false;
@@ -74,6 +78,12 @@ public final class Preferences implements SharedPreferences.OnSharedPreferenceCh
     public static final String DEFAULT_PROXY_HOST = "127.0.0.1";
     public static final int DEFAULT_PROXY_PORT = 8118;
     private static final boolean DEFAULT_POST_PRIVILEGED_INSTALL = false;
+    private static final int DEFAULT_UPDATE_REPO_CONCURRENCY = 2;
+    private static final int MAX_UPDATE_REPO_CONCURRENCY = 8;
+    private static final int DEFAULT_DOWNLOAD_CONCURRENCY = 4;
+    private static final int DEFAULT_DOWNLOAD_CONCURRENCY_PER_HOST = 2;
+    private static final int MAX_DOWNLOAD_CONCURRENCY = 8;
+    private static final boolean DEFAULT_IN_MEMORY_SUGGESTED_VERSIONS = true;
 
     private boolean showAppsWithAntiFeatures;
     private static final boolean IGNORED_B = false;
@@ -213,6 +223,41 @@ public final class Preferences implements SharedPreferences.OnSharedPreferenceCh
         return preferences.getBoolean(PREF_AUTO_DOWNLOAD_INSTALL_UPDATES, false);
     }
 
+    /**
+     * How many repo indexes {@link UpdateService} may be downloading at the same
+     * time, while the previously downloaded ones are being written to the database.
+     */
+    public int getUpdateRepoConcurrency() {
+        int concurrency = preferences.getInt(PREF_UPDATE_REPO_CONCURRENCY, DEFAULT_UPDATE_REPO_CONCURRENCY);
+        return Math.max(1, Math.min(concurrency, MAX_UPDATE_REPO_CONCURRENCY));
+    }
+
+    /**
+     * How many files {@link org.fdroid.fdroid.net.DownloaderService} may be downloading at the
+     * same time.
+     */
+    public int getDownloadConcurrency() {
+        int concurrency = preferences.getInt(PREF_DOWNLOAD_CONCURRENCY, DEFAULT_DOWNLOAD_CONCURRENCY);
+        return Math.max(1, Math.min(concurrency, MAX_DOWNLOAD_CONCURRENCY));
+    }
+
+    /**
+     * How many of the {@link #getDownloadConcurrency()} downloads may be from the same server,
+     * so that one slow mirror can't hold up everything else.
+     */
+    public int getDownloadConcurrencyPerHost() {
+        int concurrency = preferences.getInt(PREF_DOWNLOAD_CONCURRENCY_PER_HOST, DEFAULT_DOWNLOAD_CONCURRENCY_PER_HOST);
+        return Math.max(1, Math.min(concurrency, getDownloadConcurrency()));
+    }
+
+    /**
+     * Whether suggested versions for every app are worked out in Java rather than by
+     * the equivalent (but much slower on large databases) SQL in {@link org.fdroid.fdroid.data.AppProvider}.
+     */
+    public boolean isInMemorySuggestedVersionsEnabled() {
+        return preferences.getBoolean(PREF_IN_MEMORY_SUGGESTED_VERSIONS, DEFAULT_IN_MEMORY_SUGGESTED_VERSIONS);
+    }
+
     public boolean isUpdateOnlyOnUnmeteredNetworks() {
         return preferences.getBoolean(PREF_UPD_WIFI_ONLY, false);
     }
@@ -50,9 +50,16 @@ import org.fdroid.fdroid.data.Repo;
 import org.fdroid.fdroid.data.RepoProvider;
 import org.fdroid.fdroid.data.Schema;
 import org.fdroid.fdroid.installer.InstallManagerService;
+import org.fdroid.fdroid.net.DownloaderService;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class UpdateService extends IntentService {
 
@@ -83,6 +90,9 @@ public class UpdateService extends IntentService {
     private static final int FLAG_NET_METERED = 1;
     private static final int FLAG_NET_NO_LIMIT = 2;
 
+    private static final int PROBE_TIMEOUT = 10000;
+    private static final int MAX_CONCURRENT_PROBES = 8;
+
     private static Handler toastHandler;
 
     private NotificationManager notificationManager;
@@ -372,6 +382,7 @@ public class UpdateService extends IntentService {
             boolean changes = false;
             boolean singleRepoUpdate = !TextUtils.isEmpty(address);
             final Preferences fdroidPrefs = Preferences.get();
+            List<IndexV1Updater> updaters = new ArrayList<>();
             for (final Repo repo : repos) {
                 if (!repo.inuse) {
                     continue;
@@ -383,28 +394,57 @@ public class UpdateService extends IntentService {
                 if (!singleRepoUpdate && repo.isSwap) {
                     continue;
                 }
+                updaters.add(new IndexV1Updater(getBaseContext(), repo));
+            }
 
-                sendStatus(this, STATUS_INFO, getString(R.string.status_connecting_to_repo, repo.address));
-                IndexV1Updater updater = new IndexV1Updater(getBaseContext(), repo);
-                //setProgressListeners(updater);
-                try {
-                    updater.update();
-                    if (updater.hasChanged()) {
-                        updatedRepos++;
-                        changes = true;
-                    } else {
-                        unchangedRepos++;
+            List<IndexV1Updater> changedUpdaters = probeForChanges(updaters);
+            unchangedRepos += updaters.size() - changedUpdaters.size();
+            updaters = changedUpdaters;
+
+            // The network stage runs ahead on its own threads, while this thread is the single
+            // writer that parses and commits each index, in repo order, once it is downloaded.
+            ExecutorService downloadExecutor =
+                    Executors.newFixedThreadPool(fdroidPrefs.getUpdateRepoConcurrency());
+            List<Future<Boolean>> downloads = new ArrayList<>(updaters.size());
+            for (final IndexV1Updater updater : updaters) {
+                downloads.add(downloadExecutor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws IndexUpdater.UpdateException {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        sendStatus(UpdateService.this, STATUS_INFO,
+                                getString(R.string.status_connecting_to_repo, updater.repo.address));
+                        return updater.downloadIndex();
+                    }
+                }));
+            }
+            downloadExecutor.shutdown();
+
+            try {
+                for (int i = 0; i < updaters.size(); i++) {
+                    IndexV1Updater updater = updaters.get(i);
+                    try {
+                        if (waitForDownload(downloads.get(i))) {
+                            updater.processIndex();
+                        }
+                        if (updater.hasChanged()) {
+                            updatedRepos++;
+                            changes = true;
+                        } else {
+                            unchangedRepos++;
+                        }
+                    } catch (IndexUpdater.UpdateException e) {
+                        errorRepos++;
+                        repoErrors.add(e.getMessage());
+                        Log.e(TAG, "Error updating repository " + updater.repo.address, e);
                     }
-                } catch (IndexUpdater.UpdateException e) {
-                    errorRepos++;
-                    repoErrors.add(e.getMessage());
-                    Log.e(TAG, "Error updating repository " + repo.address, e);
-                }
 
-                // now that downloading the index is done, start downloading updates
-                if (changes && fdroidPrefs.isAutoDownloadEnabled()) {
-                    autoDownloadUpdates(this);
+                    // now that downloading the index is done, start downloading updates
+                    if (changes && fdroidPrefs.isAutoDownloadEnabled()) {
+                        autoDownloadUpdates(this, DownloaderService.PRIORITY_BACKGROUND);
+                    }
                 }
+            } finally {
+                downloadExecutor.shutdownNow();
             }
 
             if (!changes) {
@@ -444,6 +484,79 @@ public class UpdateService extends IntentService {
         Log.i(TAG, "Updating repo(s) complete, took " + time / 1000 + " seconds to complete.");
     }
 
+    /**
+     * Asks all repos at once whether their index has changed, so that a run where
+     * nothing changed costs about one round trip instead of one per repo.
+     *
+     * @return the updaters which need to go through the full update
+     */
+    private static List<IndexV1Updater> probeForChanges(List<IndexV1Updater> updaters) {
+        if (updaters.isEmpty()) {
+            return updaters;
+        }
+        List<Callable<Boolean>> probes = new ArrayList<>(updaters.size());
+        for (final IndexV1Updater updater : updaters) {
+            probes.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return updater.isIndexUnchanged(PROBE_TIMEOUT);
+                }
+            });
+        }
+
+        ExecutorService probeExecutor = Executors.newFixedThreadPool(
+                Math.min(updaters.size(), MAX_CONCURRENT_PROBES));
+        List<IndexV1Updater> changed = new ArrayList<>(updaters.size());
+        try {
+            // anything still running after this is cancelled, and treated as changed
+            List<Future<Boolean>> results = probeExecutor.invokeAll(probes,
+                    PROBE_TIMEOUT * 2, TimeUnit.MILLISECONDS);
+            for (int i = 0; i < updaters.size(); i++) {
+                Future<Boolean> result = results.get(i);
+                boolean unchanged = false;
+                if (!result.isCancelled()) {
+                    try {
+                        unchanged = result.get();
+                    } catch (ExecutionException e) {
+                        Log.e(TAG, "Error while checking " + updaters.get(i).repo.address, e);
+                    }
+                }
+                if (unchanged) {
+                    Utils.debugLog(TAG, updaters.get(i).repo.address + " is up to date, skipping");
+                } else {
+                    changed.add(updaters.get(i));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return updaters;
+        } finally {
+            probeExecutor.shutdownNow();
+        }
+        return changed;
+    }
+
+    /**
+     * Blocks until the network stage for one repo is done, unwrapping the
+     * {@link IndexUpdater.UpdateException} it may have thrown.
+     *
+     * @return whether an index was found, like {@link IndexV1Updater#downloadIndex()}
+     */
+    private static boolean waitForDownload(Future<Boolean> download) throws IndexUpdater.UpdateException {
+        try {
+            return download.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IndexUpdater.UpdateException) {
+                throw (IndexUpdater.UpdateException) cause;
+            }
+            throw new IndexUpdater.UpdateException("Error getting index file", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IndexUpdater.UpdateException("Update was interrupted", e);
+        }
+    }
+
     private void notifyContentProviders() {
         getContentResolver().notifyChange(AppProvider.getContentUri(), null);
         getContentResolver().notifyChange(ApkProvider.getContentUri(), null);
@@ -497,9 +610,12 @@ public class UpdateService extends IntentService {
 
     /**
      * Queues all apps needing update.  If this app itself (e.g. F-Droid) needs
-     * to be updated, it is queued last.
+     * to be updated, it is queued with {@link DownloaderService#PRIORITY_LAST},
+     * so that it is only downloaded once all of the others are done.
+     *
+     * @param priority which {@link DownloaderService} priority class to download the updates with
      */
-    public static void autoDownloadUpdates(Context context) {
+    public static void autoDownloadUpdates(Context context, int priority) {
         List<App> canUpdate = AppProvider.Helper.findCanUpdate(context, Schema.AppMetadataTable.Cols.ALL);
         String packageName = context.getPackageName();
         App updateLastApp = null;
@@ -511,10 +627,10 @@ public class UpdateService extends IntentService {
                 continue;
             }
             Apk apk = ApkProvider.Helper.findSuggestedApk(context, app);
-            InstallManagerService.queue(context, app, apk);
+            InstallManagerService.queue(context, app, apk, priority);
         }
         if (updateLastApp != null && updateLastApk != null) {
-            InstallManagerService.queue(context, updateLastApp, updateLastApk);
+            InstallManagerService.queue(context, updateLastApp, updateLastApk, DownloaderService.PRIORITY_LAST);
         }
     }
 
@@ -49,6 +49,7 @@ import org.fdroid.fdroid.data.SanitizedFile;
 import org.xml.sax.XMLReader;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
@@ -90,6 +91,8 @@ public final class Utils {
 
     private static final TimeZone UTC = TimeZone.getTimeZone("Etc/GMT");
 
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
     private static final String[] FRIENDLY_SIZE_FORMAT = {
             "%.0f B", "%.0f KiB", "%.1f MiB", "%.2f GiB",
     };
@@ -434,9 +437,16 @@ public final class Utils {
      * We fall back to the placeholder icon otherwise.
      */
     public static void setIconFromRepoOrPM(@NonNull App app, ImageView iv, Context context) {
-        if (app.getIconUrl(iv.getContext()) == null) {
+        setIconFromRepoOrPM(app.getIconUrl(iv.getContext()), app.packageName, iv, context);
+    }
+
+    /**
+     * @param iconUrl The result of {@link App#getIconUrl(Context)}.
+     */
+    public static void setIconFromRepoOrPM(@Nullable String iconUrl, String packageName, ImageView iv, Context context) {
+        if (iconUrl == null) {
             try {
-                iv.setImageDrawable(context.getPackageManager().getApplicationIcon(app.packageName));
+                iv.setImageDrawable(context.getPackageManager().getApplicationIcon(packageName));
             } catch (PackageManager.NameNotFoundException e) {
                 DisplayImageOptions options = Utils.getRepoAppDisplayImageOptions();
                 iv.setImageDrawable(options.shouldShowImageForEmptyUri()
@@ -444,7 +454,7 @@ public final class Utils {
                         : null);
             }
         } else {
-            ImageLoader.getInstance().displayImage(app.getIconUrl(iv.getContext()), iv, Utils.getRepoAppDisplayImageOptions());
+            ImageLoader.getInstance().displayImage(iconUrl, iv, Utils.getRepoAppDisplayImageOptions());
         }
     }
 
@@ -550,17 +560,84 @@ public final class Utils {
         return values == null || values.length == 0 ? null : TextUtils.join(",", values);
     }
 
+    /**
+     * Encodes a list of strings for storing in a single blob column. Unlike
+     * {@link #serializeCommaSeparatedString(String[])}, the values may contain commas, and
+     * decoding doesn't need to scan for separators: the blob is the number of strings followed
+     * by each string as its length in bytes and then its UTF-8 encoding, with all numbers
+     * written as varints.
+     *
+     * @see #parseStringArray(byte[])
+     */
+    @Nullable
+    public static byte[] serializeStringArray(@Nullable String[] values) {
+        if (values == null || values.length == 0) {
+            return null;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarInt(out, values.length);
+        for (String value : values) {
+            byte[] bytes = value.getBytes(UTF_8);
+            writeVarInt(out, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @see #serializeStringArray(String[])
+     */
+    @Nullable
+    public static String[] parseStringArray(@Nullable byte[] blob) {
+        if (blob == null || blob.length == 0) {
+            return null;
+        }
+
+        int[] position = {0};
+        String[] values = new String[readVarInt(blob, position)];
+        for (int i = 0; i < values.length; i++) {
+            int length = readVarInt(blob, position);
+            values[i] = new String(blob, position[0], length, UTF_8);
+            position[0] += length;
+        }
+        return values;
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(byte[] blob, int[] position) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = blob[position[0]++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
     private static Date parseDateFormat(DateFormat format, String str, Date fallback) {
         if (str == null || str.length() == 0) {
             return fallback;
         }
         Date result;
-        try {
-            format.setTimeZone(UTC);
-            result = format.parse(str);
-        } catch (ArrayIndexOutOfBoundsException | NumberFormatException | ParseException e) {
-            e.printStackTrace();
-            result = fallback;
+        // The formats are shared, and SimpleDateFormat is not thread safe.
+        synchronized (format) {
+            try {
+                format.setTimeZone(UTC);
+                result = format.parse(str);
+            } catch (ArrayIndexOutOfBoundsException | NumberFormatException | ParseException e) {
+                e.printStackTrace();
+                result = fallback;
+            }
         }
         return result;
     }
@@ -569,8 +646,10 @@ public final class Utils {
         if (date == null) {
             return fallback;
         }
-        format.setTimeZone(UTC);
-        return format.format(date);
+        synchronized (format) {
+            format.setTimeZone(UTC);
+            return format.format(date);
+        }
     }
 
     /**
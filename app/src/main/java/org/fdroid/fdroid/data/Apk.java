@@ -178,7 +178,7 @@ public class Apk extends ValueObject implements Comparable<Apk>, Parcelable {
                     added = Utils.parseDate(cursor.getString(i), null);
                     break;
                 case Cols.FEATURES:
-                    features = Utils.parseCommaSeparatedString(cursor.getString(i));
+                    features = Utils.parseStringArray(cursor.getBlob(i));
                     break;
                 case Cols.Package.PACKAGE_NAME:
                     packageName = cursor.getString(i);
@@ -211,13 +211,13 @@ public class Apk extends ValueObject implements Comparable<Apk>, Parcelable {
                     apkName = cursor.getString(i);
                     break;
                 case Cols.REQUESTED_PERMISSIONS:
-                    requestedPermissions = convertToRequestedPermissions(cursor.getString(i));
+                    requestedPermissions = convertToRequestedPermissions(cursor.getBlob(i));
                     break;
                 case Cols.NATIVE_CODE:
-                    nativecode = Utils.parseCommaSeparatedString(cursor.getString(i));
+                    nativecode = Utils.parseStringArray(cursor.getBlob(i));
                     break;
                 case Cols.INCOMPATIBLE_REASONS:
-                    incompatibleReasons = Utils.parseCommaSeparatedString(cursor.getString(i));
+                    incompatibleReasons = Utils.parseStringArray(cursor.getBlob(i));
                     break;
                 case Cols.REPO_ID:
                     repoId = cursor.getInt(i);
@@ -359,10 +359,10 @@ public class Apk extends ValueObject implements Comparable<Apk>, Parcelable {
         values.put(Cols.OBB_PATCH_FILE, obbPatchFile);
         values.put(Cols.OBB_PATCH_FILE_SHA256, obbPatchFileSha256);
         values.put(Cols.ADDED_DATE, Utils.formatDate(added, ""));
-        values.put(Cols.REQUESTED_PERMISSIONS, Utils.serializeCommaSeparatedString(requestedPermissions));
-        values.put(Cols.FEATURES, Utils.serializeCommaSeparatedString(features));
-        values.put(Cols.NATIVE_CODE, Utils.serializeCommaSeparatedString(nativecode));
-        values.put(Cols.INCOMPATIBLE_REASONS, Utils.serializeCommaSeparatedString(incompatibleReasons));
+        values.put(Cols.REQUESTED_PERMISSIONS, Utils.serializeStringArray(requestedPermissions));
+        values.put(Cols.FEATURES, Utils.serializeStringArray(features));
+        values.put(Cols.NATIVE_CODE, Utils.serializeStringArray(nativecode));
+        values.put(Cols.INCOMPATIBLE_REASONS, Utils.serializeStringArray(incompatibleReasons));
         values.put(Cols.AntiFeatures.ANTI_FEATURES, Utils.serializeCommaSeparatedString(antiFeatures));
         values.put(Cols.IS_COMPATIBLE, compatible ? 1 : 0);
         return values;
@@ -474,8 +474,8 @@ public class Apk extends ValueObject implements Comparable<Apk>, Parcelable {
     }
 
 
-    private String[] convertToRequestedPermissions(String permissionsFromDb) {
-        String[] array = Utils.parseCommaSeparatedString(permissionsFromDb);
+    private String[] convertToRequestedPermissions(byte[] permissionsFromDb) {
+        String[] array = Utils.parseStringArray(permissionsFromDb);
         if (array != null) {
             HashSet<String> requestedPermissionsSet = new HashSet<>();
             for (String permission : array) {
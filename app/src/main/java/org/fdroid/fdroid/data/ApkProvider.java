@@ -5,6 +5,7 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -567,7 +568,7 @@ public class ApkProvider extends FDroidProvider {
 
         removeFieldsFromOtherTables(values);
         validateFields(Cols.ALL, values);
-        long newId = db().insertOrThrow(getTableName(), null, values);
+        long newId = insertApk(values);
 
         if (saveAntiFeatures) {
             ensureAntiFeatures(antiFeatures, newId);
@@ -579,6 +580,13 @@ public class ApkProvider extends FDroidProvider {
         return getApkUri(newId);
     }
 
+    /**
+     * @return The rowid of the new row.
+     */
+    protected long insertApk(ContentValues values) {
+        return db().insertOrThrow(getTableName(), null, values);
+    }
+
     protected void ensureAntiFeatures(String[] antiFeatures, long apkId) {
         db().delete(getApkAntiFeatureJoinTableName(),
                 ApkAntiFeatureJoinTable.Cols.APK_ID + " = ?",
@@ -596,7 +604,7 @@ public class ApkProvider extends FDroidProvider {
 
                 antiFeatureSet.add(antiFeatureName);
 
-                long antiFeatureId = ensureAntiFeature(antiFeatureName);
+                long antiFeatureId = ensureAntiFeature(db(), antiFeatureName);
                 ContentValues categoryValues = new ContentValues(2);
                 categoryValues.put(ApkAntiFeatureJoinTable.Cols.APK_ID, apkId);
                 categoryValues.put(ApkAntiFeatureJoinTable.Cols.ANTI_FEATURE_ID, antiFeatureId);
@@ -605,9 +613,9 @@ public class ApkProvider extends FDroidProvider {
         }
     }
 
-    protected long ensureAntiFeature(String antiFeatureName) {
+    static long ensureAntiFeature(SQLiteDatabase db, String antiFeatureName) {
         long antiFeatureId = 0;
-        Cursor cursor = db().query(AntiFeatureTable.NAME, new String[]{AntiFeatureTable.Cols.ROW_ID},
+        Cursor cursor = db.query(AntiFeatureTable.NAME, new String[]{AntiFeatureTable.Cols.ROW_ID},
                 AntiFeatureTable.Cols.NAME + " = ?", new String[]{antiFeatureName}, null, null, null);
         if (cursor != null) {
             if (cursor.getCount() > 0) {
@@ -620,7 +628,7 @@ public class ApkProvider extends FDroidProvider {
         if (antiFeatureId <= 0) {
             ContentValues values = new ContentValues(1);
             values.put(AntiFeatureTable.Cols.NAME, antiFeatureName);
-            antiFeatureId = db().insert(AntiFeatureTable.NAME, null, values);
+            antiFeatureId = db.insert(AntiFeatureTable.NAME, null, values);
         }
 
         return antiFeatureId;
@@ -23,6 +23,7 @@ import android.util.Log;
 import com.fasterxml.jackson.annotation.JacksonInject;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 
 import org.apache.commons.io.filefilter.RegexFileFilter;
 import org.fdroid.fdroid.Preferences;
@@ -225,6 +226,11 @@ public class App extends ValueObject implements Comparable<App>, Parcelable {
 
         checkCursorPosition(cursor);
 
+        int prefsColumnsFound = 0;
+        int ignoreThisUpdate = 0;
+        boolean ignoreAllUpdates = false;
+        boolean ignoreVulnerabilities = false;
+
         final int cursorColumnCount = cursor.getColumnCount();
         for (int i = 0; i < cursorColumnCount; i++) {
             final String n = cursor.getColumnName(i);
@@ -311,16 +317,16 @@ public class App extends ValueObject implements Comparable<App>, Parcelable {
                     upstreamVersionName = cursor.getString(i);
                     break;
                 case Cols.ADDED:
-                    added = Utils.parseDate(cursor.getString(i), null);
+                    added = cursor.isNull(i) ? null : new Date(cursor.getLong(i));
                     break;
                 case Cols.LAST_UPDATED:
-                    lastUpdated = Utils.parseDate(cursor.getString(i), null);
+                    lastUpdated = cursor.isNull(i) ? null : new Date(cursor.getLong(i));
                     break;
                 case Cols.ANTI_FEATURES:
-                    antiFeatures = Utils.parseCommaSeparatedString(cursor.getString(i));
+                    antiFeatures = Utils.parseStringArray(cursor.getBlob(i));
                     break;
                 case Cols.REQUIREMENTS:
-                    requirements = Utils.parseCommaSeparatedString(cursor.getString(i));
+                    requirements = Utils.parseStringArray(cursor.getBlob(i));
                     break;
                 case Cols.ICON_URL:
                     iconUrl = cursor.getString(i);
@@ -335,19 +341,19 @@ public class App extends ValueObject implements Comparable<App>, Parcelable {
                     tvBanner = cursor.getString(i);
                     break;
                 case Cols.PHONE_SCREENSHOTS:
-                    phoneScreenshots = Utils.parseCommaSeparatedString(cursor.getString(i));
+                    phoneScreenshots = Utils.parseStringArray(cursor.getBlob(i));
                     break;
                 case Cols.SEVEN_INCH_SCREENSHOTS:
-                    sevenInchScreenshots = Utils.parseCommaSeparatedString(cursor.getString(i));
+                    sevenInchScreenshots = Utils.parseStringArray(cursor.getBlob(i));
                     break;
                 case Cols.TEN_INCH_SCREENSHOTS:
-                    tenInchScreenshots = Utils.parseCommaSeparatedString(cursor.getString(i));
+                    tenInchScreenshots = Utils.parseStringArray(cursor.getBlob(i));
                     break;
                 case Cols.TV_SCREENSHOTS:
-                    tvScreenshots = Utils.parseCommaSeparatedString(cursor.getString(i));
+                    tvScreenshots = Utils.parseStringArray(cursor.getBlob(i));
                     break;
                 case Cols.WEAR_SCREENSHOTS:
-                    wearScreenshots = Utils.parseCommaSeparatedString(cursor.getString(i));
+                    wearScreenshots = Utils.parseStringArray(cursor.getBlob(i));
                     break;
                 case Cols.IS_APK:
                     isApk = cursor.getInt(i) == 1;
@@ -361,12 +367,30 @@ public class App extends ValueObject implements Comparable<App>, Parcelable {
                 case Cols.InstalledApp.SIGNATURE:
                     installedSig = cursor.getString(i);
                     break;
+                case Cols.Prefs.IGNORE_THIS_UPDATE:
+                    ignoreThisUpdate = cursor.getInt(i);
+                    prefsColumnsFound++;
+                    break;
+                case Cols.Prefs.IGNORE_ALL_UPDATES:
+                    ignoreAllUpdates = cursor.getInt(i) > 0;
+                    prefsColumnsFound++;
+                    break;
+                case Cols.Prefs.IGNORE_VULNERABILITIES:
+                    ignoreVulnerabilities = cursor.getInt(i) > 0;
+                    prefsColumnsFound++;
+                    break;
+                case Cols.IS_FILTERED:
                 case "_id":
                     break;
                 default:
                     Log.e(TAG, "Unknown column name " + n);
             }
         }
+
+        // Only when all of them were selected, otherwise getPrefs() looks them up as usual.
+        if (prefsColumnsFound == 3) {
+            prefs = new AppPrefs(ignoreThisUpdate, ignoreAllUpdates, ignoreVulnerabilities);
+        }
     }
 
     /**
@@ -468,8 +492,12 @@ public class App extends ValueObject implements Comparable<App>, Parcelable {
      * On {@code < android-24}, the user can only set a single
      * locale with a country as an option, so here it makes sense to try to fallback
      * on other country-specific locales, rather than English.
+     * <p>
+     * Locales which these rules can never pick are already dropped while parsing,
+     * see {@link LocalizedDeserializer}.
      */
     @JsonProperty("localized")
+    @JsonDeserialize(using = LocalizedDeserializer.class)
     private void setLocalized(Map<String, Map<String, Object>> localized) { // NOPMD
         Locale defaultLocale = Locale.getDefault();
         String languageTag = defaultLocale.getLanguage();
@@ -635,6 +663,15 @@ public class App extends ValueObject implements Comparable<App>, Parcelable {
     }
 
     public String getIconUrl(Context context) {
+        return getIconUrl(context, repoId, packageName, iconUrl, iconFromApk);
+    }
+
+    /**
+     * The same as {@link #getIconUrl(Context)}, for when only the few columns it needs have been
+     * read, rather than a whole {@link App}.
+     */
+    public static String getIconUrl(Context context, long repoId, String packageName,
+                                    String iconUrl, String iconFromApk) {
         Repo repo = RepoProvider.Helper.findById(context, repoId);
         if (TextUtils.isEmpty(iconUrl)) {
             if (TextUtils.isEmpty(iconFromApk)){
@@ -958,23 +995,23 @@ public class App extends ValueObject implements Comparable<App>, Parcelable {
         values.put(Cols.LITECOIN, litecoin);
         values.put(Cols.FLATTR_ID, flattrID);
         values.put(Cols.LIBERAPAY_ID, liberapayID);
-        values.put(Cols.ADDED, Utils.formatDate(added, ""));
-        values.put(Cols.LAST_UPDATED, Utils.formatDate(lastUpdated, ""));
+        values.put(Cols.ADDED, added == null ? null : added.getTime());
+        values.put(Cols.LAST_UPDATED, lastUpdated == null ? null : lastUpdated.getTime());
         values.put(Cols.PREFERRED_SIGNER, preferredSigner);
         values.put(Cols.SUGGESTED_VERSION_CODE, suggestedVersionCode);
         values.put(Cols.UPSTREAM_VERSION_NAME, upstreamVersionName);
         values.put(Cols.UPSTREAM_VERSION_CODE, upstreamVersionCode);
         values.put(Cols.ForWriting.Categories.CATEGORIES, Utils.serializeCommaSeparatedString(categories));
-        values.put(Cols.ANTI_FEATURES, Utils.serializeCommaSeparatedString(antiFeatures));
-        values.put(Cols.REQUIREMENTS, Utils.serializeCommaSeparatedString(requirements));
+        values.put(Cols.ANTI_FEATURES, Utils.serializeStringArray(antiFeatures));
+        values.put(Cols.REQUIREMENTS, Utils.serializeStringArray(requirements));
         values.put(Cols.FEATURE_GRAPHIC, featureGraphic);
         values.put(Cols.PROMO_GRAPHIC, promoGraphic);
         values.put(Cols.TV_BANNER, tvBanner);
-        values.put(Cols.PHONE_SCREENSHOTS, Utils.serializeCommaSeparatedString(phoneScreenshots));
-        values.put(Cols.SEVEN_INCH_SCREENSHOTS, Utils.serializeCommaSeparatedString(sevenInchScreenshots));
-        values.put(Cols.TEN_INCH_SCREENSHOTS, Utils.serializeCommaSeparatedString(tenInchScreenshots));
-        values.put(Cols.TV_SCREENSHOTS, Utils.serializeCommaSeparatedString(tvScreenshots));
-        values.put(Cols.WEAR_SCREENSHOTS, Utils.serializeCommaSeparatedString(wearScreenshots));
+        values.put(Cols.PHONE_SCREENSHOTS, Utils.serializeStringArray(phoneScreenshots));
+        values.put(Cols.SEVEN_INCH_SCREENSHOTS, Utils.serializeStringArray(sevenInchScreenshots));
+        values.put(Cols.TEN_INCH_SCREENSHOTS, Utils.serializeStringArray(tenInchScreenshots));
+        values.put(Cols.TV_SCREENSHOTS, Utils.serializeStringArray(tvScreenshots));
+        values.put(Cols.WEAR_SCREENSHOTS, Utils.serializeStringArray(wearScreenshots));
         values.put(Cols.IS_COMPATIBLE, compatible ? 1 : 0);
         values.put(Cols.IS_APK, isApk ? 1 : 0);
 
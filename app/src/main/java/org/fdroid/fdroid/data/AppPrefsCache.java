@@ -0,0 +1,72 @@
+package org.fdroid.fdroid.data;
+
+import android.content.Context;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The {@link AppPrefs} of each app which has been looked up so far, keyed by package name, so
+ * that asking for the same app again (e.g. from {@link App#canAndWantToUpdate(Context)}) doesn't
+ * have to query the database. Apps without any preferences are remembered too.
+ * <p>
+ * {@link AppPrefs} are mutable, so the cache keeps its own copy of each and hands out clones.
+ */
+final class AppPrefsCache {
+
+    /**
+     * Stands in for apps which have no row in {@link Schema.AppPrefsTable}, because a
+     * {@link ConcurrentHashMap} can't hold null values. Compared by identity only.
+     */
+    private static final AppPrefs NONE = AppPrefs.createDefault();
+
+    private static final ConcurrentHashMap<String, AppPrefs> PREFS = new ConcurrentHashMap<>();
+
+    /**
+     * Bumped each time the cache is invalidated. If this changes while prefs are being read
+     * from the database, then what was read may already be out of date and is not kept.
+     */
+    private static int generation;
+
+    private AppPrefsCache() {
+    }
+
+    @Nullable
+    static AppPrefs get(Context context, String packageName) {
+        AppPrefs prefs = PREFS.get(packageName);
+        if (prefs == null) {
+            prefs = load(context, packageName);
+        }
+        return prefs == NONE ? null : prefs.createClone();
+    }
+
+    /**
+     * Must be called after every change to {@link Schema.AppPrefsTable}, but before anyone is
+     * notified of that change.
+     */
+    static void invalidate(String packageName) {
+        synchronized (AppPrefsCache.class) {
+            generation++;
+            PREFS.remove(packageName);
+        }
+    }
+
+    private static AppPrefs load(Context context, String packageName) {
+        int loadingGeneration;
+        synchronized (AppPrefsCache.class) {
+            loadingGeneration = generation;
+        }
+
+        AppPrefs loaded = AppPrefsProvider.Helper.queryPrefs(context, packageName);
+        if (loaded == null) {
+            loaded = NONE;
+        }
+
+        synchronized (AppPrefsCache.class) {
+            if (generation == loadingGeneration) {
+                PREFS.put(packageName, loaded);
+            }
+        }
+        return loaded;
+    }
+}
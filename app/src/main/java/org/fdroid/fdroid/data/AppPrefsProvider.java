@@ -38,9 +38,18 @@ public class AppPrefsProvider extends FDroidProvider {
             return prefs == null ? AppPrefs.createDefault() : prefs;
         }
 
+        /**
+         * Served from {@link AppPrefsCache}, so this only queries the database the first time
+         * it is asked about an app, or after its preferences changed.
+         */
         @Nullable
         public static AppPrefs getPrefsOrNull(Context context, App app) {
-            Cursor cursor = context.getContentResolver().query(getAppUri(app.packageName), Cols.ALL, null, null, null);
+            return AppPrefsCache.get(context, app.packageName);
+        }
+
+        @Nullable
+        static AppPrefs queryPrefs(Context context, String packageName) {
+            Cursor cursor = context.getContentResolver().query(getAppUri(packageName), Cols.ALL, null, null, null);
             if (cursor == null) {
                 return null;
             }
@@ -144,6 +153,7 @@ public class AppPrefsProvider extends FDroidProvider {
     @Override
     public Uri insert(Uri uri, ContentValues values) {
         db().insertOrThrow(getTableName(), null, values);
+        AppPrefsCache.invalidate(values.getAsString(Cols.PACKAGE_NAME));
         Log.d(TAG, "insert: notifying " + AppProvider.getCanUpdateUri());
         getContext().getContentResolver().notifyChange(AppProvider.getCanUpdateUri(), null);
         return getAppUri(values.getAsString(Cols.PACKAGE_NAME));
@@ -157,6 +167,7 @@ public class AppPrefsProvider extends FDroidProvider {
 
         QuerySelection query = new QuerySelection(where, whereArgs).add(querySingle(uri.getLastPathSegment()));
         int count = db().update(getTableName(), values, query.getSelection(), query.getArgs());
+        AppPrefsCache.invalidate(uri.getLastPathSegment());
         Log.d(TAG, "update: notifying " + AppProvider.getCanUpdateUri());
         getContext().getContentResolver().notifyChange(AppProvider.getCanUpdateUri(), null);
         return count;
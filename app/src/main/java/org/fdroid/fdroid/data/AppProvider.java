@@ -5,7 +5,9 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.net.Uri;
+import android.os.CancellationSignal;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -17,9 +19,12 @@ import org.fdroid.fdroid.Preferences;
 import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.data.Schema.ApkAntiFeatureJoinTable;
 import org.fdroid.fdroid.data.Schema.ApkTable;
+import org.fdroid.fdroid.data.Schema.AppAntiFeatureJoinTable;
 import org.fdroid.fdroid.data.Schema.AppMetadataTable;
 import org.fdroid.fdroid.data.Schema.AppMetadataTable.Cols;
 import org.fdroid.fdroid.data.Schema.AppPrefsTable;
+import org.fdroid.fdroid.data.Schema.AppRequirementJoinTable;
+import org.fdroid.fdroid.data.Schema.AppSearchTable;
 import org.fdroid.fdroid.data.Schema.CatJoinTable;
 import org.fdroid.fdroid.data.Schema.CategoryTable;
 import org.fdroid.fdroid.data.Schema.InstalledAppTable;
@@ -390,12 +395,54 @@ public class AppProvider extends FDroidProvider {
                 case Cols._COUNT:
                     appendCountField();
                     break;
+                case Cols.IS_FILTERED:
+                    addIsFilteredField();
+                    break;
+                case Cols.Prefs.IGNORE_ALL_UPDATES:
+                    addPrefsField(AppPrefsTable.Cols.IGNORE_ALL_UPDATES, Cols.Prefs.IGNORE_ALL_UPDATES);
+                    break;
+                case Cols.Prefs.IGNORE_THIS_UPDATE:
+                    addPrefsField(AppPrefsTable.Cols.IGNORE_THIS_UPDATE, Cols.Prefs.IGNORE_THIS_UPDATE);
+                    break;
+                case Cols.Prefs.IGNORE_VULNERABILITIES:
+                    addPrefsField(AppPrefsTable.Cols.IGNORE_VULNERABILITIES, Cols.Prefs.IGNORE_VULNERABILITIES);
+                    break;
                 default:
                     appendField(field, getTableName());
                     break;
             }
         }
 
+        /**
+         * Whether the user preferences say to grey out this app, see {@link org.fdroid.fdroid.AppFilter}.
+         * Both checks are lookups in the primary key of a join table, rather than decoding
+         * {@link Cols#REQUIREMENTS} and {@link Cols#ANTI_FEATURES} for each app.
+         */
+        private void addIsFilteredField() {
+            final String rowId = getTableName() + "." + Cols.ROW_ID;
+            List<String> conditions = new ArrayList<>(2);
+            if (!Preferences.get().filterAppsRequiringRoot()) {
+                conditions.add("EXISTS (SELECT 1 FROM " + getAppRequirementJoinTableName() +
+                        " WHERE " + AppRequirementJoinTable.Cols.APP_METADATA_ID + " = " + rowId +
+                        " AND " + AppRequirementJoinTable.Cols.REQUIREMENT + " = 'root')");
+            }
+            if (Preferences.get().filterAppsWithAntiFeatures()) {
+                conditions.add("EXISTS (SELECT 1 FROM " + getAppAntiFeatureJoinTableName() +
+                        " WHERE " + AppAntiFeatureJoinTable.Cols.APP_METADATA_ID + " = " + rowId + ")");
+            }
+            String isFiltered = conditions.isEmpty() ? "0" : "(" + TextUtils.join(" OR ", conditions) + ")";
+            appendField(isFiltered + " AS " + Cols.IS_FILTERED);
+        }
+
+        /**
+         * Apps the user never set any preferences for have no row to join to, in which case
+         * this is 0, the same as {@link AppPrefs#createDefault()}.
+         */
+        private void addPrefsField(String fieldName, String alias) {
+            leftJoinToPrefs();
+            appendField("COALESCE(prefs." + fieldName + ", 0) AS " + alias);
+        }
+
         private void appendCountField() {
             countFieldAppended = true;
             appendField("COUNT( DISTINCT " + getTableName() + "." + Cols.ROW_ID + " ) AS " + Cols._COUNT);
@@ -465,6 +512,10 @@ public class AppProvider extends FDroidProvider {
     private static final String PATH_CALC_SUGGESTED_APKS = "calcNonRepoDetailsFromIndex";
     private static final String PATH_INSTALLED_WITH_KNOWN_VULNS = "installedWithKnownVulns";
 
+    private static final String QUERY_PAGE_SIZE = "pageSize";
+    private static final String QUERY_AFTER_NAME = "afterName";
+    private static final String QUERY_AFTER_ID = "afterId";
+
     private static final int CAN_UPDATE = CODE_SINGLE + 1;
     private static final int INSTALLED = CAN_UPDATE + 1;
     private static final int SEARCH_TEXT = INSTALLED + 1;
@@ -580,6 +631,25 @@ public class AppProvider extends FDroidProvider {
                 .build();
     }
 
+    /**
+     * A single page of the apps from {@code uri}, sorted by name and then by rowid. Rather than
+     * using an offset, each page starts right after the last app of the page before it, which
+     * SQLite can seek to without going through all of the apps in between. Apps without a name
+     * sort as if their name was empty, so that they can be paged through like the others.
+     *
+     * @param afterName The name of the last app on the previous page, or null for the first page.
+     *                  Use an empty string if that app has no name.
+     * @param afterId   The {@code _id} of the last app on the previous page.
+     */
+    public static Uri getPageUri(Uri uri, int pageSize, @Nullable String afterName, long afterId) {
+        Uri.Builder builder = uri.buildUpon()
+                .appendQueryParameter(QUERY_PAGE_SIZE, Integer.toString(pageSize));
+        if (afterName != null) {
+            builder.appendQueryParameter(QUERY_AFTER_NAME, afterName)
+                    .appendQueryParameter(QUERY_AFTER_ID, Long.toString(afterId));
+        }
+        return builder.build();
+    }
 
     public static Uri getSearchUri(String query) {
         if (TextUtils.isEmpty(query)) {
@@ -601,6 +671,14 @@ public class AppProvider extends FDroidProvider {
         return CatJoinTable.NAME;
     }
 
+    protected String getAppAntiFeatureJoinTableName() {
+        return AppAntiFeatureJoinTable.NAME;
+    }
+
+    protected String getAppRequirementJoinTableName() {
+        return AppRequirementJoinTable.NAME;
+    }
+
     protected String getApkTableName() {
         return ApkTable.NAME;
     }
@@ -648,6 +726,53 @@ public class AppProvider extends FDroidProvider {
     }
 
     private AppQuerySelection querySearch(String query) {
+        String match = getSearchMatch(query, null);
+        if (match == null) {
+            return queryLike(query);
+        }
+
+        final String selection = getTableName() + "." + Cols.ROW_ID + " IN (" +
+                "SELECT " + AppSearchTable.Cols.DOC_ID + " FROM " + AppSearchTable.NAME +
+                " WHERE " + AppSearchTable.NAME + " MATCH ?)";
+        return new AppQuerySelection(selection, new String[]{match});
+    }
+
+    /**
+     * Turns whatever was typed into the search box into an FTS query, requiring each word to
+     * be the start of a word in {@link AppSearchTable}. Words are split in the same place the
+     * default FTS tokenizer splits them, and anything which would otherwise be treated as
+     * FTS query syntax (quotes, {@code -}, {@code OR}, etc) is dropped or lower cased.
+     *
+     * @param column Only match against this column of {@link AppSearchTable}, or any if null.
+     * @return null if there is nothing in {@code query} which could be looked up in the index.
+     */
+    @Nullable
+    public static String getSearchMatch(String query, @Nullable String column) {
+        StringBuilder match = new StringBuilder();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= query.length(); i++) {
+            char c = i < query.length() ? query.charAt(i) : ' ';
+            if (c >= 128 || Character.isLetterOrDigit(c)) {
+                word.append(c < 128 ? Character.toLowerCase(c) : c);
+            } else if (word.length() > 0) {
+                if (match.length() > 0) {
+                    match.append(' ');
+                }
+                if (column != null) {
+                    match.append(column).append(':');
+                }
+                match.append(word).append('*');
+                word.setLength(0);
+            }
+        }
+        return match.length() == 0 ? null : match.toString();
+    }
+
+    /**
+     * Used for searches which {@link #getSearchMatch(String, String)} can't express, e.g.
+     * those only made up of punctuation.
+     */
+    private AppQuerySelection queryLike(String query) {
         // Put in a Set to remove duplicates
         final Set<String> keywordSet = new HashSet<>(Arrays.asList(query.split("\\s")));
 
@@ -768,6 +893,28 @@ public class AppProvider extends FDroidProvider {
         return new AppQuerySelection(selection, args);
     }
 
+    /**
+     * The {@link CancellationSignal} of the query being run on this thread, if any. This is
+     * handed to {@link #runQuery} this way rather than as an argument, so that subclasses
+     * overriding {@link #query(Uri, String[], String, String[], String)} are still used.
+     */
+    private static final ThreadLocal<CancellationSignal> CANCELLATION_SIGNAL = new ThreadLocal<>();
+
+    /**
+     * Lets a {@link androidx.loader.content.CursorLoader} which has been superseded (e.g. by
+     * the user typing another letter into the search box) abort its query part way through.
+     */
+    @Override
+    public Cursor query(@NonNull Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder, CancellationSignal cancellationSignal) {
+        CANCELLATION_SIGNAL.set(cancellationSignal);
+        try {
+            return query(uri, projection, selection, selectionArgs, sortOrder);
+        } finally {
+            CANCELLATION_SIGNAL.remove();
+        }
+    }
+
     @Override
     public Cursor query(@NonNull Uri uri, String[] projection, String customSelection, String[] selectionArgs, String sortOrder) {
         AppQuerySelection selection = new AppQuerySelection(customSelection, selectionArgs);
@@ -785,7 +932,7 @@ public class AppProvider extends FDroidProvider {
         List<String> pathSegments = uri.getPathSegments();
         switch (MATCHER.match(uri)) {
             case CALC_PREFERRED_METADATA:
-                updatePreferredMetadata();
+                updatePreferredMetadata(getTableName(), null);
                 return null;
 
             case CODE_LIST:
@@ -818,11 +965,11 @@ public class AppProvider extends FDroidProvider {
                 break;
 
             case SEARCH_INSTALLED:
-                selection = querySearch(uri.getLastPathSegment()).add(queryInstalled());
+                selection = selection.add(querySearch(uri.getLastPathSegment())).add(queryInstalled());
                 break;
 
             case SEARCH_CAN_UPDATE:
-                selection = querySearch(uri.getLastPathSegment()).add(queryCanUpdate());
+                selection = selection.add(querySearch(uri.getLastPathSegment())).add(queryCanUpdate());
                 break;
 
             case CATEGORY:
@@ -857,10 +1004,40 @@ public class AppProvider extends FDroidProvider {
             selection = selection.add(queryHighestPriority());
         }
 
+        String pageSize = uri.getQueryParameter(QUERY_PAGE_SIZE);
+        if (pageSize != null) {
+            limit = Integer.parseInt(pageSize);
+            sortOrder = sortName() + " COLLATE LOCALIZED, " + getTableName() + "." + Cols.ROW_ID;
+            String afterName = uri.getQueryParameter(QUERY_AFTER_NAME);
+            if (afterName != null) {
+                selection = selection.add(queryAfter(afterName, uri.getQueryParameter(QUERY_AFTER_ID)));
+            }
+        }
+
         return runQuery(uri, selection, projection, sortOrder, limit);
     }
 
+    /**
+     * Apps with every search term in their name come first, then those with every term in
+     * their summary, then the rest. Each tier is a single lookup in {@link AppSearchTable}.
+     */
     private String getSearchSortOrder(String searchTerms) {
+        final String nameMatch = getSearchMatch(searchTerms, AppSearchTable.Cols.NAME);
+        if (nameMatch == null) {
+            return getLikeSortOrder(searchTerms);
+        }
+        final String summaryMatch = getSearchMatch(searchTerms, AppSearchTable.Cols.SUMMARY);
+
+        final String rowId = getTableName() + "." + Cols.ROW_ID;
+        final String matchQuery = "SELECT " + AppSearchTable.Cols.DOC_ID + " FROM " + AppSearchTable.NAME +
+                " WHERE " + AppSearchTable.NAME + " MATCH ";
+        return "CASE" +
+                " WHEN " + rowId + " IN (" + matchQuery + DatabaseUtils.sqlEscapeString(nameMatch) + ") THEN 1" +
+                " WHEN " + rowId + " IN (" + matchQuery + DatabaseUtils.sqlEscapeString(summaryMatch) + ") THEN 2" +
+                " ELSE 3 END, " + getTableName() + "." + Cols.LAST_UPDATED + " DESC";
+    }
+
+    private String getLikeSortOrder(String searchTerms) {
         final String LAST_UPDATED = Schema.AppMetadataTable.NAME + "." + Schema.AppMetadataTable.Cols.LAST_UPDATED + " desc";
         final String NAME_COL = Schema.AppMetadataTable.NAME + "." + Schema.AppMetadataTable.Cols.NAME;
         final String SUMMARY_COL = Schema.AppMetadataTable.NAME + "." + Schema.AppMetadataTable.Cols.SUMMARY;
@@ -880,9 +1057,28 @@ public class AppProvider extends FDroidProvider {
                 titleCase.toString(), summaryCase.toString(), LAST_UPDATED);
     }
 
+    /**
+     * Apps which come after {@code afterName} and {@code afterId} when sorted the same way as
+     * {@link #getPageUri(Uri, int, String, long)} does.
+     */
+    private AppQuerySelection queryAfter(String afterName, String afterId) {
+        final String name = sortName();
+        final String selection = "(" + name + " > ? COLLATE LOCALIZED OR (" + name + " = ? COLLATE LOCALIZED AND " +
+                getTableName() + "." + Cols.ROW_ID + " > ?))";
+        return new AppQuerySelection(selection, new String[]{afterName, afterName, afterId});
+    }
+
+    /**
+     * The name used to sort pages by, which is never NULL, as {@code NULL > ?} would leave out
+     * every app without a name.
+     */
+    private String sortName() {
+        return "COALESCE(" + getTableName() + "." + Cols.NAME + ", '')";
+    }
+
     private AppQuerySelection queryNewlyAdded() {
         final String selection = getTableName() + "." + Cols.ADDED + " > ?";
-        final String[] args = {Utils.formatDate(Preferences.get().calcMaxHistory(), "")};
+        final String[] args = {Long.toString(Preferences.get().calcMaxHistory().getTime())};
         return new AppQuerySelection(selection, args);
     }
 
@@ -890,7 +1086,7 @@ public class AppProvider extends FDroidProvider {
         final String app = getTableName();
         final String lastUpdated = app + "." + Cols.LAST_UPDATED;
         final String selection = app + "." + Cols.ADDED + " != " + lastUpdated + " AND " + lastUpdated + " > ?";
-        final String[] args = {Utils.formatDate(Preferences.get().calcMaxHistory(), "")};
+        final String[] args = {Long.toString(Preferences.get().calcMaxHistory().getTime())};
         return new AppQuerySelection(selection, args);
     }
 
@@ -912,7 +1108,7 @@ public class AppProvider extends FDroidProvider {
         query.addOrderBy(sortOrder);
         query.addLimit(limit);
 
-        Cursor cursor = LoggingQuery.query(db(), query.toString(), query.getArgs());
+        Cursor cursor = LoggingQuery.query(db(), query.toString(), query.getArgs(), CANCELLATION_SIGNAL.get());
         cursor.setNotificationUri(getContext().getContentResolver(), uri);
         return cursor;
     }
@@ -927,8 +1123,17 @@ public class AppProvider extends FDroidProvider {
 
         final String catJoin = getCatJoinTableName();
         final String app = getTableName();
-        String query = "DELETE FROM " + catJoin + " WHERE " + CatJoinTable.Cols.APP_METADATA_ID + " IN " +
-                "(SELECT " + Cols.ROW_ID + " FROM " + app + " WHERE " + app + "." + Cols.REPO_ID + " = ?)";
+        final String repoApps = "(SELECT " + Cols.ROW_ID + " FROM " + app + " WHERE " + app + "." + Cols.REPO_ID + " = ?)";
+        String query = "DELETE FROM " + catJoin + " WHERE " + CatJoinTable.Cols.APP_METADATA_ID + " IN " + repoApps;
+        db().execSQL(query, new String[]{String.valueOf(repoId)});
+
+        query = "DELETE FROM " + getAppAntiFeatureJoinTableName() + " WHERE " + AppAntiFeatureJoinTable.Cols.APP_METADATA_ID + " IN " + repoApps;
+        db().execSQL(query, new String[]{String.valueOf(repoId)});
+
+        query = "DELETE FROM " + getAppRequirementJoinTableName() + " WHERE " + AppRequirementJoinTable.Cols.APP_METADATA_ID + " IN " + repoApps;
+        db().execSQL(query, new String[]{String.valueOf(repoId)});
+
+        query = "DELETE FROM " + AppSearchTable.NAME + " WHERE " + AppSearchTable.Cols.DOC_ID + " IN " + repoApps;
         db().execSQL(query, new String[]{String.valueOf(repoId)});
 
         AppQuerySelection selection = new AppQuerySelection(where, whereArgs).add(queryRepo(repoId));
@@ -948,14 +1153,7 @@ public class AppProvider extends FDroidProvider {
         values.remove(Cols.Package.PACKAGE_NAME);
         values.put(Cols.PACKAGE_ID, packageId);
 
-        if (!values.containsKey(Cols.DESCRIPTION) || values.getAsString(Cols.DESCRIPTION) == null) {
-            // the current structure assumes that description is always present and non-null
-            values.put(Cols.DESCRIPTION, "");
-        }
-
-        // Trim these to avoid unwanted newlines in the UI
-        values.put(Cols.SUMMARY, values.getAsString(Cols.SUMMARY).trim());
-        values.put(Cols.NAME, values.getAsString(Cols.NAME).trim());
+        cleanValuesForInsert(values);
 
         String[] categories = null;
         boolean saveCategories = false;
@@ -967,7 +1165,7 @@ public class AppProvider extends FDroidProvider {
             values.remove(Cols.ForWriting.Categories.CATEGORIES);
         }
 
-        long appMetadataId = db().insertOrThrow(getTableName(), null, values);
+        long appMetadataId = insertAppMetadata(values);
         if (!isApplyingBatch()) {
             Log.d(TAG, "insert: Notifying " + uri);
             getContext().getContentResolver().notifyChange(uri, null);
@@ -977,9 +1175,33 @@ public class AppProvider extends FDroidProvider {
             ensureCategories(categories, appMetadataId);
         }
 
+        ensureAntiFeatures(Utils.parseStringArray(values.getAsByteArray(Cols.ANTI_FEATURES)), appMetadataId);
+        ensureRequirements(Utils.parseStringArray(values.getAsByteArray(Cols.REQUIREMENTS)), appMetadataId);
+
         return getSpecificAppUri(values.getAsString(PackageTable.Cols.PACKAGE_NAME), values.getAsLong(Cols.REPO_ID));
     }
 
+    static void cleanValuesForInsert(ContentValues values) {
+        if (!values.containsKey(Cols.DESCRIPTION) || values.getAsString(Cols.DESCRIPTION) == null) {
+            // the current structure assumes that description is always present and non-null
+            values.put(Cols.DESCRIPTION, "");
+        }
+
+        // Trim these to avoid unwanted newlines in the UI
+        values.put(Cols.SUMMARY, values.getAsString(Cols.SUMMARY).trim());
+        values.put(Cols.NAME, values.getAsString(Cols.NAME).trim());
+    }
+
+    /**
+     * Writes a single row of app metadata, once all of the values from other tables
+     * (package, categories) have been resolved.
+     *
+     * @return The rowid of the new row.
+     */
+    protected long insertAppMetadata(ContentValues values) {
+        return db().insertOrThrow(getTableName(), null, values);
+    }
+
     protected void ensureCategories(String[] categories, long appMetadataId) {
         db().delete(getCatJoinTableName(), CatJoinTable.Cols.APP_METADATA_ID + " = ?", new String[]{Long.toString(appMetadataId)});
         if (categories != null) {
@@ -1003,6 +1225,32 @@ public class AppProvider extends FDroidProvider {
         }
     }
 
+    protected void ensureAntiFeatures(String[] antiFeatures, long appMetadataId) {
+        db().delete(getAppAntiFeatureJoinTableName(), AppAntiFeatureJoinTable.Cols.APP_METADATA_ID + " = ?",
+                new String[]{Long.toString(appMetadataId)});
+        if (antiFeatures != null) {
+            for (String antiFeatureName : new HashSet<>(Arrays.asList(antiFeatures))) {
+                ContentValues antiFeatureValues = new ContentValues(2);
+                antiFeatureValues.put(AppAntiFeatureJoinTable.Cols.APP_METADATA_ID, appMetadataId);
+                antiFeatureValues.put(AppAntiFeatureJoinTable.Cols.ANTI_FEATURE_ID, ApkProvider.ensureAntiFeature(db(), antiFeatureName));
+                db().insert(getAppAntiFeatureJoinTableName(), null, antiFeatureValues);
+            }
+        }
+    }
+
+    protected void ensureRequirements(String[] requirements, long appMetadataId) {
+        db().delete(getAppRequirementJoinTableName(), AppRequirementJoinTable.Cols.APP_METADATA_ID + " = ?",
+                new String[]{Long.toString(appMetadataId)});
+        if (requirements != null) {
+            for (String requirement : new HashSet<>(Arrays.asList(requirements))) {
+                ContentValues requirementValues = new ContentValues(2);
+                requirementValues.put(AppRequirementJoinTable.Cols.APP_METADATA_ID, appMetadataId);
+                requirementValues.put(AppRequirementJoinTable.Cols.REQUIREMENT, requirement);
+                db().insert(getAppRequirementJoinTableName(), null, requirementValues);
+            }
+        }
+    }
+
     @Override
     public int update(@NonNull Uri uri, ContentValues values, String where, String[] whereArgs) {
         if (MATCHER.match(uri) != CALC_SUGGESTED_APKS) {
@@ -1020,15 +1268,9 @@ public class AppProvider extends FDroidProvider {
         return 0;
     }
 
-    protected void updateAllAppDetails() {
-        updatePreferredMetadata();
-        updateCompatibleFlags();
-        updateSuggestedFromUpstream(null);
-    }
-
     /**
      * If the repo hasn't changed, then there are many things which we shouldn't waste time updating
-     * (compared to {@link AppProvider#updateAllAppDetails()}:
+     * (compared to committing a repo update in {@link TempAppProvider}):
      * <p>
      * + The "preferred metadata", as that is calculated based on repo with highest priority, and
      * only takes into account the package name, not specific versions, when figuring this out.
@@ -1043,24 +1285,39 @@ public class AppProvider extends FDroidProvider {
      * {@link android.app.IntentService} as described in https://gitlab.com/fdroid/fdroidclient/issues/520.
      */
     protected void updateSuggestedApks() {
-        updateSuggestedFromUpstream(null);
+        if (Preferences.get().isInMemorySuggestedVersionsEnabled()) {
+            try {
+                new SuggestedVersionCalculator(db(), getTableName(), getApkTableName())
+                        .calculate(Preferences.get().getUnstableUpdates());
+            } catch (InterruptedException e) {
+                // nothing was written, the next calculation will catch up
+                Thread.currentThread().interrupt();
+                Log.i(TAG, "Interrupted while calculating suggested versions");
+            }
+            return;
+        }
+        updateSuggestedFromUpstream(getTableName(), getApkTableName(), null);
         updateSuggestedFromLatest(null);
     }
 
     protected void updateSuggestedApk(String packageName) {
-        updateSuggestedFromUpstream(packageName);
+        updateSuggestedFromUpstream(getTableName(), getApkTableName(), packageName);
         updateSuggestedFromLatest(packageName);
     }
 
-    private void updatePreferredMetadata() {
+    /**
+     * @param app        The app metadata table to choose from. This has to contain the metadata from
+     *                   every repo, otherwise lower priority repos could end up being preferred.
+     * @param packageIds A query returning the {@link PackageTable} rowids to update, or null to
+     *                   update every package.
+     */
+    protected void updatePreferredMetadata(String app, @Nullable String packageIds) {
         Utils.debugLog(TAG, "Deciding on which metadata should take priority for each package.");
 
-        final String app = getTableName();
-
         final String highestPriority =
                 "SELECT MAX(r." + RepoTable.Cols.PRIORITY + ") " +
                         "FROM " + RepoTable.NAME + " AS r " +
-                        "JOIN " + getTableName() + " AS m ON (m." + Cols.REPO_ID + " = r." + RepoTable.Cols._ID + ") " +
+                        "JOIN " + app + " AS m ON (m." + Cols.REPO_ID + " = r." + RepoTable.Cols._ID + ") " +
                         "WHERE m." + Cols.PACKAGE_ID + " = " + "metadata." + Cols.PACKAGE_ID;
 
         String updateSql =
@@ -1071,7 +1328,11 @@ public class AppProvider extends FDroidProvider {
                         " JOIN " + RepoTable.NAME + " AS repo ON (metadata." + Cols.REPO_ID + " = repo." + RepoTable.Cols._ID + ") " +
                         " WHERE metadata." + Cols.PACKAGE_ID + " = " + PackageTable.NAME + "." + PackageTable.Cols.ROW_ID +
                         " AND repo." + RepoTable.Cols.PRIORITY + " = (" + highestPriority + ")" +
-                        ");";
+                        ")";
+
+        if (packageIds != null) {
+            updateSql += " WHERE " + PackageTable.Cols.ROW_ID + " IN (" + packageIds + ")";
+        }
 
         db().execSQL(updateSql);
     }
@@ -1080,7 +1341,7 @@ public class AppProvider extends FDroidProvider {
      * For each app, we want to set the isCompatible flag to 1 if any of the apks we know
      * about are compatible, and 0 otherwise.
      */
-    private void updateCompatibleFlags() {
+    protected void updateCompatibleFlags() {
         Utils.debugLog(TAG, "Calculating whether apps are compatible, based on whether any of their apks are compatible");
 
         final String apk = getApkTableName();
@@ -1105,24 +1366,31 @@ public class AppProvider extends FDroidProvider {
      *
      * @see #updateSuggestedFromLatest(String)
      */
-    private void updateSuggestedFromUpstream(@Nullable String packageName) {
+    protected void updateSuggestedFromUpstream(String app, String apk, @Nullable String packageName) {
+        if (packageName == null) {
+            updateSuggestedFromUpstream(app, apk, "", null);
+        } else {
+            String restrictToApp = " AND " + app + "." + Cols.PACKAGE_ID + " = (" + getPackageIdFromPackageNameQuery() + ") ";
+            updateSuggestedFromUpstream(app, apk, restrictToApp, new String[]{packageName});
+        }
+    }
+
+    /**
+     * Same as {@link #updateSuggestedFromUpstream(String, String, String)}, but only for the apps
+     * (from any repo) belonging to the packages returned by {@code packageIds}.
+     */
+    protected void updateSuggestedFromUpstreamForPackages(String app, String apk, String packageIds) {
+        updateSuggestedFromUpstream(app, apk, " AND " + app + "." + Cols.PACKAGE_ID + " IN (" + packageIds + ") ", null);
+    }
+
+    private void updateSuggestedFromUpstream(String app, String apk, String restrictToApp, @Nullable String[] args) {
         Utils.debugLog(TAG, "Calculating suggested versions for all NON-INSTALLED apps which specify an upstream version code.");
 
-        final String apk = getApkTableName();
-        final String app = getTableName();
         final String installed = InstalledAppTable.NAME;
 
         final boolean unstableUpdates = Preferences.get().getUnstableUpdates();
         String restrictToStable = unstableUpdates ? "" : (apk + "." + ApkTable.Cols.VERSION_CODE + " <= " + app + "." + Cols.UPSTREAM_VERSION_CODE + " AND ");
 
-        String restrictToApp = "";
-        String[] args = null;
-
-        if (packageName != null) {
-            restrictToApp = " AND " + app + "." + Cols.PACKAGE_ID + " = (" + getPackageIdFromPackageNameQuery() + ") ";
-            args = new String[]{packageName};
-        }
-
         // The join onto `appForThisApk` is to ensure that the MAX(apk.versionCode) is chosen from
         // all apps regardless of repo. If we joined directly onto the outer `app` table we are
         // in the process of updating, then it would be limited to only apks from the same repo.
@@ -1161,7 +1429,7 @@ public class AppProvider extends FDroidProvider {
      * out from the upstream vercode. In such a case, fall back to the simpler
      * algorithm as if upstreamVercode was 0.
      *
-     * @see #updateSuggestedFromUpstream(String)
+     * @see #updateSuggestedFromUpstream(String, String, String)
      */
     private void updateSuggestedFromLatest(@Nullable String packageName) {
         Utils.debugLog(TAG, "Calculating suggested versions for all apps which don't specify an upstream version code.");
@@ -36,7 +36,10 @@ import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.data.Schema.AntiFeatureTable;
 import org.fdroid.fdroid.data.Schema.ApkAntiFeatureJoinTable;
 import org.fdroid.fdroid.data.Schema.ApkTable;
+import org.fdroid.fdroid.data.Schema.AppAntiFeatureJoinTable;
+import org.fdroid.fdroid.data.Schema.AppRequirementJoinTable;
 import org.fdroid.fdroid.data.Schema.AppMetadataTable;
+import org.fdroid.fdroid.data.Schema.AppSearchTable;
 import org.fdroid.fdroid.data.Schema.AppPrefsTable;
 import org.fdroid.fdroid.data.Schema.CatJoinTable;
 import org.fdroid.fdroid.data.Schema.InstalledAppTable;
@@ -81,6 +84,7 @@ public class DBHelper extends SQLiteOpenHelper {
             + RepoTable.Cols.MAX_AGE + " integer not null default 0, "
             + RepoTable.Cols.VERSION + " integer not null default 0, "
             + RepoTable.Cols.LAST_ETAG + " text, "
+            + RepoTable.Cols.LAST_ETAG_MIRROR + " text, "
             + RepoTable.Cols.LAST_UPDATED + " string,"
             + RepoTable.Cols.IS_SWAP + " integer boolean default 0,"
             + RepoTable.Cols.USERNAME + " string, "
@@ -110,13 +114,14 @@ public class DBHelper extends SQLiteOpenHelper {
                     + ApkTable.Cols.OBB_MAIN_FILE_SHA256 + " string, "
                     + ApkTable.Cols.OBB_PATCH_FILE + " string, "
                     + ApkTable.Cols.OBB_PATCH_FILE_SHA256 + " string, "
-                    + ApkTable.Cols.REQUESTED_PERMISSIONS + " string, "
-                    + ApkTable.Cols.FEATURES + " string, "
-                    + ApkTable.Cols.NATIVE_CODE + " string, "
+                    + ApkTable.Cols.REQUESTED_PERMISSIONS + " blob, "
+                    + ApkTable.Cols.FEATURES + " blob, "
+                    + ApkTable.Cols.NATIVE_CODE + " blob, "
                     + ApkTable.Cols.HASH_TYPE + " string, "
                     + ApkTable.Cols.ADDED_DATE + " string, "
                     + ApkTable.Cols.IS_COMPATIBLE + " int not null, "
-                    + ApkTable.Cols.INCOMPATIBLE_REASONS + " text"
+                    + ApkTable.Cols.INCOMPATIBLE_REASONS + " blob, "
+                    + ApkTable.Cols.FINGERPRINT + " text"
                     + ");";
 
     static final String CREATE_TABLE_APP_METADATA = "CREATE TABLE " + AppMetadataTable.NAME
@@ -140,26 +145,27 @@ public class DBHelper extends SQLiteOpenHelper {
             + AppMetadataTable.Cols.SUGGESTED_VERSION_CODE + " text,"
             + AppMetadataTable.Cols.UPSTREAM_VERSION_NAME + " text,"
             + AppMetadataTable.Cols.UPSTREAM_VERSION_CODE + " integer,"
-            + AppMetadataTable.Cols.ANTI_FEATURES + " string,"
+            + AppMetadataTable.Cols.ANTI_FEATURES + " blob,"
             + AppMetadataTable.Cols.DONATE + " string,"
             + AppMetadataTable.Cols.BITCOIN + " string,"
             + AppMetadataTable.Cols.LITECOIN + " string,"
             + AppMetadataTable.Cols.FLATTR_ID + " string,"
             + AppMetadataTable.Cols.LIBERAPAY_ID + " string,"
-            + AppMetadataTable.Cols.REQUIREMENTS + " string,"
-            + AppMetadataTable.Cols.ADDED + " string,"
-            + AppMetadataTable.Cols.LAST_UPDATED + " string,"
+            + AppMetadataTable.Cols.REQUIREMENTS + " blob,"
+            + AppMetadataTable.Cols.ADDED + " integer,"
+            + AppMetadataTable.Cols.LAST_UPDATED + " integer,"
             + AppMetadataTable.Cols.IS_COMPATIBLE + " int not null,"
             + AppMetadataTable.Cols.ICON_URL + " text, "
             + AppMetadataTable.Cols.FEATURE_GRAPHIC + " string,"
             + AppMetadataTable.Cols.PROMO_GRAPHIC + " string,"
             + AppMetadataTable.Cols.TV_BANNER + " string,"
-            + AppMetadataTable.Cols.PHONE_SCREENSHOTS + " string,"
-            + AppMetadataTable.Cols.SEVEN_INCH_SCREENSHOTS + " string,"
-            + AppMetadataTable.Cols.TEN_INCH_SCREENSHOTS + " string,"
-            + AppMetadataTable.Cols.TV_SCREENSHOTS + " string,"
-            + AppMetadataTable.Cols.WEAR_SCREENSHOTS + " string,"
+            + AppMetadataTable.Cols.PHONE_SCREENSHOTS + " blob,"
+            + AppMetadataTable.Cols.SEVEN_INCH_SCREENSHOTS + " blob,"
+            + AppMetadataTable.Cols.TEN_INCH_SCREENSHOTS + " blob,"
+            + AppMetadataTable.Cols.TV_SCREENSHOTS + " blob,"
+            + AppMetadataTable.Cols.WEAR_SCREENSHOTS + " blob,"
             + AppMetadataTable.Cols.IS_APK + " boolean,"
+            + AppMetadataTable.Cols.FINGERPRINT + " text,"
             + "primary key(" + AppMetadataTable.Cols.PACKAGE_ID + ", " + AppMetadataTable.Cols.REPO_ID + "));";
 
     private static final String CREATE_TABLE_APP_PREFS = "CREATE TABLE " + AppPrefsTable.NAME
@@ -215,7 +221,50 @@ public class DBHelper extends SQLiteOpenHelper {
             + "primary key(" + ApkAntiFeatureJoinTable.Cols.APK_ID + ", " + ApkAntiFeatureJoinTable.Cols.ANTI_FEATURE_ID + ") "
             + " );";
 
-    protected static final int DB_VERSION = 84;
+    /**
+     * The app metadata id comes first in the primary key, so that checking whether a particular
+     * app has any anti features is a lookup in that index.
+     */
+    static final String CREATE_TABLE_APP_ANTI_FEATURE_JOIN = "CREATE TABLE " + AppAntiFeatureJoinTable.NAME
+            + " ( "
+            + AppAntiFeatureJoinTable.Cols.APP_METADATA_ID + " INT NOT NULL, "
+            + AppAntiFeatureJoinTable.Cols.ANTI_FEATURE_ID + " INT NOT NULL, "
+            + "primary key(" + AppAntiFeatureJoinTable.Cols.APP_METADATA_ID + ", " + AppAntiFeatureJoinTable.Cols.ANTI_FEATURE_ID + ") "
+            + " );";
+
+    static final String CREATE_TABLE_APP_REQUIREMENT_JOIN = "CREATE TABLE " + AppRequirementJoinTable.NAME
+            + " ( "
+            + AppRequirementJoinTable.Cols.APP_METADATA_ID + " INT NOT NULL, "
+            + AppRequirementJoinTable.Cols.REQUIREMENT + " TEXT NOT NULL, "
+            + "primary key(" + AppRequirementJoinTable.Cols.APP_METADATA_ID + ", " + AppRequirementJoinTable.Cols.REQUIREMENT + ") "
+            + " );";
+
+    /**
+     * Uses the default tokenizer rather than {@code unicode61}, because the latter is not
+     * available on every Android version supported. Like {@code LIKE}, it only folds the
+     * case of ASCII characters.
+     */
+    private static final String CREATE_TABLE_APP_SEARCH = "CREATE VIRTUAL TABLE " + AppSearchTable.NAME
+            + " USING fts4 ( "
+            + AppSearchTable.Cols.PACKAGE_NAME + ", "
+            + AppSearchTable.Cols.NAME + ", "
+            + AppSearchTable.Cols.SUMMARY + ", "
+            + AppSearchTable.Cols.DESCRIPTION
+            + " );";
+
+    /**
+     * Adds the searchable text of each app to {@link AppSearchTable}. Needs a WHERE clause
+     * (using the alias {@code app}) appended to limit it to apps which are not there yet.
+     */
+    static final String INSERT_INTO_APP_SEARCH = "INSERT INTO " + AppSearchTable.NAME
+            + " (" + TextUtils.join(", ", AppSearchTable.Cols.ALL_COLS) + ") "
+            + "SELECT app." + AppMetadataTable.Cols.ROW_ID + ", pkg." + PackageTable.Cols.PACKAGE_NAME + ", "
+            + "app." + AppMetadataTable.Cols.NAME + ", app." + AppMetadataTable.Cols.SUMMARY + ", "
+            + "app." + AppMetadataTable.Cols.DESCRIPTION + " "
+            + "FROM " + AppMetadataTable.NAME + " AS app "
+            + "JOIN " + PackageTable.NAME + " AS pkg ON (pkg." + PackageTable.Cols.ROW_ID + " = app." + AppMetadataTable.Cols.PACKAGE_ID + ") ";
+
+    protected static final int DB_VERSION = 89;
 
     private final Context context;
 
@@ -245,6 +294,9 @@ public class DBHelper extends SQLiteOpenHelper {
         db.execSQL(CREATE_TABLE_APP_PREFS);
         db.execSQL(CREATE_TABLE_ANTI_FEATURE);
         db.execSQL(CREATE_TABLE_APK_ANTI_FEATURE_JOIN);
+        db.execSQL(CREATE_TABLE_APP_ANTI_FEATURE_JOIN);
+        db.execSQL(CREATE_TABLE_APP_REQUIREMENT_JOIN);
+        db.execSQL(CREATE_TABLE_APP_SEARCH);
         ensureIndexes(db);
 
         String[] defaultRepos = context.getResources().getStringArray(R.array.default_repos);
@@ -277,8 +329,93 @@ public class DBHelper extends SQLiteOpenHelper {
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
 
         Utils.debugLog(TAG, "Upgrading database from v" + oldVersion + " v" + newVersion);
+
+        addFingerprintColumns(db, oldVersion);
+        addAppSearchTable(db, oldVersion);
+        convertAppDatesToEpochMillis(db, oldVersion);
+        encodeListsAsBlobs(db, oldVersion);
+        addLastEtagMirrorColumn(db, oldVersion);
+    }
+
+    /**
+     * Existing rows are left with a null fingerprint, which never matches, so the
+     * first update of each repo after upgrading rewrites all of its rows once.
+     */
+    private void addFingerprintColumns(SQLiteDatabase db, int oldVersion) {
+        if (oldVersion >= 85) {
+            return;
+        }
+
+        if (!columnExists(db, AppMetadataTable.NAME, AppMetadataTable.Cols.FINGERPRINT)) {
+            Utils.debugLog(TAG, "Adding " + AppMetadataTable.Cols.FINGERPRINT + " column to " + AppMetadataTable.NAME);
+            db.execSQL("ALTER TABLE " + AppMetadataTable.NAME + " ADD COLUMN " + AppMetadataTable.Cols.FINGERPRINT + " text");
+        }
+
+        if (!columnExists(db, ApkTable.NAME, ApkTable.Cols.FINGERPRINT)) {
+            Utils.debugLog(TAG, "Adding " + ApkTable.Cols.FINGERPRINT + " column to " + ApkTable.NAME);
+            db.execSQL("ALTER TABLE " + ApkTable.NAME + " ADD COLUMN " + ApkTable.Cols.FINGERPRINT + " text");
+        }
+    }
+
+    private void addAppSearchTable(SQLiteDatabase db, int oldVersion) {
+        if (oldVersion >= 86) {
+            return;
+        }
+
+        if (!tableExists(db, AppSearchTable.NAME)) {
+            Utils.debugLog(TAG, "Creating " + AppSearchTable.NAME + " and indexing existing apps");
+            db.execSQL(CREATE_TABLE_APP_SEARCH);
+            db.execSQL(INSERT_INTO_APP_SEARCH);
+        }
+    }
+
+    /**
+     * {@link AppMetadataTable.Cols#ADDED} and {@link AppMetadataTable.Cols#LAST_UPDATED} used to
+     * be stored as {@code yyyy-MM-dd} strings (in UTC), which had to be parsed for every row read.
+     * Their declared type of {@code string} has numeric affinity, so the integers written here are
+     * kept as integers without having to rebuild the table.
+     */
+    private void convertAppDatesToEpochMillis(SQLiteDatabase db, int oldVersion) {
+        if (oldVersion >= 87) {
+            return;
+        }
+
+        Utils.debugLog(TAG, "Converting " + AppMetadataTable.Cols.ADDED + " and " + AppMetadataTable.Cols.LAST_UPDATED + " to milliseconds since the epoch");
+        for (String col : new String[]{AppMetadataTable.Cols.ADDED, AppMetadataTable.Cols.LAST_UPDATED}) {
+            db.execSQL("UPDATE " + AppMetadataTable.NAME + " SET " + col + " = CAST(strftime('%s', " + col + ") AS INTEGER) * 1000 " +
+                    "WHERE typeof(" + col + ") = 'text'");
+        }
+        ensureIndexes(db);
+    }
+
+    /**
+     * Lists such as screenshots, permissions and requirements used to be comma separated strings,
+     * and are now blobs written by {@link Utils#serializeStringArray(String[])}. At the same time,
+     * anti features and requirements of apps got their own join tables. All of this comes from
+     * the index, so rather than converting each row it is simpler to fetch it again.
+     */
+    private void encodeListsAsBlobs(SQLiteDatabase db, int oldVersion) {
+        if (oldVersion >= 88) {
+            return;
+        }
+
+        resetTransient(db);
     }
 
+    /**
+     * Existing etags are left without a mirror, which means they came from the repo's own
+     * address.  That is where they were checked against before, so nothing changes for them.
+     */
+    private void addLastEtagMirrorColumn(SQLiteDatabase db, int oldVersion) {
+        if (oldVersion >= 89) {
+            return;
+        }
+
+        if (!columnExists(db, RepoTable.NAME, RepoTable.Cols.LAST_ETAG_MIRROR)) {
+            Utils.debugLog(TAG, "Adding " + RepoTable.Cols.LAST_ETAG_MIRROR + " column to " + RepoTable.NAME);
+            db.execSQL("ALTER TABLE " + RepoTable.NAME + " ADD COLUMN " + RepoTable.Cols.LAST_ETAG_MIRROR + " text");
+        }
+    }
 
     /**
      * By clearing the etags stored in the repo table, it means that next time the user updates
@@ -288,6 +425,7 @@ public class DBHelper extends SQLiteOpenHelper {
     private static void clearRepoEtags(SQLiteDatabase db) {
         Utils.debugLog(TAG, "Clearing repo etags, so next update will not be skipped with \"Repos up to date\".");
         db.execSQL("update " + RepoTable.NAME + " set " + RepoTable.Cols.LAST_ETAG + " = NULL");
+        RepoCache.invalidate();
     }
 
     /**
@@ -324,6 +462,18 @@ public class DBHelper extends SQLiteOpenHelper {
                 db.execSQL("DROP TABLE " + ApkAntiFeatureJoinTable.NAME);
             }
 
+            if (tableExists(db, AppAntiFeatureJoinTable.NAME)) {
+                db.execSQL("DROP TABLE " + AppAntiFeatureJoinTable.NAME);
+            }
+
+            if (tableExists(db, AppRequirementJoinTable.NAME)) {
+                db.execSQL("DROP TABLE " + AppRequirementJoinTable.NAME);
+            }
+
+            if (tableExists(db, AppSearchTable.NAME)) {
+                db.execSQL("DROP TABLE " + AppSearchTable.NAME);
+            }
+
             db.execSQL("DROP TABLE " + AppMetadataTable.NAME);
             db.execSQL("DROP TABLE " + ApkTable.NAME);
 
@@ -334,6 +484,9 @@ public class DBHelper extends SQLiteOpenHelper {
             db.execSQL(CREATE_TABLE_CAT_JOIN);
             db.execSQL(CREATE_TABLE_ANTI_FEATURE);
             db.execSQL(CREATE_TABLE_APK_ANTI_FEATURE_JOIN);
+            db.execSQL(CREATE_TABLE_APP_ANTI_FEATURE_JOIN);
+            db.execSQL(CREATE_TABLE_APP_REQUIREMENT_JOIN);
+            db.execSQL(CREATE_TABLE_APP_SEARCH);
             clearRepoEtags(db);
             ensureIndexes(db);
             db.setTransactionSuccessful();
@@ -352,6 +505,7 @@ public class DBHelper extends SQLiteOpenHelper {
         Utils.debugLog(TAG, "Ensuring indexes exist for " + AppMetadataTable.NAME);
         db.execSQL("CREATE INDEX IF NOT EXISTS name on " + AppMetadataTable.NAME + " (" + AppMetadataTable.Cols.NAME + ");"); // Used for sorting most lists
         db.execSQL("CREATE INDEX IF NOT EXISTS added on " + AppMetadataTable.NAME + " (" + AppMetadataTable.Cols.ADDED + ");"); // Used for sorting "newly added"
+        db.execSQL("CREATE INDEX IF NOT EXISTS lastUpdated on " + AppMetadataTable.NAME + " (" + AppMetadataTable.Cols.LAST_UPDATED + ");"); // Used for sorting "recently updated"
 
         if (columnExists(db, AppMetadataTable.NAME, AppMetadataTable.Cols.PACKAGE_ID)) {
             db.execSQL("CREATE INDEX IF NOT EXISTS metadata_packageId ON " + AppMetadataTable.NAME + " (" + AppMetadataTable.Cols.PACKAGE_ID + ");");
@@ -0,0 +1,89 @@
+package org.fdroid.fdroid.data;
+
+import android.content.res.Resources;
+import android.os.Build;
+import android.text.TextUtils;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads the {@code localized} block of an app in {@code index-v1.json}, skipping over every
+ * locale that {@link App#setLocalized(Map)} could never choose on this device while still
+ * at the token level.  Repos often ship 50+ translations of each description, and only
+ * a handful of them are ever looked at.
+ * <p>
+ * The locales kept are a superset of what the fallback rules in {@link App#setLocalized(Map)}
+ * can pick from, so the result is exactly the same as when all locales are parsed:
+ * <ul>
+ * <li>the default locale, with and without its country</li>
+ * <li>on {@code >= android-24}, each locale from the system language list, with and
+ * without its country</li>
+ * <li>on {@code < android-24}, every locale starting with the default language</li>
+ * <li>every {@code en} locale, in the order they appear in the index</li>
+ * </ul>
+ */
+public class LocalizedDeserializer extends StdDeserializer<Map<String, Map<String, Object>>> {
+
+    private static final TypeReference<Map<String, Object>> ENTRY_TYPE =
+            new TypeReference<Map<String, Object>>() {
+            };
+
+    private final Set<String> wantedLocales = new HashSet<>();
+    private final String languageTag;
+
+    public LocalizedDeserializer() {
+        super(Map.class);
+
+        Locale defaultLocale = Locale.getDefault();
+        languageTag = defaultLocale.getLanguage();
+        wantedLocales.add(languageTag);
+        if (!TextUtils.isEmpty(defaultLocale.getCountry())) {
+            wantedLocales.add(languageTag + "-" + defaultLocale.getCountry());
+        }
+
+        if (Build.VERSION.SDK_INT >= 24) {
+            String languageTags = Resources.getSystem().getConfiguration().getLocales().toLanguageTags();
+            for (String toUse : languageTags.split(",")) {
+                wantedLocales.add(toUse);
+                wantedLocales.add(toUse.split("-")[0]);
+            }
+        }
+    }
+
+    public boolean isWanted(String locale) {
+        if (wantedLocales.contains(locale) || locale.startsWith("en")) {
+            return true;
+        }
+        return Build.VERSION.SDK_INT < 24 && locale.startsWith(languageTag);
+    }
+
+    @Override
+    public Map<String, Map<String, Object>> deserialize(JsonParser parser, DeserializationContext context)
+            throws IOException {
+        if (!parser.isExpectedStartObjectToken()) {
+            context.handleUnexpectedToken(Map.class, parser);
+        }
+
+        Map<String, Map<String, Object>> localized = new LinkedHashMap<>();
+        String locale;
+        while ((locale = parser.nextFieldName()) != null) {
+            if (parser.nextToken() == JsonToken.START_OBJECT && isWanted(locale)) {
+                localized.put(locale, parser.<Map<String, Object>>readValueAs(ENTRY_TYPE));
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return localized;
+    }
+}
@@ -3,6 +3,9 @@ package org.fdroid.fdroid.data;
 import android.database.Cursor;
 import android.database.CursorWrapper;
 import android.database.sqlite.SQLiteDatabase;
+import android.os.CancellationSignal;
+
+import androidx.annotation.Nullable;
 
 import org.fdroid.fdroid.BuildConfig;
 import org.fdroid.fdroid.Utils;
@@ -42,11 +45,15 @@ final class LoggingQuery {
     private final SQLiteDatabase db;
     private final String query;
     private final String[] queryArgs;
+    @Nullable
+    private final CancellationSignal cancellationSignal;
 
-    private LoggingQuery(SQLiteDatabase db, String query, String[] queryArgs) {
+    private LoggingQuery(SQLiteDatabase db, String query, String[] queryArgs,
+                         @Nullable CancellationSignal cancellationSignal) {
         this.db = db;
         this.query = query;
         this.queryArgs = queryArgs;
+        this.cancellationSignal = cancellationSignal;
     }
 
     /**
@@ -56,7 +63,7 @@ final class LoggingQuery {
     private Cursor rawQuery() {
         if (BuildConfig.DEBUG) {
             long startTime = System.currentTimeMillis();
-            Cursor cursor = db.rawQuery(query, queryArgs);
+            Cursor cursor = db.rawQuery(query, queryArgs, cancellationSignal);
             long queryDuration = System.currentTimeMillis() - startTime;
 
             if (queryDuration >= SLOW_QUERY_DURATION) {
@@ -65,7 +72,7 @@ final class LoggingQuery {
 
             return new LogGetCountCursorWrapper(cursor);
         }
-        return db.rawQuery(query, queryArgs);
+        return db.rawQuery(query, queryArgs, cancellationSignal);
     }
 
     /**
@@ -162,10 +169,19 @@ final class LoggingQuery {
     }
 
     public static Cursor query(SQLiteDatabase db, String query, String[] queryBuilderArgs) {
-        return new LoggingQuery(db, query, queryBuilderArgs).rawQuery();
+        return query(db, query, queryBuilderArgs, null);
+    }
+
+    /**
+     * @param cancellationSignal If cancelled while the query is running, it is aborted with an
+     *                           {@link android.os.OperationCanceledException}.
+     */
+    public static Cursor query(SQLiteDatabase db, String query, String[] queryBuilderArgs,
+                               @Nullable CancellationSignal cancellationSignal) {
+        return new LoggingQuery(db, query, queryBuilderArgs, cancellationSignal).rawQuery();
     }
 
     public static void execSQL(SQLiteDatabase db, String sql, String[] queryArgs) {
-        new LoggingQuery(db, sql, queryArgs).execSQLInternal();
+        new LoggingQuery(db, sql, queryArgs, null).execSQLInternal();
     }
 }
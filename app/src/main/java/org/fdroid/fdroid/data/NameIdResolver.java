@@ -0,0 +1,109 @@
+package org.fdroid.fdroid.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Looks up the rowid of names in one of the tables which only exist to give each name an id
+ * ({@link Schema.PackageTable}, {@link Schema.CategoryTable} and {@link Schema.AntiFeatureTable}),
+ * without going to the database for each name.  The whole table is read once, then names which
+ * are not there yet are given the next free rowid straight away, and only written out when
+ * {@link #flush()} is called.  The ids are kept in a {@link StringLongMap}, so that the tens of
+ * thousands of packages in the database don't each need a {@link Long} of their own.
+ * <p>
+ * This is only meant to live for as long as a single index is being written. Rows inserted
+ * by anyone else in the meantime are picked up by {@link #sync()}, which together with
+ * {@link #flush()} has to be called in the same transaction as the calls to
+ * {@link #resolve(String)} in between, so that nobody else can take the rowids handed out.
+ */
+final class NameIdResolver implements Closeable {
+
+    private final SQLiteDatabase db;
+    private final String table;
+    private final String nameCol;
+    private final boolean ignoreCase;
+    private final SQLiteStatement insert;
+
+    private static final long NO_ID = -1;
+
+    private final StringLongMap ids = new StringLongMap();
+    private final List<String> pendingNames = new ArrayList<>();
+    private long firstPendingId;
+    private long nextId = 1;
+
+    /**
+     * @param ignoreCase Whether names differing only in case should share the same id, as
+     *                   is done for categories by {@link CategoryProvider.Helper#ensureExists}.
+     */
+    NameIdResolver(SQLiteDatabase db, String table, String nameCol, boolean ignoreCase) {
+        this.db = db;
+        this.table = table;
+        this.nameCol = nameCol;
+        this.ignoreCase = ignoreCase;
+        insert = db.compileStatement("INSERT INTO " + table + " (rowid, " + nameCol + ") VALUES (?, ?)");
+        load(0);
+    }
+
+    /**
+     * Reads any rows which were added by someone else since this was last in sync. Everything
+     * this resolver has written itself has a rowid below {@link #nextId}.
+     */
+    void sync() {
+        load(nextId);
+    }
+
+    private void load(long fromId) {
+        Cursor cursor = db.rawQuery("SELECT rowid, " + nameCol + " FROM " + table + " WHERE rowid >= ?",
+                new String[]{Long.toString(fromId)});
+        try {
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(0);
+                ids.putIfAbsent(toKey(cursor.getString(1)), id);
+                nextId = Math.max(nextId, id + 1);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private String toKey(String name) {
+        return ignoreCase ? name.toLowerCase(Locale.ENGLISH) : name;
+    }
+
+    long resolve(String name) {
+        String key = toKey(name);
+        long id = ids.get(key, NO_ID);
+        if (id == NO_ID) {
+            if (pendingNames.isEmpty()) {
+                firstPendingId = nextId;
+            }
+            id = nextId++;
+            ids.putIfAbsent(key, id);
+            pendingNames.add(name);
+        }
+        return id;
+    }
+
+    /**
+     * Writes every name which was given a new id since the last flush.
+     */
+    void flush() {
+        for (int i = 0; i < pendingNames.size(); i++) {
+            insert.bindLong(1, firstPendingId + i);
+            insert.bindString(2, pendingNames.get(i));
+            insert.executeInsert();
+        }
+        pendingNames.clear();
+    }
+
+    @Override
+    public void close() {
+        insert.close();
+    }
+}
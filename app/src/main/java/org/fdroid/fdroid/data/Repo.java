@@ -27,7 +27,6 @@ import android.content.ContentValues;
 import android.database.Cursor;
 import android.text.TextUtils;
 import com.fasterxml.jackson.annotation.JsonIgnore;
-import org.fdroid.fdroid.FDroidApp;
 import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.data.Schema.RepoTable.Cols;
 
@@ -35,7 +34,6 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 
@@ -75,6 +73,12 @@ public class Repo extends ValueObject {
      */
     @JsonIgnore
     public String lastetag;
+    /**
+     * The mirror which {@link #lastetag} came from, as each mirror has its own etags,
+     * or null if it came from {@link #address}
+     */
+    @JsonIgnore
+    public String lastEtagMirror;
     /**
      * How to treat push requests included in this repo's index XML. This comes
      * from {@code default_repo.xml} or perhaps user input.  It should never be
@@ -139,6 +143,9 @@ public class Repo extends ValueObject {
                 case Cols.LAST_ETAG:
                     lastetag = cursor.getString(i);
                     break;
+                case Cols.LAST_ETAG_MIRROR:
+                    lastEtagMirror = cursor.getString(i);
+                    break;
                 case Cols.ADDRESS:
                     address = cursor.getString(i);
                     break;
@@ -263,6 +270,10 @@ public class Repo extends ValueObject {
             lastetag = values.getAsString(Cols.LAST_ETAG);
         }
 
+        if (values.containsKey(Cols.LAST_ETAG_MIRROR)) {
+            lastEtagMirror = values.getAsString(Cols.LAST_ETAG_MIRROR);
+        }
+
         if (values.containsKey(Cols.ADDRESS)) {
             address = values.getAsString(Cols.ADDRESS);
         }
@@ -352,47 +363,4 @@ public class Repo extends ValueObject {
         }
         return allMirrors;
     }
-
-    /**
-     * Get the number of available mirrors, including the canonical repo.
-     */
-    public int getMirrorCount() {
-        int count = 0;
-        for (String m : getMirrorList()) {
-            if (!m.equals(address)) {
-                if (FDroidApp.isUsingTor()) {
-                    count++;
-                } else {
-                    if (!m.contains(".onion")) {
-                        count++;
-                    }
-                }
-            }
-        }
-        return count;
-    }
-
-    public String getMirror(String lastWorkingMirror) {
-        if (TextUtils.isEmpty(lastWorkingMirror)) {
-            lastWorkingMirror = address;
-        }
-        List<String> shuffledMirrors = getMirrorList();
-        Collections.shuffle(shuffledMirrors);
-        if (shuffledMirrors.size() > 1) {
-            for (String m : shuffledMirrors) {
-                // Return a non default, and not last used mirror
-                if (!m.equals(address) && !m.equals(lastWorkingMirror)) {
-                    if (FDroidApp.isUsingTor()) {
-                        return m;
-                    } else {
-                        // Filter-out onion mirrors for non-tor connections
-                        if (!m.contains(".onion")) {
-                            return m;
-                        }
-                    }
-                }
-            }
-        }
-        return null; // In case we are out of mirrors.
-    }
 }
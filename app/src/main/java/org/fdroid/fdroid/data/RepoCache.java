@@ -0,0 +1,77 @@
+package org.fdroid.fdroid.data;
+
+import android.content.Context;
+import androidx.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Every known {@link Repo}, keyed by {@link Repo#id}, so that things like
+ * {@link App#getIconUrl(Context)} don't have to query the database each time a list item is
+ * bound. There are only ever a handful of repos, so the whole table is read in one go the first
+ * time it is needed, and read again after any change to it.
+ * <p>
+ * The map itself is never modified once published, it is replaced as a whole. Readers never
+ * take a lock, and always see either the old or the new set of repos. The {@link Repo}s handed
+ * out are shared, so they must be treated as read only.
+ */
+final class RepoCache {
+
+    @Nullable
+    private static volatile Map<Long, Repo> repos;
+
+    /**
+     * Bumped each time the cache is invalidated. If this changes while the repos are being
+     * read, then what was read may already be out of date and is not kept.
+     */
+    private static int generation;
+
+    private RepoCache() {
+    }
+
+    @Nullable
+    static Repo get(Context context, long repoId) {
+        Map<Long, Repo> snapshot = repos;
+        if (snapshot == null) {
+            snapshot = load(context);
+        }
+        return snapshot.get(repoId);
+    }
+
+    /**
+     * Must be called after every change to {@link Schema.RepoTable}, but before anyone is
+     * notified of that change.
+     */
+    static void invalidate() {
+        synchronized (RepoCache.class) {
+            generation++;
+            repos = null;
+        }
+    }
+
+    private static Map<Long, Repo> load(Context context) {
+        int loadingGeneration;
+        synchronized (RepoCache.class) {
+            Map<Long, Repo> snapshot = repos;
+            if (snapshot != null) {
+                return snapshot;
+            }
+            loadingGeneration = generation;
+        }
+
+        Map<Long, Repo> loaded = new HashMap<>();
+        for (Repo repo : RepoProvider.Helper.all(context)) {
+            loaded.put(repo.getId(), repo);
+        }
+        loaded = Collections.unmodifiableMap(loaded);
+
+        synchronized (RepoCache.class) {
+            if (generation == loadingGeneration) {
+                repos = loaded;
+            }
+        }
+        return loaded;
+    }
+}
@@ -1,11 +1,8 @@
 package org.fdroid.fdroid.data;
 
-import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
-import android.content.OperationApplicationException;
-import android.net.Uri;
-import android.os.RemoteException;
+import android.database.SQLException;
 import androidx.annotation.NonNull;
 
 import org.fdroid.fdroid.CompatibilityChecker;
@@ -28,14 +25,36 @@ public class RepoPersister {
      * * 100 = 30 seconds
      * * 200 = 32 seconds
      * Raising this means more memory consumption, so we'd like it to be low, but not
-     * so low that it takes too long.
+     * so low that it takes too long. That depends so much on the device (and on how many
+     * apks each app has) that the batch size starts here and is then adjusted after each
+     * flush, see {@link #nextAppBufferSize(int, long, float)}.
      */
-    private static final int MAX_APP_BUFFER = 50;
+    private static final int INITIAL_APP_BUFFER = 50;
+    private static final int MIN_APP_BUFFER = 25;
+    private static final int MAX_APP_BUFFER = 800;
+
+    /**
+     * Flushes quicker than this grow the batch, slower ones shrink it.
+     */
+    private static final long TARGET_FLUSH_MILLIS = 500;
+
+    /**
+     * When less than this fraction of the max heap is left, the batch is shrunk regardless
+     * of how quick the last flush was.
+     */
+    private static final float MIN_HEAP_HEADROOM = 0.25f;
 
     @NonNull
     private final Repo repo;
 
-    private boolean hasBeenInitialized;
+    private TempTableWriter writer;
+
+    /**
+     * Whether the temporary tables have been set up and not yet committed or discarded.
+     */
+    private boolean staging;
+
+    private int appBufferSize = INITIAL_APP_BUFFER;
 
     @NonNull
     private final Context context;
@@ -59,38 +78,102 @@ public class RepoPersister {
         appsToSave.add(app);
         apksToSave.put(app.packageName, packages);
 
-        if (appsToSave.size() >= MAX_APP_BUFFER) {
+        if (appsToSave.size() >= appBufferSize) {
             flushBufferToDb();
         }
     }
 
     public void commit(ContentValues repoDetailsToSave, long repoIdToCommit) throws IndexUpdater.UpdateException {
-        flushBufferToDb();
+        try {
+            flushBufferToDb();
+        } finally {
+            closeWriter();
+        }
+        staging = false; // the commit detaches the temporary tables itself, even if it fails
+        CompatibilityChecker.clearCache();
         TempAppProvider.Helper.commitAppsAndApks(context, repoIdToCommit);
         RepoProvider.Helper.update(context, repo, repoDetailsToSave);
     }
 
+    /**
+     * Throws away everything which was saved but not committed, for when the update fails
+     * part of the way through.  Does nothing once {@link #commit(ContentValues, long)} has
+     * been reached, so it is safe to call in a {@code finally} block.
+     */
+    public void discard() {
+        closeWriter();
+        if (staging) {
+            staging = false;
+            TempAppProvider.Helper.discard(context);
+        }
+        appsToSave.clear();
+        apksToSave.clear();
+        CompatibilityChecker.clearCache();
+    }
+
+    private void closeWriter() {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
     private void flushBufferToDb() throws IndexUpdater.UpdateException {
-        if (!hasBeenInitialized) {
+        if (!staging) {
             // This is where we will store all of the metadata before commiting at the
             // end of the process. This is due to the fact that we can't verify the cert
             // the index was signed with until we've finished reading it - and we don't
             // want to put stuff in the real database until we are sure it is from a
             // trusted source. It also helps performance as it is done via an in-memory database.
             TempAppProvider.Helper.init(context, repo.getId());
-            hasBeenInitialized = true;
+            staging = true;
+            writer = new TempTableWriter(context);
         }
 
         if (apksToSave.size() > 0 || appsToSave.size() > 0) {
-            Utils.debugLog(TAG, "Flushing details of up to " + MAX_APP_BUFFER + " apps/packages to the database.");
+            Utils.Profiler profiler = new Utils.Profiler(TAG);
+            int appCount = appsToSave.size();
             Map<String, Long> appIds = flushAppsToDbInBatch();
-            flushApksToDbInBatch(appIds);
+            int apkCount = flushApksToDbInBatch(appIds);
             apksToSave.clear();
             appsToSave.clear();
+
+            long flushMillis = System.currentTimeMillis() - profiler.startTime;
+            float heapHeadroom = getHeapHeadroom();
+            appBufferSize = nextAppBufferSize(appBufferSize, flushMillis, heapHeadroom);
+            profiler.log("Flushed " + appCount + " apps and " + apkCount + " apks to the database, "
+                    + Math.round(heapHeadroom * 100) + "% heap free, next batch is " + appBufferSize + " apps.");
         }
     }
 
-    private void flushApksToDbInBatch(Map<String, Long> appIds) throws IndexUpdater.UpdateException {
+    /**
+     * The fraction of the max heap which is still available, counting memory the VM
+     * hasn't claimed from the system yet.
+     */
+    private static float getHeapHeadroom() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        return (float) (runtime.maxMemory() - used) / runtime.maxMemory();
+    }
+
+    /**
+     * Doubles the batch size while flushes are comfortably quick and memory is plentiful, and
+     * halves it as soon as either a flush is slow or the heap is getting full.
+     */
+    private static int nextAppBufferSize(int current, long flushMillis, float heapHeadroom) {
+        int next = current;
+        if (heapHeadroom < MIN_HEAP_HEADROOM || flushMillis > TARGET_FLUSH_MILLIS) {
+            next = current / 2;
+        } else if (flushMillis < TARGET_FLUSH_MILLIS / 2) {
+            next = current * 2;
+        }
+        return Math.max(MIN_APP_BUFFER, Math.min(MAX_APP_BUFFER, next));
+    }
+
+    /**
+     * @return The number of apks written.
+     */
+    private int flushApksToDbInBatch(Map<String, Long> appIds) throws IndexUpdater.UpdateException {
         List<Apk> apksToSaveList = new ArrayList<>();
         for (Map.Entry<String, List<Apk>> entries : apksToSave.entrySet()) {
             for (Apk apk : entries.getValue()) {
@@ -101,78 +184,27 @@ public class RepoPersister {
 
         calcApkCompatibilityFlags(apksToSaveList);
 
-        ArrayList<ContentProviderOperation> apkOperations = insertApks(apksToSaveList);
-
         try {
-            context.getContentResolver().applyBatch(TempApkProvider.getAuthority(), apkOperations);
-        } catch (RemoteException | OperationApplicationException e) {
+            writer.insertApks(apksToSaveList);
+            return apksToSaveList.size();
+        } catch (SQLException e) {
             throw new IndexUpdater.UpdateException("An internal error occurred while updating the database", e);
         }
     }
 
     /**
-     * Will first insert new or update existing rows in the database for each {@link RepoPersister#appsToSave}.
-     * Then, will query the database for the ID + packageName for each of these apps, so that they
-     * can be returned and the relevant apks can be joined to the app table correctly.
+     * Will insert rows into the temporary tables for each {@link RepoPersister#appsToSave}.
+     * The IDs sqlite gives each of them are returned so that the relevant apks can be joined
+     * to the app table correctly.
      */
     private Map<String, Long> flushAppsToDbInBatch() throws IndexUpdater.UpdateException {
-        ArrayList<ContentProviderOperation> appOperations = insertApps(appsToSave);
-
         try {
-            context.getContentResolver().applyBatch(TempAppProvider.getAuthority(), appOperations);
-            return getIdsForPackages(appsToSave);
-        } catch (RemoteException | OperationApplicationException e) {
+            return writer.insertApps(appsToSave);
+        } catch (SQLException e) {
             throw new IndexUpdater.UpdateException("An internal error occurred while updating the database", e);
         }
     }
 
-    /**
-     * Although this might seem counter intuitive - receiving a list of apps, then querying the
-     * database again for info about these apps, it is required because the apps came from the
-     * repo metadata, but we are really interested in their IDs from the database. These IDs only
-     * exist in SQLite and not the repo metadata.
-     */
-    private Map<String, Long> getIdsForPackages(List<App> apps) {
-        List<String> packageNames = new ArrayList<>(appsToSave.size());
-        for (App app : apps) {
-            packageNames.add(app.packageName);
-        }
-
-        String[] projection = {
-                Schema.AppMetadataTable.Cols.ROW_ID,
-                Schema.AppMetadataTable.Cols.Package.PACKAGE_NAME,
-        };
-
-        List<App> fromDb = TempAppProvider.Helper.findByPackageNames(context, packageNames, repo.id, projection);
-
-        Map<String, Long> ids = new HashMap<>(fromDb.size());
-        for (App app : fromDb) {
-            ids.put(app.packageName, app.getId());
-        }
-        return ids;
-    }
-
-    private ArrayList<ContentProviderOperation> insertApps(List<App> apps) {
-        ArrayList<ContentProviderOperation> operations = new ArrayList<>(apps.size());
-        for (App app : apps) {
-            ContentValues values = app.toContentValues();
-            Uri uri = TempAppProvider.getContentUri();
-            operations.add(ContentProviderOperation.newInsert(uri).withValues(values).build());
-        }
-        return operations;
-    }
-
-    private ArrayList<ContentProviderOperation> insertApks(List<Apk> packages) {
-        ArrayList<ContentProviderOperation> operations = new ArrayList<>(packages.size());
-        for (Apk apk : packages) {
-            ContentValues values = apk.toContentValues();
-            Uri uri = TempApkProvider.getContentUri();
-            operations.add(ContentProviderOperation.newInsert(uri).withValues(values).build());
-        }
-
-        return operations;
-    }
-
     /**
      * This cannot be offloaded to the database (as we did with the query which
      * updates apps, depending on whether their apks are compatible or not).
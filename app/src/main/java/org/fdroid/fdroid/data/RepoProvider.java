@@ -40,8 +40,12 @@ public class RepoProvider extends FDroidProvider {
             return cursorToRepo(cursor);
         }
 
+        /**
+         * Served from {@link RepoCache}, so this is cheap enough to call while binding list items.
+         * The {@link Repo} returned is shared with other callers and must not be modified.
+         */
         public static Repo findById(Context context, long repoId) {
-            return findById(context, repoId, Cols.ALL);
+            return RepoCache.get(context, repoId);
         }
 
         public static Repo findById(Context context, long repoId,
@@ -426,6 +430,7 @@ public class RepoProvider extends FDroidProvider {
         }
 
         long id = db().insertOrThrow(getTableName(), null, values);
+        RepoCache.invalidate();
         Utils.debugLog(TAG, "Inserted repo. Notifying provider change: '" + uri + "'.");
         getContext().getContentResolver().notifyChange(uri, null);
         return getContentUri(id);
@@ -459,6 +464,7 @@ public class RepoProvider extends FDroidProvider {
         }
 
         int rowsAffected = db().delete(getTableName(), selection.getSelection(), selection.getArgs());
+        RepoCache.invalidate();
         Utils.debugLog(TAG, "Deleted repo. Notifying provider change: '" + uri + "'.");
         getContext().getContentResolver().notifyChange(uri, null);
         return rowsAffected;
@@ -493,6 +499,7 @@ public class RepoProvider extends FDroidProvider {
         }
 
         int numRows = db().update(getTableName(), values, where, whereArgs);
+        RepoCache.invalidate();
 
         if (priorityChanged) {
             AppProvider.Helper.recalculatePreferredMetadata(getContext());
@@ -107,6 +107,29 @@ public interface Schema {
         }
     }
 
+    /**
+     * A full text index over the searchable text of each row in {@link AppMetadataTable}, used
+     * instead of {@code LIKE '%keyword%'} scans when searching. The {@code docid} of each row
+     * is the rowid of the app metadata it was built from.
+     */
+    interface AppSearchTable {
+
+        String NAME = "fdroid_appSearch";
+
+        interface Cols {
+            /**
+             * Foreign key to {@link AppMetadataTable}.
+             */
+            String DOC_ID = "docid";
+            String PACKAGE_NAME = "packageName";
+            String NAME = "name";
+            String SUMMARY = "summary";
+            String DESCRIPTION = "description";
+
+            String[] ALL_COLS = {DOC_ID, PACKAGE_NAME, NAME, SUMMARY, DESCRIPTION};
+        }
+    }
+
     interface AntiFeatureTable {
 
         String NAME = "fdroid_antiFeature";
@@ -148,6 +171,63 @@ public interface Schema {
         }
     }
 
+    /**
+     * An entry in this table signifies that an app has a particular anti feature. This is the
+     * same information as {@link AppMetadataTable.Cols#ANTI_FEATURES}, but in a form which can
+     * be filtered on without decoding that column for every app.
+     * @see AntiFeatureTable
+     * @see AppMetadataTable
+     */
+    interface AppAntiFeatureJoinTable {
+
+        String NAME = "fdroid_appAntiFeatureJoin";
+
+        interface Cols {
+            /**
+             * Foreign key to {@link AppMetadataTable}.
+             * @see AppMetadataTable
+             */
+            String APP_METADATA_ID = "appMetadataId";
+
+            /**
+             * Foreign key to {@link AntiFeatureTable}.
+             * @see AntiFeatureTable
+             */
+            String ANTI_FEATURE_ID = "antiFeatureId";
+
+            /**
+             * @see AppMetadataTable.Cols#ALL_COLS
+             */
+            String[] ALL_COLS = {APP_METADATA_ID, ANTI_FEATURE_ID};
+        }
+    }
+
+    /**
+     * An entry in this table signifies that an app has a particular requirement (e.g. "root").
+     * This is the same information as {@link AppMetadataTable.Cols#REQUIREMENTS}, but in a form
+     * which can be filtered on without decoding that column for every app.
+     * @see AppMetadataTable
+     */
+    interface AppRequirementJoinTable {
+
+        String NAME = "fdroid_appRequirementJoin";
+
+        interface Cols {
+            /**
+             * Foreign key to {@link AppMetadataTable}.
+             * @see AppMetadataTable
+             */
+            String APP_METADATA_ID = "appMetadataId";
+
+            String REQUIREMENT = "requirement";
+
+            /**
+             * @see AppMetadataTable.Cols#ALL_COLS
+             */
+            String[] ALL_COLS = {APP_METADATA_ID, REQUIREMENT};
+        }
+    }
+
     interface AppMetadataTable {
 
         String NAME = "fdroid_app";
@@ -200,6 +280,20 @@ public interface Schema {
             String WEAR_SCREENSHOTS = "wearScreenshots";
             String IS_APK = "isApk";
 
+            /**
+             * Hash of the values this row was inserted with from the index, used to tell
+             * whether a row has to be rewritten when committing a repo update.
+             */
+            String FINGERPRINT = "fingerprint";
+
+            /**
+             * Whether this app should be greyed out because of what it requires, or because
+             * it has anti features, according to the current preferences. This is worked out
+             * when querying, and so can only be selected.
+             * @see org.fdroid.fdroid.AppFilter
+             */
+            String IS_FILTERED = "isFiltered";
+
             interface SuggestedApk {
                 String VERSION_NAME = "suggestedApkVersion";
             }
@@ -214,6 +308,16 @@ public interface Schema {
                 String PACKAGE_NAME = "package_packageName";
             }
 
+            /**
+             * The {@link AppPrefsTable} columns of the app, or their defaults if the user never
+             * changed them. Only available when selecting.
+             */
+            interface Prefs {
+                String IGNORE_ALL_UPDATES = "prefs_ignoreAllUpdates";
+                String IGNORE_THIS_UPDATE = "prefs_ignoreThisUpdate";
+                String IGNORE_VULNERABILITIES = "prefs_ignoreVulnerabilities";
+            }
+
             /**
              * This is to make it explicit that you cannot request the {@link Categories#CATEGORIES}
              * field when selecting app metadata from the database. It is only here for the purpose
@@ -238,7 +342,7 @@ public interface Schema {
                     ANTI_FEATURES, REQUIREMENTS, ICON_URL,
                     FEATURE_GRAPHIC, PROMO_GRAPHIC, TV_BANNER, PHONE_SCREENSHOTS,
                     SEVEN_INCH_SCREENSHOTS, TEN_INCH_SCREENSHOTS, TV_SCREENSHOTS, WEAR_SCREENSHOTS,
-                    PREFERRED_SIGNER, SUGGESTED_VERSION_CODE, IS_APK,
+                    PREFERRED_SIGNER, SUGGESTED_VERSION_CODE, IS_APK, FINGERPRINT,
             };
 
             /**
@@ -301,6 +405,11 @@ public interface Schema {
             String IS_COMPATIBLE   = "compatible";
             String INCOMPATIBLE_REASONS = "incompatibleReasons";
 
+            /**
+             * @see AppMetadataTable.Cols#FINGERPRINT
+             */
+            String FINGERPRINT     = "fingerprint";
+
             interface Repo {
                 String VERSION = "repoVersion";
                 String ADDRESS = "repoAddress";
@@ -318,11 +427,11 @@ public interface Schema {
              * @see AppMetadataTable.Cols#ALL_COLS
              */
             String[] ALL_COLS = {
-                    APP_ID, VERSION_NAME, REPO_ID, HASH, VERSION_CODE, NAME,
+                    ROW_ID, APP_ID, VERSION_NAME, REPO_ID, HASH, VERSION_CODE, NAME,
                     SIZE, SIGNATURE, SOURCE_NAME, MIN_SDK_VERSION, TARGET_SDK_VERSION, MAX_SDK_VERSION,
                     OBB_MAIN_FILE, OBB_MAIN_FILE_SHA256, OBB_PATCH_FILE, OBB_PATCH_FILE_SHA256,
                     REQUESTED_PERMISSIONS, FEATURES, NATIVE_CODE, HASH_TYPE, ADDED_DATE,
-                    IS_COMPATIBLE, INCOMPATIBLE_REASONS,
+                    IS_COMPATIBLE, INCOMPATIBLE_REASONS, FINGERPRINT,
             };
 
             /**
@@ -354,6 +463,7 @@ public interface Schema {
             String FINGERPRINT  = "fingerprint";
             String MAX_AGE      = "maxage";
             String LAST_ETAG    = "lastetag";
+            String LAST_ETAG_MIRROR = "lastEtagMirror";
             String LAST_UPDATED = "lastUpdated";
             String VERSION      = "version";
             String IS_SWAP      = "isSwap";
@@ -367,7 +477,7 @@ public interface Schema {
 
             String[] ALL = {
                     _ID, ADDRESS, NAME, DESCRIPTION, IN_USE, PRIORITY, SIGNING_CERT,
-                    FINGERPRINT, MAX_AGE, LAST_UPDATED, LAST_ETAG, VERSION, IS_SWAP,
+                    FINGERPRINT, MAX_AGE, LAST_UPDATED, LAST_ETAG, LAST_ETAG_MIRROR, VERSION, IS_SWAP,
                     USERNAME, PASSWORD, TIMESTAMP, ICON, MIRRORS, USER_MIRRORS, PUSH_REQUESTS,
             };
         }
@@ -0,0 +1,88 @@
+package org.fdroid.fdroid.data;
+
+/**
+ * A map from strings to {@code long}s which keeps the values in a plain {@code long[]}, rather
+ * than boxing each one into a {@link Long} like a {@code HashMap<String, Long>} would.  Used by
+ * {@link NameIdResolver}, which holds the id of every package in the database while an index
+ * is being written.  Keys are never removed, and {@code null} keys are not supported.
+ */
+final class StringLongMap {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private String[] keys;
+    private long[] values;
+    private int size;
+
+    StringLongMap() {
+        keys = new String[MIN_CAPACITY];
+        values = new long[MIN_CAPACITY];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the value of {@code key}, or {@code missing} if it isn't in the map
+     */
+    long get(String key, long missing) {
+        int index = indexOf(keys, key);
+        return keys[index] == null ? missing : values[index];
+    }
+
+    /**
+     * Adds {@code key}, unless it is already in the map, in which case its value is kept.
+     *
+     * @return whether {@code key} was added
+     */
+    boolean putIfAbsent(String key, long value) {
+        int index = indexOf(keys, key);
+        if (keys[index] != null) {
+            return false;
+        }
+        keys[index] = key;
+        values[index] = value;
+        size++;
+        if (size * 2 > keys.length) {
+            grow();
+        }
+        return true;
+    }
+
+    /**
+     * The slot which holds {@code key}, or the empty one where it would go.  Uses linear
+     * probing, and {@code keys} is never more than half full, so there always is one.
+     */
+    private static int indexOf(String[] keys, String key) {
+        int mask = keys.length - 1;
+        int index = mix(key.hashCode()) & mask;
+        while (keys[index] != null && !keys[index].equals(key)) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    /**
+     * Spreads the bits of {@link String#hashCode()}, whose low bits alone cluster badly for
+     * names which only differ at the end, like most package names do.
+     */
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private void grow() {
+        String[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new String[oldKeys.length * 2];
+        values = new long[oldKeys.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int index = indexOf(keys, oldKeys[i]);
+                keys[index] = oldKeys[i];
+                values[index] = oldValues[i];
+            }
+        }
+    }
+}
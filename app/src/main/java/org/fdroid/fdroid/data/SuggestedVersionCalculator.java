@@ -0,0 +1,355 @@
+package org.fdroid.fdroid.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.data.Schema.ApkTable;
+import org.fdroid.fdroid.data.Schema.AppMetadataTable.Cols;
+import org.fdroid.fdroid.data.Schema.InstalledAppTable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Works out the suggested version of every app in the same way as
+ * {@link AppProvider#updateSuggestedFromUpstream(String, String, String)} followed by
+ * {@link AppProvider#updateSuggestedFromLatest(String)}, but in Java. Those statements make
+ * SQLite run a correlated subquery per app, which takes many seconds once there are tens of
+ * thousands of apks. Here, every apk is read once into arrays sorted by package and then by
+ * version code (highest first), so that the suggested version of an app is the first apk of
+ * its package which passes the same checks as the SQL does.
+ * <p>
+ * Only those apps whose suggested version actually changed are written back.
+ */
+final class SuggestedVersionCalculator {
+
+    private static final String TAG = "SuggestedVersionCalc";
+
+    /**
+     * The suggested version code of apps without one (i.e. {@code NULL}).
+     */
+    static final long NONE = Long.MIN_VALUE;
+
+    /**
+     * The signature id given to a package which is not installed, meaning any apk will do.
+     */
+    private static final int ANY_SIGNATURE = -1;
+
+    /**
+     * Below this many apps, it is not worth handing the work to other threads.
+     */
+    private static final int MIN_APPS_PER_THREAD = 2000;
+
+    private final SQLiteDatabase db;
+    private final String appTable;
+    private final String apkTable;
+
+    private final Map<String, Integer> signatureIds = new HashMap<>();
+
+    private final Input input = new Input();
+
+    // The rowid of each app in Input, which is only needed for writing the result back.
+    private long[] appRowIds;
+
+    /**
+     * Everything the suggested versions are worked out from, as plain arrays, see
+     * {@link #suggestVersions(Input, int, boolean)}.  Signatures are given as small ints, see
+     * {@link #signatureId(String)}, none of which may be {@link #ANY_SIGNATURE}.
+     */
+    static final class Input {
+        // One entry per apk, ordered by package and then by version code, highest first.
+        long[] apkPackageIds;
+        int[] apkVersionCodes;
+        int[] apkSignatures;
+        boolean[] apkCompatible;
+
+        // One entry per app, ordered by package. An upstream version code of NULL is 0,
+        // a suggested version code of NULL is NONE.
+        long[] appPackageIds;
+        long[] appUpstreamVersionCodes;
+        boolean[] appCompatible;
+        long[] appSuggested;
+
+        // The signature of each installed package, by package id.
+        final Map<Long, Integer> installedSignatures = new HashMap<>();
+    }
+
+    SuggestedVersionCalculator(SQLiteDatabase db, String appTable, String apkTable) {
+        this.db = db;
+        this.appTable = appTable;
+        this.apkTable = apkTable;
+    }
+
+    /**
+     * @param unstableUpdates Whether apks with a higher version code than the upstream version
+     *                        code of the app are allowed, see {@link org.fdroid.fdroid.Preferences#getUnstableUpdates()}.
+     * @return The number of apps whose suggested version changed.
+     * @throws InterruptedException if interrupted before anything was written, in which case
+     *                              every suggested version is left as it was.
+     */
+    int calculate(boolean unstableUpdates) throws InterruptedException {
+        Utils.Profiler profiler = new Utils.Profiler(TAG);
+        loadApks();
+        loadApps();
+        loadInstalled();
+        profiler.log("Loaded " + input.apkVersionCodes.length + " apks for " + appRowIds.length + " apps");
+
+        int threads = Math.min(Runtime.getRuntime().availableProcessors(), appRowIds.length / MIN_APPS_PER_THREAD);
+        long[] suggested = suggestVersions(input, threads, unstableUpdates);
+        profiler.log("Calculated suggested versions");
+
+        int changed = writeChanges(suggested);
+        profiler.log("Wrote " + changed + " changed suggested versions");
+        return changed;
+    }
+
+    private void loadApks() {
+        String query = "SELECT app." + Cols.PACKAGE_ID + ", apk." + ApkTable.Cols.VERSION_CODE + ", " +
+                "apk." + ApkTable.Cols.SIGNATURE + ", apk." + ApkTable.Cols.IS_COMPATIBLE + " " +
+                "FROM " + apkTable + " AS apk " +
+                "JOIN " + appTable + " AS app ON (app." + Cols.ROW_ID + " = apk." + ApkTable.Cols.APP_ID + ") " +
+                "ORDER BY app." + Cols.PACKAGE_ID + ", apk." + ApkTable.Cols.VERSION_CODE + " DESC";
+        Cursor cursor = db.rawQuery(query, null);
+        try {
+            int count = cursor.getCount();
+            input.apkPackageIds = new long[count];
+            input.apkVersionCodes = new int[count];
+            input.apkSignatures = new int[count];
+            input.apkCompatible = new boolean[count];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                input.apkPackageIds[i] = cursor.getLong(0);
+                input.apkVersionCodes[i] = cursor.getInt(1);
+                input.apkSignatures[i] = signatureId(cursor.isNull(2) ? null : cursor.getString(2));
+                input.apkCompatible[i] = cursor.getInt(3) == 1;
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void loadApps() {
+        String query = "SELECT " + Cols.ROW_ID + ", " + Cols.PACKAGE_ID + ", " + Cols.UPSTREAM_VERSION_CODE + ", " +
+                Cols.IS_COMPATIBLE + ", " + Cols.SUGGESTED_VERSION_CODE + " " +
+                "FROM " + appTable + " ORDER BY " + Cols.PACKAGE_ID;
+        Cursor cursor = db.rawQuery(query, null);
+        try {
+            int count = cursor.getCount();
+            appRowIds = new long[count];
+            input.appPackageIds = new long[count];
+            input.appUpstreamVersionCodes = new long[count];
+            input.appCompatible = new boolean[count];
+            input.appSuggested = new long[count];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                appRowIds[i] = cursor.getLong(0);
+                input.appPackageIds[i] = cursor.getLong(1);
+                input.appUpstreamVersionCodes[i] = cursor.isNull(2) ? 0 : cursor.getLong(2);
+                input.appCompatible[i] = cursor.getInt(3) != 0;
+                input.appSuggested[i] = cursor.isNull(4) ? NONE : cursor.getLong(4);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void loadInstalled() {
+        String query = "SELECT " + InstalledAppTable.Cols.PACKAGE_ID + ", " + InstalledAppTable.Cols.SIGNATURE + " " +
+                "FROM " + InstalledAppTable.NAME;
+        Cursor cursor = db.rawQuery(query, null);
+        try {
+            while (cursor.moveToNext()) {
+                if (!cursor.isNull(1)) {
+                    input.installedSignatures.put(cursor.getLong(0), signatureId(cursor.getString(1)));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Signatures are compared a lot, so each distinct one is swapped for a small int.
+     * A {@code null} signature gets an id too, because it only ever matches itself.
+     */
+    private int signatureId(String signature) {
+        Integer id = signatureIds.get(signature);
+        if (id == null) {
+            id = signatureIds.size();
+            signatureIds.put(signature, id);
+        }
+        return id;
+    }
+
+    /**
+     * The suggested version code of each app in {@code input}, or {@link #NONE}.  This only
+     * works on the arrays, so it doesn't need a database.
+     *
+     * @param threads How many threads to split the work over.  The apps are split into ranges
+     *                which never share a package, each of which only writes to its own part
+     *                of the result.
+     */
+    static long[] suggestVersions(final Input input, int threads, final boolean unstableUpdates)
+            throws InterruptedException {
+        final int appCount = input.appPackageIds.length;
+        final long[] suggested = new long[appCount];
+        if (threads <= 1) {
+            calculateRange(input, suggested, 0, appCount, unstableUpdates);
+            return suggested;
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<>(threads);
+        int start = 0;
+        for (int i = 1; i <= threads; i++) {
+            int end = i == threads ? appCount : endOfPackage(input, (int) ((long) appCount * i / threads));
+            if (end <= start) {
+                continue;
+            }
+            final int rangeStart = start;
+            final int rangeEnd = end;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    calculateRange(input, suggested, rangeStart, rangeEnd, unstableUpdates);
+                    return null;
+                }
+            });
+            start = end;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw (Error) cause;
+        } finally {
+            executor.shutdownNow();
+        }
+        return suggested;
+    }
+
+    /**
+     * @return The index of the first app at or after {@code index} which belongs to a different
+     * package than the app before it.
+     */
+    private static int endOfPackage(Input input, int index) {
+        long[] appPackageIds = input.appPackageIds;
+        while (index > 0 && index < appPackageIds.length && appPackageIds[index] == appPackageIds[index - 1]) {
+            index++;
+        }
+        return index;
+    }
+
+    private static void calculateRange(Input input, long[] suggested, int appStart, int appEnd,
+                                       boolean unstableUpdates) {
+        long[] appPackageIds = input.appPackageIds;
+        long[] apkPackageIds = input.apkPackageIds;
+        int apkIndex = firstApkAtOrAfter(apkPackageIds, appStart < appEnd ? appPackageIds[appStart] : Long.MAX_VALUE);
+        int app = appStart;
+        while (app < appEnd) {
+            long packageId = appPackageIds[app];
+            while (apkIndex < apkPackageIds.length && apkPackageIds[apkIndex] < packageId) {
+                apkIndex++;
+            }
+            int apkStart = apkIndex;
+            while (apkIndex < apkPackageIds.length && apkPackageIds[apkIndex] == packageId) {
+                apkIndex++;
+            }
+
+            Integer installed = input.installedSignatures.get(packageId);
+            int signature = installed == null ? ANY_SIGNATURE : installed;
+
+            for (; app < appEnd && appPackageIds[app] == packageId; app++) {
+                suggested[app] = suggest(input, app, apkStart, apkIndex, signature, unstableUpdates);
+            }
+        }
+    }
+
+    private static int firstApkAtOrAfter(long[] apkPackageIds, long packageId) {
+        int low = 0;
+        int high = apkPackageIds.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (apkPackageIds[mid] < packageId) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Mirrors the two SQL statements: apps with an upstream version code take the highest apk
+     * not above it (unless unstable updates are allowed), and fall back to the highest apk if
+     * there is none. Apps with a negative upstream version code are left alone by both statements,
+     * unless they don't have a suggested version yet.
+     */
+    private static long suggest(Input input, int app, int apkStart, int apkEnd, int signature,
+                                boolean unstableUpdates) {
+        long upstream = input.appUpstreamVersionCodes[app];
+        if (upstream > 0) {
+            long fromUpstream = highestApk(input, app, apkStart, apkEnd, signature,
+                    unstableUpdates ? Long.MAX_VALUE : upstream);
+            if (fromUpstream != NONE) {
+                return fromUpstream;
+            }
+        } else if (upstream < 0 && input.appSuggested[app] != NONE) {
+            return input.appSuggested[app];
+        }
+        return highestApk(input, app, apkStart, apkEnd, signature, Long.MAX_VALUE);
+    }
+
+    private static long highestApk(Input input, int app, int apkStart, int apkEnd, int signature,
+                                   long maxVersionCode) {
+        boolean compatibleOnly = input.appCompatible[app];
+        for (int i = apkStart; i < apkEnd; i++) {
+            if (input.apkVersionCodes[i] <= maxVersionCode
+                    && (signature == ANY_SIGNATURE || input.apkSignatures[i] == signature)
+                    && (!compatibleOnly || input.apkCompatible[i])) {
+                return input.apkVersionCodes[i];
+            }
+        }
+        return NONE;
+    }
+
+    private int writeChanges(long[] suggested) {
+        SQLiteStatement update = db.compileStatement("UPDATE " + appTable + " SET " +
+                Cols.SUGGESTED_VERSION_CODE + " = ? WHERE " + Cols.ROW_ID + " = ?");
+        int changed = 0;
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < appRowIds.length; i++) {
+                if (suggested[i] == input.appSuggested[i]) {
+                    continue;
+                }
+                if (suggested[i] == NONE) {
+                    update.bindNull(1);
+                } else {
+                    update.bindLong(1, suggested[i]);
+                }
+                update.bindLong(2, appRowIds[i]);
+                update.executeUpdateDelete();
+                changed++;
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            update.close();
+        }
+        return changed;
+    }
+}
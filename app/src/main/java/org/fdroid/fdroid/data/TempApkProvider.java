@@ -58,8 +58,8 @@ public class TempApkProvider extends ApkProvider {
     public static class Helper {
 
         /**
-         * Deletes the old temporary table (if it exists). Then creates a new temporary apk provider
-         * table and populates it with all the data from the real apk provider table.
+         * Creates a new, empty, temporary apk table which will hold the apks of the repo being
+         * updated.
          *
          * This is package local because it must be invoked after
          * {@link org.fdroid.fdroid.data.TempAppProvider.Helper#init(Context, long)}. Due to this
@@ -78,11 +78,11 @@ public class TempApkProvider extends ApkProvider {
     @Override
     public Uri insert(@NonNull Uri uri, ContentValues values) {
         if (MATCHER.match(uri) == CODE_INIT) {
-            initTable(Long.parseLong(uri.getLastPathSegment()));
+            initTable();
             return null;
         }
 
-        return super.insert(uri, values);
+        throw new UnsupportedOperationException("Apks are written to the temporary table by TempTableWriter: " + uri);
     }
 
     @Override
@@ -95,27 +95,12 @@ public class TempApkProvider extends ApkProvider {
         throw new UnsupportedOperationException("Invalid URI for apk content provider: " + uri);
     }
 
-    private void initTable(long repoIdBeingUpdated) {
+    private void initTable() {
         final SQLiteDatabase db = db();
         final String memoryDbName = TempAppProvider.DB;
         db.execSQL(DBHelper.CREATE_TABLE_APK.replaceFirst(ApkTable.NAME, memoryDbName + "." + getTableName()));
         db.execSQL(DBHelper.CREATE_TABLE_APK_ANTI_FEATURE_JOIN.replaceFirst(Schema.ApkAntiFeatureJoinTable.NAME, memoryDbName + "." + getApkAntiFeatureJoinTableName()));
 
-        String where = ApkTable.NAME + "." + Cols.REPO_ID + " != ?";
-        String[] whereArgs = new String[]{Long.toString(repoIdBeingUpdated)};
-        db.execSQL(TempAppProvider.copyData(Cols.ALL_COLS, ApkTable.NAME, memoryDbName + "." + getTableName(), where), whereArgs);
-
-        String antiFeaturesWhere =
-                Schema.ApkAntiFeatureJoinTable.NAME + "." + Schema.ApkAntiFeatureJoinTable.Cols.APK_ID + " IN " +
-                        "(SELECT innerApk." + Cols.ROW_ID + " FROM " + ApkTable.NAME + " AS innerApk " +
-                        "WHERE innerApk." + Cols.REPO_ID + " != ?)";
-
-        db.execSQL(TempAppProvider.copyData(
-                Schema.ApkAntiFeatureJoinTable.Cols.ALL_COLS,
-                Schema.ApkAntiFeatureJoinTable.NAME,
-                memoryDbName + "." + getApkAntiFeatureJoinTableName(),
-                antiFeaturesWhere), whereArgs);
-
         db.execSQL("CREATE INDEX IF NOT EXISTS " + memoryDbName + ".apk_appId on " + getTableName() + " (" + Cols.APP_ID + ");");
         db.execSQL("CREATE INDEX IF NOT EXISTS " + memoryDbName + ".apk_compatible ON " + getTableName() + " (" + Cols.IS_COMPATIBLE + ");");
     }
@@ -4,23 +4,35 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import androidx.annotation.NonNull;
 import android.text.TextUtils;
 import android.util.Log;
 
+import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.data.Schema.ApkTable;
+import org.fdroid.fdroid.data.Schema.AppAntiFeatureJoinTable;
 import org.fdroid.fdroid.data.Schema.AppMetadataTable;
 import org.fdroid.fdroid.data.Schema.AppMetadataTable.Cols;
+import org.fdroid.fdroid.data.Schema.AppRequirementJoinTable;
+import org.fdroid.fdroid.data.Schema.AppSearchTable;
 import org.fdroid.fdroid.data.Schema.CatJoinTable;
 import org.fdroid.fdroid.data.Schema.PackageTable;
 
+import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
- * This class does all of its operations in a temporary sqlite table.
+ * This class does all of its operations in a temporary sqlite table. The temporary tables
+ * only ever hold the apps of the repo being updated, anything which has to be looked up
+ * across repos is done against the real tables once this repo has been committed.
  */
 @SuppressWarnings("LineLength")
 public class TempAppProvider extends AppProvider {
@@ -37,6 +49,15 @@ public class TempAppProvider extends AppProvider {
     static final String TABLE_TEMP_APP = "temp_" + AppMetadataTable.NAME;
     static final String TABLE_TEMP_APK_ANTI_FEATURE_JOIN = "temp_" + Schema.ApkAntiFeatureJoinTable.NAME;
     static final String TABLE_TEMP_CAT_JOIN = "temp_" + CatJoinTable.NAME;
+    static final String TABLE_TEMP_APP_ANTI_FEATURE_JOIN = "temp_" + AppAntiFeatureJoinTable.NAME;
+    static final String TABLE_TEMP_APP_REQUIREMENT_JOIN = "temp_" + AppRequirementJoinTable.NAME;
+
+    /**
+     * The {@link PackageTable} rowid of every package which had an app or apk added, removed
+     * or changed by the commit, i.e. the only packages whose preferred metadata and suggested
+     * version could have changed.
+     */
+    private static final String TABLE_TOUCHED_PACKAGES = "touched_packages";
 
     private static final String PATH_INIT = "init";
     private static final String PATH_COMMIT = "commit";
@@ -64,6 +85,16 @@ public class TempAppProvider extends AppProvider {
         return TABLE_TEMP_CAT_JOIN;
     }
 
+    @Override
+    protected String getAppAntiFeatureJoinTableName() {
+        return TABLE_TEMP_APP_ANTI_FEATURE_JOIN;
+    }
+
+    @Override
+    protected String getAppRequirementJoinTableName() {
+        return TABLE_TEMP_APP_REQUIREMENT_JOIN;
+    }
+
     public static String getAuthority() {
         return AUTHORITY + "." + PROVIDER_NAME;
     }
@@ -94,8 +125,8 @@ public class TempAppProvider extends AppProvider {
     public static class Helper {
 
         /**
-         * Deletes the old temporary table (if it exists). Then creates a new temporary apk provider
-         * table and populates it with all the data from the real apk provider table.
+         * Deletes the old temporary tables (if they exist). Then creates new, empty, temporary
+         * app and apk tables which will only hold the apps and apks of {@code repoIdToUpdate}.
          */
         public static void init(Context context, long repoIdToUpdate) {
             Uri uri = getContentUri().buildUpon()
@@ -106,6 +137,14 @@ public class TempAppProvider extends AppProvider {
             TempApkProvider.Helper.init(context, repoIdToUpdate);
         }
 
+        /**
+         * Throws away the temporary tables set up by {@link #init(Context, long)}, for when an
+         * update fails before it gets to {@link #commitAppsAndApks(Context, long)}.
+         */
+        public static void discard(Context context) {
+            detachTempDb(DBHelper.getInstance(context).getWritableDatabase());
+        }
+
         public static List<App> findByPackageNames(Context context,
                                                    List<String> packageNames, long repoId, String[] projection) {
             Uri uri = getAppsUri(packageNames, repoId);
@@ -114,8 +153,9 @@ public class TempAppProvider extends AppProvider {
         }
 
         /**
-         * Saves data from the temp table to the apk table, by removing _EVERYTHING_ from the real
-         * apk table and inserting all of the records from here. The temporary table is then removed.
+         * Saves data from the temp table to the real tables. Only rows which were added, removed
+         * or changed by this update are written, everything else is left untouched (and so keeps
+         * its rowid). The temporary table is then removed.
          */
         public static void commitAppsAndApks(Context context, long repoIdToCommit) {
             Uri uri = getContentUri().buildUpon()
@@ -139,14 +179,15 @@ public class TempAppProvider extends AppProvider {
     public Uri insert(@NonNull Uri uri, ContentValues values) {
         switch (MATCHER.match(uri)) {
             case CODE_INIT:
-                initTable(Long.parseLong(uri.getLastPathSegment()));
+                initTable();
                 return null;
             case CODE_COMMIT:
-                updateAllAppDetails();
+                // Every apk of an app comes from the same repo, so this can be done before committing.
+                updateCompatibleFlags();
                 commitTable(Long.parseLong(uri.getLastPathSegment()));
                 return null;
             default:
-                return super.insert(uri, values);
+                throw new UnsupportedOperationException("Apps are written to the temporary table by TempTableWriter: " + uri);
         }
     }
 
@@ -169,55 +210,125 @@ public class TempAppProvider extends AppProvider {
         return super.runQuery(uri, selection, projection, sortOrder, 0);
     }
 
-    private void ensureTempTableDetached(SQLiteDatabase db) {
+    private static void detachTempDb(SQLiteDatabase db) {
         try {
             // Ideally we'd ask SQLite if the temp table is attached, but that is not possible.
             // Instead, we resort to hackery:
             // If the first statement does not throw an exception, then the temp db is attached and the second
             // statement will detach the database.
-            db.rawQuery("SELECT * FROM " + DB + "." + getTableName() + " WHERE 0", null);
+            db.rawQuery("SELECT * FROM " + DB + "." + TABLE_TEMP_APP + " WHERE 0", null).close();
             db.execSQL("DETACH DATABASE " + DB);
         } catch (SQLiteException ignored) {
 
         }
     }
 
-    private void initTable(long repoIdBeingUpdated) {
+    private void initTable() {
         final SQLiteDatabase db = db();
 
-        String mainApp = AppMetadataTable.NAME;
         String tempApp = DB + "." + getTableName();
-        String mainCat = CatJoinTable.NAME;
         String tempCat = DB + "." + getCatJoinTableName();
 
-        ensureTempTableDetached(db);
+        detachTempDb(db);
         db.execSQL("ATTACH DATABASE ':memory:' AS " + DB);
         db.execSQL(DBHelper.CREATE_TABLE_APP_METADATA.replaceFirst(AppMetadataTable.NAME, tempApp));
         db.execSQL(DBHelper.CREATE_TABLE_CAT_JOIN.replaceFirst(CatJoinTable.NAME, tempCat));
+        db.execSQL(DBHelper.CREATE_TABLE_APP_ANTI_FEATURE_JOIN.replaceFirst(AppAntiFeatureJoinTable.NAME,
+                DB + "." + getAppAntiFeatureJoinTableName()));
+        db.execSQL(DBHelper.CREATE_TABLE_APP_REQUIREMENT_JOIN.replaceFirst(AppRequirementJoinTable.NAME,
+                DB + "." + getAppRequirementJoinTableName()));
+        db.execSQL("CREATE TABLE " + DB + "." + TABLE_TOUCHED_PACKAGES + " (" + Cols.PACKAGE_ID + " INTEGER PRIMARY KEY)");
 
-        String appWhere = mainApp + "." + Cols.REPO_ID + " != ?";
-        String[] repoArgs = new String[]{Long.toString(repoIdBeingUpdated)};
-        db.execSQL(copyData(Cols.ALL_COLS, mainApp, tempApp, appWhere), repoArgs);
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + DB + ".app_id ON " + getTableName() + " (" + Cols.PACKAGE_ID + ");");
+    }
 
-        // TODO: String catWhere = mainCat + "." + CatJoinTable.Cols..Cols.REPO_ID + " != ?";
-        db.execSQL(copyData(CatJoinTable.Cols.ALL_COLS, mainCat, tempCat, null));
+    /**
+     * The first rowid which is guaranteed to be unused in {@code table}.
+     */
+    static long nextRowId(SQLiteDatabase db, String table) {
+        return DatabaseUtils.longForQuery(db, "SELECT COALESCE(MAX(rowid), 0) + 1 FROM " + table, null);
+    }
 
-        db.execSQL("CREATE INDEX IF NOT EXISTS " + DB + ".app_id ON " + getTableName() + " (" + Cols.PACKAGE_ID + ");");
-        db.execSQL("CREATE INDEX IF NOT EXISTS " + DB + ".app_upstreamVercode ON " + getTableName() + " (" + Cols.UPSTREAM_VERSION_CODE + ");");
-        db.execSQL("CREATE INDEX IF NOT EXISTS " + DB + ".app_compatible ON " + getTableName() + " (" + Cols.IS_COMPATIBLE + ");");
+    /**
+     * A hash of all of the values which are about to be inserted for a single app or apk. This
+     * is only used to compare the incoming row with the one already in the database, it doesn't
+     * need to be cryptographically strong.
+     */
+    static String fingerprint(ContentValues values) {
+        Map<String, Object> sorted = new TreeMap<>();
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            sorted.put(entry.getKey(), entry.getValue());
+        }
+
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Object> entry : sorted.entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof byte[]) {
+                value = Arrays.toString((byte[]) value);
+            }
+            builder.append(entry.getKey()).append('=').append(value).append('\n');
+        }
+        return Utils.hashBytes(builder.toString().getBytes(Charset.forName("UTF-8")), "SHA-1");
     }
 
     /**
-     * Constructs an INSERT INTO ... SELECT statement as a means from getting data from one table
-     * into another. The list of columns to copy are explicitly specified using colsToCopy.
+     * Constructs an INSERT OR REPLACE INTO ... SELECT statement which only copies the rows from
+     * {@code fromTable} that are not already present in {@code toTable} with the same rowid and
+     * the same values for each of {@code colsToCompare}.
      */
-    static String copyData(String[] colsToCopy, String fromTable, String toTable, String where) {
+    static String copyChangedData(String[] colsToCopy, String[] colsToCompare, String fromTable, String toTable, String where) {
         String cols = TextUtils.join(", ", colsToCopy);
-        String sql = "INSERT INTO " + toTable + " (" + cols + ") SELECT " + cols + " FROM " + fromTable;
-        if (!TextUtils.isEmpty(where)) {
-            sql += " WHERE " + where;
+        return "INSERT OR REPLACE INTO " + toTable + " (" + cols + ") " +
+                "SELECT " + cols + " FROM " + fromTable + " AS incoming " +
+                "WHERE " + where + " AND NOT " + existsUnchanged(colsToCompare, toTable);
+    }
+
+    /**
+     * An EXISTS clause which is true when the row aliased as {@code incoming} is already
+     * present in {@code toTable} with the same rowid and the same {@code colsToCompare}.
+     */
+    private static String existsUnchanged(String[] colsToCompare, String toTable) {
+        StringBuilder unchanged = new StringBuilder("existing.rowid = incoming.rowid");
+        for (String col : colsToCompare) {
+            unchanged.append(" AND existing.").append(col).append(" IS incoming.").append(col);
+        }
+        return "EXISTS (SELECT 1 FROM " + toTable + " AS existing WHERE " + unchanged + ")";
+    }
+
+    /**
+     * Deletes the rows of a join table belonging to the apps of the repo being committed, which
+     * are not in the incoming version of that join table. Takes the repo id as its only argument.
+     */
+    private static String deleteMissingJoinRows(String joinTable, String fromJoinTable, String appIdCol, String otherCol) {
+        return "DELETE FROM " + joinTable + " " +
+                "WHERE " + appIdCol + " IN (" + getRepoRowIds(AppMetadataTable.NAME, Cols.REPO_ID) + ") " +
+                "AND NOT EXISTS (SELECT 1 FROM " + fromJoinTable + " AS incoming " +
+                "  WHERE incoming." + appIdCol + " = " + joinTable + "." + appIdCol +
+                "  AND incoming." + otherCol + " = " + joinTable + "." + otherCol + ")";
+    }
+
+    /**
+     * Copies the rows of a join table belonging to the incoming apps of the repo being committed.
+     * Takes the repo id as its only argument.
+     */
+    private static String copyJoinRows(String[] cols, String fromJoinTable, String joinTable, String appIdCol, String fromAppTable) {
+        String colList = TextUtils.join(", ", cols);
+        return "INSERT OR IGNORE INTO " + joinTable + " (" + colList + ") " +
+                "SELECT " + colList + " FROM " + fromJoinTable + " " +
+                "WHERE " + appIdCol + " IN (" + getRepoRowIds(fromAppTable, Cols.REPO_ID) + ")";
+    }
+
+    /**
+     * Runs a single statement which writes to the database and returns how many rows it changed.
+     */
+    private static int execChanges(SQLiteDatabase db, String sql, String[] args) {
+        SQLiteStatement statement = db.compileStatement(sql);
+        try {
+            statement.bindAllArgsAsStrings(args);
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
         }
-        return sql;
     }
 
     private void commitTable(long repoIdToCommit) {
@@ -229,29 +340,113 @@ public class TempAppProvider extends AppProvider {
             final String tempApk = DB + "." + TempApkProvider.TABLE_TEMP_APK;
             final String tempCatJoin = DB + "." + TABLE_TEMP_CAT_JOIN;
             final String tempAntiFeatureJoin = DB + "." + TABLE_TEMP_APK_ANTI_FEATURE_JOIN;
-
-            final String[] repoArgs = new String[]{Long.toString(repoIdToCommit)};
-
-            db.execSQL("DELETE FROM " + AppMetadataTable.NAME + " WHERE " + Cols.REPO_ID + " = ?", repoArgs);
-            db.execSQL(copyData(Cols.ALL_COLS, tempApp, AppMetadataTable.NAME, Cols.REPO_ID + " = ?"), repoArgs);
-
-            db.execSQL("DELETE FROM " + ApkTable.NAME + " WHERE " + ApkTable.Cols.REPO_ID + " = ?", repoArgs);
-            db.execSQL(copyData(ApkTable.Cols.ALL_COLS, tempApk, ApkTable.NAME, ApkTable.Cols.REPO_ID + " = ?"), repoArgs);
-
-            db.execSQL("DELETE FROM " + CatJoinTable.NAME + " WHERE " + getCatRepoWhere(CatJoinTable.NAME), repoArgs);
-            db.execSQL(copyData(CatJoinTable.Cols.ALL_COLS, tempCatJoin, CatJoinTable.NAME, getCatRepoWhere(tempCatJoin)), repoArgs);
-
-            db.execSQL(
+            final String tempAppAntiFeatureJoin = DB + "." + TABLE_TEMP_APP_ANTI_FEATURE_JOIN;
+            final String tempAppRequirementJoin = DB + "." + TABLE_TEMP_APP_REQUIREMENT_JOIN;
+
+            final String repoId = Long.toString(repoIdToCommit);
+            final String[] repoArgs = new String[]{repoId};
+            final String[] repoArgsTwice = new String[]{repoId, repoId};
+
+            String[] appColsToCompare = {Cols.FINGERPRINT, Cols.IS_COMPATIBLE};
+            String[] apkColsToCompare = {ApkTable.Cols.FINGERPRINT, ApkTable.Cols.IS_COMPATIBLE};
+
+            // Rows written before fingerprints existed all look changed, so there is nothing to
+            // be gained from working out which packages were touched.
+            boolean recalculateAll = DatabaseUtils.longForQuery(db,
+                    "SELECT COUNT(*) FROM " + AppMetadataTable.NAME + " WHERE " + Cols.REPO_ID + " = ? " +
+                            "AND " + Cols.FINGERPRINT + " IS NULL", repoArgs) > 0;
+            if (!recalculateAll) {
+                recordTouchedPackages(db, tempApp, tempApk, appColsToCompare, apkColsToCompare, repoArgs, repoArgsTwice);
+            }
+
+            // The join tables go first, because working out which of their rows belong to this
+            // repo relies on the real app and apk tables still containing the old rows.
+            int changes = execChanges(db,
+                    "DELETE FROM " + CatJoinTable.NAME + " " +
+                            "WHERE " + CatJoinTable.Cols.APP_METADATA_ID + " IN (" + getRepoRowIds(AppMetadataTable.NAME, Cols.REPO_ID) + ") " +
+                            "AND NOT EXISTS (SELECT 1 FROM " + tempCatJoin + " AS incoming " +
+                            "  WHERE incoming." + CatJoinTable.Cols.APP_METADATA_ID + " = " + CatJoinTable.NAME + "." + CatJoinTable.Cols.APP_METADATA_ID +
+                            "  AND incoming." + CatJoinTable.Cols.CATEGORY_ID + " = " + CatJoinTable.NAME + "." + CatJoinTable.Cols.CATEGORY_ID + ")",
+                    repoArgs);
+
+            changes += execChanges(db,
                     "DELETE FROM " + Schema.ApkAntiFeatureJoinTable.NAME + " " +
-                            "WHERE " + getAntiFeatureRepoWhere(Schema.ApkAntiFeatureJoinTable.NAME), repoArgs);
-
-            db.execSQL(copyData(
-                    Schema.ApkAntiFeatureJoinTable.Cols.ALL_COLS,
-                    tempAntiFeatureJoin,
-                    Schema.ApkAntiFeatureJoinTable.NAME,
-                    getAntiFeatureRepoWhere(tempAntiFeatureJoin)), repoArgs);
+                            "WHERE " + Schema.ApkAntiFeatureJoinTable.Cols.APK_ID + " IN (" + getRepoRowIds(ApkTable.NAME, ApkTable.Cols.REPO_ID) + ") " +
+                            "AND NOT EXISTS (SELECT 1 FROM " + tempAntiFeatureJoin + " AS incoming " +
+                            "  WHERE incoming." + Schema.ApkAntiFeatureJoinTable.Cols.APK_ID + " = " + Schema.ApkAntiFeatureJoinTable.NAME + "." + Schema.ApkAntiFeatureJoinTable.Cols.APK_ID +
+                            "  AND incoming." + Schema.ApkAntiFeatureJoinTable.Cols.ANTI_FEATURE_ID + " = " + Schema.ApkAntiFeatureJoinTable.NAME + "." + Schema.ApkAntiFeatureJoinTable.Cols.ANTI_FEATURE_ID + ")",
+                    repoArgs);
+
+            changes += execChanges(db, deleteMissingJoinRows(AppAntiFeatureJoinTable.NAME, tempAppAntiFeatureJoin,
+                    AppAntiFeatureJoinTable.Cols.APP_METADATA_ID, AppAntiFeatureJoinTable.Cols.ANTI_FEATURE_ID), repoArgs);
+
+            changes += execChanges(db, deleteMissingJoinRows(AppRequirementJoinTable.NAME, tempAppRequirementJoin,
+                    AppRequirementJoinTable.Cols.APP_METADATA_ID, AppRequirementJoinTable.Cols.REQUIREMENT), repoArgs);
+
+            // Search entries of apps which are about to be removed or replaced. They are added
+            // back once the new rows have been copied in below.
+            execChanges(db,
+                    "DELETE FROM " + AppSearchTable.NAME + " WHERE " + AppSearchTable.Cols.DOC_ID + " IN (" +
+                            "SELECT " + Cols.ROW_ID + " FROM " + AppMetadataTable.NAME + " WHERE " + Cols.REPO_ID + " = ? " +
+                            "AND " + Cols.ROW_ID + " NOT IN (" + getRepoRowIds(tempApp, Cols.REPO_ID) + ") " +
+                            "UNION ALL SELECT incoming." + Cols.ROW_ID + " FROM " + tempApp + " AS incoming " +
+                            "WHERE incoming." + Cols.REPO_ID + " = ? AND NOT " + existsUnchanged(appColsToCompare, AppMetadataTable.NAME) + ")",
+                    new String[]{repoId, repoId, repoId});
+
+            changes += execChanges(db,
+                    "DELETE FROM " + AppMetadataTable.NAME + " WHERE " + Cols.REPO_ID + " = ? " +
+                            "AND " + Cols.ROW_ID + " NOT IN (" + getRepoRowIds(tempApp, Cols.REPO_ID) + ")",
+                    repoArgsTwice);
+
+            changes += execChanges(db, copyChangedData(Cols.ALL_COLS, appColsToCompare, tempApp,
+                    AppMetadataTable.NAME, "incoming." + Cols.REPO_ID + " = ?"), repoArgs);
+
+            execChanges(db, DBHelper.INSERT_INTO_APP_SEARCH +
+                            "WHERE app." + Cols.REPO_ID + " = ? AND NOT EXISTS (SELECT 1 FROM " + AppSearchTable.NAME + " " +
+                            "WHERE " + AppSearchTable.Cols.DOC_ID + " = app." + Cols.ROW_ID + ")",
+                    repoArgs);
+
+            changes += execChanges(db,
+                    "DELETE FROM " + ApkTable.NAME + " WHERE " + ApkTable.Cols.REPO_ID + " = ? " +
+                            "AND " + ApkTable.Cols.ROW_ID + " NOT IN (" + getRepoRowIds(tempApk, ApkTable.Cols.REPO_ID) + ")",
+                    repoArgsTwice);
+
+            changes += execChanges(db, copyChangedData(ApkTable.Cols.ALL_COLS, apkColsToCompare, tempApk,
+                    ApkTable.NAME, "incoming." + ApkTable.Cols.REPO_ID + " = ?"), repoArgs);
+
+            changes += execChanges(db,
+                    "INSERT OR IGNORE INTO " + CatJoinTable.NAME + " (" + TextUtils.join(", ", CatJoinTable.Cols.ALL_COLS) + ") " +
+                            "SELECT " + TextUtils.join(", ", CatJoinTable.Cols.ALL_COLS) + " FROM " + tempCatJoin + " " +
+                            "WHERE " + CatJoinTable.Cols.APP_METADATA_ID + " IN (" + getRepoRowIds(tempApp, Cols.REPO_ID) + ")",
+                    repoArgs);
+
+            changes += execChanges(db,
+                    "INSERT OR IGNORE INTO " + Schema.ApkAntiFeatureJoinTable.NAME + " (" + TextUtils.join(", ", Schema.ApkAntiFeatureJoinTable.Cols.ALL_COLS) + ") " +
+                            "SELECT " + TextUtils.join(", ", Schema.ApkAntiFeatureJoinTable.Cols.ALL_COLS) + " FROM " + tempAntiFeatureJoin + " " +
+                            "WHERE " + Schema.ApkAntiFeatureJoinTable.Cols.APK_ID + " IN (" + getRepoRowIds(tempApk, ApkTable.Cols.REPO_ID) + ")",
+                    repoArgs);
+
+            changes += execChanges(db, copyJoinRows(AppAntiFeatureJoinTable.Cols.ALL_COLS, tempAppAntiFeatureJoin,
+                    AppAntiFeatureJoinTable.NAME, AppAntiFeatureJoinTable.Cols.APP_METADATA_ID, tempApp), repoArgs);
+
+            changes += execChanges(db, copyJoinRows(AppRequirementJoinTable.Cols.ALL_COLS, tempAppRequirementJoin,
+                    AppRequirementJoinTable.NAME, AppRequirementJoinTable.Cols.APP_METADATA_ID, tempApp), repoArgs);
+
+            Utils.debugLog(TAG, "Committing repo " + repoIdToCommit + " changed " + changes + " rows");
+
+            // Now that the real tables are up to date, work out the details which depend on
+            // the apps and apks from every repo.
+            if (recalculateAll) {
+                updatePreferredMetadata(AppMetadataTable.NAME, null);
+                updateSuggestedFromUpstream(AppMetadataTable.NAME, ApkTable.NAME, null);
+            } else {
+                String touchedPackages = "SELECT " + Cols.PACKAGE_ID + " FROM " + DB + "." + TABLE_TOUCHED_PACKAGES;
+                updatePreferredMetadata(AppMetadataTable.NAME, touchedPackages);
+                updateSuggestedFromUpstreamForPackages(AppMetadataTable.NAME, ApkTable.NAME, touchedPackages);
+            }
 
             db.setTransactionSuccessful();
+            RepoCache.invalidate();
             Log.d(TAG, "delete: notifying" + ApkProvider.getContentUri() + ", " + AppProvider.getContentUri() + ", " + CategoryProvider.getContentUri());
             getContext().getContentResolver().notifyChange(AppProvider.getContentUri(), null);
             getContext().getContentResolver().notifyChange(ApkProvider.getContentUri(), null);
@@ -262,22 +457,41 @@ public class TempAppProvider extends AppProvider {
         }
     }
 
-    private String getCatRepoWhere(String categoryTable) {
-        String catRepoSubquery =
-                "SELECT DISTINCT innerCatJoin." + CatJoinTable.Cols.ROW_ID + " " +
-                        "FROM " + categoryTable + " AS innerCatJoin " +
-                        "JOIN " + getTableName() + " AS app ON (app." + Cols.ROW_ID + " = innerCatJoin." + CatJoinTable.Cols.APP_METADATA_ID + ") " +
-                        "WHERE app." + Cols.REPO_ID + " = ?";
-
-        return CatJoinTable.Cols.ROW_ID + " IN (" + catRepoSubquery + ")";
+    /**
+     * Fills {@link #TABLE_TOUCHED_PACKAGES} with the package of each app and apk which
+     * {@link #commitTable(long)} is about to add, remove or replace. This has to happen before
+     * anything is written, while the real tables still hold the rows from the last update.
+     */
+    private static void recordTouchedPackages(SQLiteDatabase db, String tempApp, String tempApk,
+                                              String[] appColsToCompare, String[] apkColsToCompare,
+                                              String[] repoArgs, String[] repoArgsTwice) {
+        final String touched = "INSERT OR IGNORE INTO " + DB + "." + TABLE_TOUCHED_PACKAGES + " (" + Cols.PACKAGE_ID + ") ";
+
+        execChanges(db, touched +
+                        "SELECT " + Cols.PACKAGE_ID + " FROM " + AppMetadataTable.NAME + " WHERE " + Cols.REPO_ID + " = ? " +
+                        "AND " + Cols.ROW_ID + " NOT IN (" + getRepoRowIds(tempApp, Cols.REPO_ID) + ")",
+                repoArgsTwice);
+
+        execChanges(db, touched +
+                        "SELECT incoming." + Cols.PACKAGE_ID + " FROM " + tempApp + " AS incoming " +
+                        "WHERE incoming." + Cols.REPO_ID + " = ? AND NOT " + existsUnchanged(appColsToCompare, AppMetadataTable.NAME),
+                repoArgs);
+
+        execChanges(db, touched +
+                        "SELECT app." + Cols.PACKAGE_ID + " FROM " + ApkTable.NAME + " AS apk " +
+                        "JOIN " + AppMetadataTable.NAME + " AS app ON (app." + Cols.ROW_ID + " = apk." + ApkTable.Cols.APP_ID + ") " +
+                        "WHERE apk." + ApkTable.Cols.REPO_ID + " = ? " +
+                        "AND apk." + ApkTable.Cols.ROW_ID + " NOT IN (" + getRepoRowIds(tempApk, ApkTable.Cols.REPO_ID) + ")",
+                repoArgsTwice);
+
+        execChanges(db, touched +
+                        "SELECT app." + Cols.PACKAGE_ID + " FROM " + tempApk + " AS incoming " +
+                        "JOIN " + tempApp + " AS app ON (app." + Cols.ROW_ID + " = incoming." + ApkTable.Cols.APP_ID + ") " +
+                        "WHERE incoming." + ApkTable.Cols.REPO_ID + " = ? AND NOT " + existsUnchanged(apkColsToCompare, ApkTable.NAME),
+                repoArgs);
     }
 
-    private String getAntiFeatureRepoWhere(String antiFeatureTable) {
-        String subquery =
-                "SELECT innerApk." + ApkTable.Cols.ROW_ID + " " +
-                        "FROM " + ApkTable.NAME + " AS innerApk " +
-                        "WHERE innerApk." + ApkTable.Cols.REPO_ID + " = ?";
-
-        return antiFeatureTable + "." + Schema.ApkAntiFeatureJoinTable.Cols.APK_ID + " IN (" + subquery + ")";
+    private static String getRepoRowIds(String table, String repoIdCol) {
+        return "SELECT rowid FROM " + table + " WHERE " + repoIdCol + " = ?";
     }
 }
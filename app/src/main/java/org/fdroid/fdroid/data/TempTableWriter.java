@@ -0,0 +1,258 @@
+package org.fdroid.fdroid.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.data.Schema.AntiFeatureTable;
+import org.fdroid.fdroid.data.Schema.ApkAntiFeatureJoinTable;
+import org.fdroid.fdroid.data.Schema.ApkTable;
+import org.fdroid.fdroid.data.Schema.AppAntiFeatureJoinTable;
+import org.fdroid.fdroid.data.Schema.AppMetadataTable;
+import org.fdroid.fdroid.data.Schema.AppRequirementJoinTable;
+import org.fdroid.fdroid.data.Schema.CatJoinTable;
+import org.fdroid.fdroid.data.Schema.CategoryTable;
+import org.fdroid.fdroid.data.Schema.PackageTable;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes apps and apks from an index straight into the temporary tables set up by
+ * {@link TempAppProvider.Helper#init(Context, long)}. This does the same job as inserting
+ * via {@link TempAppProvider} and {@link TempApkProvider}, but skips the
+ * {@link android.content.ContentResolver} and reuses the same compiled statements for every
+ * row, which matters when there are tens of thousands of rows in a single index.
+ * <p>
+ * This is the only way apps and apks get into the temporary tables. Each row is given the
+ * rowid it already has in the real table, if it is there, and a {@link AppMetadataTable.Cols#FINGERPRINT}
+ * of its values (see {@link TempAppProvider#fingerprint(ContentValues)}), so that the commit
+ * can tell what changed.
+ */
+final class TempTableWriter implements Closeable {
+
+    private static final String TAG = "TempTableWriter";
+
+    private static final String TEMP_APP = TempAppProvider.DB + "." + TempAppProvider.TABLE_TEMP_APP;
+    private static final String TEMP_APK = TempAppProvider.DB + "." + TempApkProvider.TABLE_TEMP_APK;
+    private static final String TEMP_CAT_JOIN = TempAppProvider.DB + "." + TempAppProvider.TABLE_TEMP_CAT_JOIN;
+    private static final String TEMP_ANTI_FEATURE_JOIN = TempAppProvider.DB + "." + TempAppProvider.TABLE_TEMP_APK_ANTI_FEATURE_JOIN;
+    private static final String TEMP_APP_ANTI_FEATURE_JOIN = TempAppProvider.DB + "." + TempAppProvider.TABLE_TEMP_APP_ANTI_FEATURE_JOIN;
+    private static final String TEMP_APP_REQUIREMENT_JOIN = TempAppProvider.DB + "." + TempAppProvider.TABLE_TEMP_APP_REQUIREMENT_JOIN;
+
+    private final SQLiteDatabase db;
+
+    private final SQLiteStatement insertApp;
+    private final SQLiteStatement insertApk;
+    private final SQLiteStatement insertCategoryJoin;
+    private final SQLiteStatement insertAntiFeatureJoin;
+    private final SQLiteStatement insertAppAntiFeatureJoin;
+    private final SQLiteStatement insertAppRequirementJoin;
+    private final SQLiteStatement findAppRowId;
+    private final SQLiteStatement findApkRowId;
+
+    private final NameIdResolver packageIds;
+    private final NameIdResolver categoryIds;
+    private final NameIdResolver antiFeatureIds;
+
+    /**
+     * Apps and apks which are new to the repo being updated get a rowid above anything
+     * in the real table, so that they never collide with the rowid that an existing
+     * one is given back when it is re-inserted from the index.
+     */
+    private long nextAppRowId;
+    private long nextApkRowId;
+
+    TempTableWriter(Context context) {
+        db = DBHelper.getInstance(context).getWritableDatabase();
+
+        insertApp = db.compileStatement(insertSql(TEMP_APP, AppMetadataTable.Cols.ALL_COLS));
+        insertApk = db.compileStatement(insertSql(TEMP_APK, ApkTable.Cols.ALL_COLS));
+
+        // Servers can repeat a category or anti feature for the same app/apk, in which case
+        // the second one is ignored rather than violating the primary key.
+        insertCategoryJoin = db.compileStatement("INSERT OR IGNORE INTO " + TEMP_CAT_JOIN + " (" +
+                CatJoinTable.Cols.APP_METADATA_ID + ", " + CatJoinTable.Cols.CATEGORY_ID + ") VALUES (?, ?)");
+        insertAntiFeatureJoin = db.compileStatement("INSERT OR IGNORE INTO " + TEMP_ANTI_FEATURE_JOIN + " (" +
+                ApkAntiFeatureJoinTable.Cols.APK_ID + ", " + ApkAntiFeatureJoinTable.Cols.ANTI_FEATURE_ID + ") VALUES (?, ?)");
+        insertAppAntiFeatureJoin = db.compileStatement("INSERT OR IGNORE INTO " + TEMP_APP_ANTI_FEATURE_JOIN + " (" +
+                AppAntiFeatureJoinTable.Cols.APP_METADATA_ID + ", " + AppAntiFeatureJoinTable.Cols.ANTI_FEATURE_ID + ") VALUES (?, ?)");
+        insertAppRequirementJoin = db.compileStatement("INSERT OR IGNORE INTO " + TEMP_APP_REQUIREMENT_JOIN + " (" +
+                AppRequirementJoinTable.Cols.APP_METADATA_ID + ", " + AppRequirementJoinTable.Cols.REQUIREMENT + ") VALUES (?, ?)");
+
+        findAppRowId = db.compileStatement(findIdSql(AppMetadataTable.NAME,
+                AppMetadataTable.Cols.PACKAGE_ID + " = ? AND " + AppMetadataTable.Cols.REPO_ID + " = ?"));
+        findApkRowId = db.compileStatement(findIdSql(ApkTable.NAME,
+                ApkTable.Cols.REPO_ID + " = ? AND " + ApkTable.Cols.APP_ID + " = ? AND " +
+                        ApkTable.Cols.VERSION_CODE + " = ? AND " + ApkTable.Cols.HASH + " = ?"));
+
+        packageIds = new NameIdResolver(db, PackageTable.NAME, PackageTable.Cols.PACKAGE_NAME, false);
+        categoryIds = new NameIdResolver(db, CategoryTable.NAME, CategoryTable.Cols.NAME, true);
+        antiFeatureIds = new NameIdResolver(db, AntiFeatureTable.NAME, AntiFeatureTable.Cols.NAME, false);
+
+        nextAppRowId = TempAppProvider.nextRowId(db, AppMetadataTable.NAME);
+        nextApkRowId = TempAppProvider.nextRowId(db, ApkTable.NAME);
+    }
+
+    private static String insertSql(String table, String[] cols) {
+        String[] placeholders = new String[cols.length];
+        Arrays.fill(placeholders, "?");
+        return "INSERT INTO " + table + " (" + TextUtils.join(", ", cols) + ") " +
+                "VALUES (" + TextUtils.join(", ", placeholders) + ")";
+    }
+
+    /**
+     * A query which returns the rowid of the matching row, or 0 if there is none (rather than
+     * throwing like {@link SQLiteStatement#simpleQueryForLong()} does when there are no rows).
+     */
+    private static String findIdSql(String table, String selection) {
+        return "SELECT COALESCE((SELECT rowid FROM " + table + " WHERE " + selection + " LIMIT 1), 0)";
+    }
+
+    /**
+     * Inserts each app (along with its categories) in a single transaction.
+     *
+     * @return The rowid of each app, keyed by package name, so that apks can refer to them.
+     */
+    Map<String, Long> insertApps(List<App> apps) {
+        Map<String, Long> ids = new HashMap<>(apps.size());
+        db.beginTransaction();
+        try {
+            packageIds.sync();
+            categoryIds.sync();
+            antiFeatureIds.sync();
+            for (App app : apps) {
+                ids.put(app.packageName, insertApp(app));
+            }
+            packageIds.flush();
+            categoryIds.flush();
+            antiFeatureIds.flush();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return ids;
+    }
+
+    /**
+     * Inserts each apk (along with its anti features) in a single transaction. The
+     * {@link Apk#appId} of each must already be set.
+     */
+    void insertApks(List<Apk> apks) {
+        db.beginTransaction();
+        try {
+            antiFeatureIds.sync();
+            for (Apk apk : apks) {
+                insertApk(apk);
+            }
+            antiFeatureIds.flush();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private long insertApp(App app) {
+        ContentValues values = app.toContentValues();
+        long packageId = packageIds.resolve(values.getAsString(AppMetadataTable.Cols.Package.PACKAGE_NAME));
+        values.remove(AppMetadataTable.Cols.Package.PACKAGE_NAME);
+        values.put(AppMetadataTable.Cols.PACKAGE_ID, packageId);
+        AppProvider.cleanValuesForInsert(values);
+
+        String categories = values.getAsString(AppMetadataTable.Cols.ForWriting.Categories.CATEGORIES);
+        values.remove(AppMetadataTable.Cols.ForWriting.Categories.CATEGORIES);
+
+        values.put(AppMetadataTable.Cols.FINGERPRINT, TempAppProvider.fingerprint(values));
+
+        long rowId = findId(findAppRowId, packageId, app.repoId);
+        values.put(AppMetadataTable.Cols.ROW_ID, rowId > 0 ? rowId : nextAppRowId++);
+
+        long appId = execInsert(insertApp, AppMetadataTable.Cols.ALL_COLS, values);
+
+        String[] categoryNames = Utils.parseCommaSeparatedString(categories);
+        if (categoryNames != null) {
+            for (String categoryName : categoryNames) {
+                insertCategoryJoin.bindLong(1, appId);
+                insertCategoryJoin.bindLong(2, categoryIds.resolve(categoryName));
+                insertCategoryJoin.executeInsert();
+            }
+        }
+
+        if (app.antiFeatures != null) {
+            for (String antiFeatureName : app.antiFeatures) {
+                insertAppAntiFeatureJoin.bindLong(1, appId);
+                insertAppAntiFeatureJoin.bindLong(2, antiFeatureIds.resolve(antiFeatureName));
+                insertAppAntiFeatureJoin.executeInsert();
+            }
+        }
+
+        if (app.requirements != null) {
+            for (String requirement : app.requirements) {
+                insertAppRequirementJoin.bindLong(1, appId);
+                insertAppRequirementJoin.bindString(2, requirement);
+                insertAppRequirementJoin.executeInsert();
+            }
+        }
+
+        return appId;
+    }
+
+    private void insertApk(Apk apk) {
+        ContentValues values = apk.toContentValues();
+        String antiFeatures = values.getAsString(ApkTable.Cols.AntiFeatures.ANTI_FEATURES);
+        values.remove(ApkTable.Cols.AntiFeatures.ANTI_FEATURES);
+
+        values.put(ApkTable.Cols.FINGERPRINT, TempAppProvider.fingerprint(values));
+
+        long rowId = findId(findApkRowId, apk.repoId, apk.appId, apk.versionCode, apk.hash);
+        values.put(ApkTable.Cols.ROW_ID, rowId > 0 ? rowId : nextApkRowId++);
+
+        long apkId = execInsert(insertApk, ApkTable.Cols.ALL_COLS, values);
+
+        String[] antiFeatureNames = Utils.parseCommaSeparatedString(antiFeatures);
+        if (antiFeatureNames != null) {
+            for (String antiFeatureName : antiFeatureNames) {
+                insertAntiFeatureJoin.bindLong(1, apkId);
+                insertAntiFeatureJoin.bindLong(2, antiFeatureIds.resolve(antiFeatureName));
+                insertAntiFeatureJoin.executeInsert();
+            }
+        }
+    }
+
+    private static long findId(SQLiteStatement statement, Object... args) {
+        for (int i = 0; i < args.length; i++) {
+            DatabaseUtils.bindObjectToProgram(statement, i + 1, args[i]);
+        }
+        return statement.simpleQueryForLong();
+    }
+
+    private static long execInsert(SQLiteStatement statement, String[] cols, ContentValues values) {
+        statement.clearBindings();
+        for (int i = 0; i < cols.length; i++) {
+            DatabaseUtils.bindObjectToProgram(statement, i + 1, values.get(cols[i]));
+        }
+        return statement.executeInsert();
+    }
+
+    @Override
+    public void close() {
+        insertApp.close();
+        insertApk.close();
+        insertCategoryJoin.close();
+        insertAntiFeatureJoin.close();
+        insertAppAntiFeatureJoin.close();
+        insertAppRequirementJoin.close();
+        findAppRowId.close();
+        findApkRowId.close();
+        packageIds.close();
+        categoryIds.close();
+        antiFeatureIds.close();
+    }
+}
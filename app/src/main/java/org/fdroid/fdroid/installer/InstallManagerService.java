@@ -27,7 +27,6 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.WildcardFileFilter;
 import org.fdroid.fdroid.AppDetails;
 import org.fdroid.fdroid.AppUpdateStatusManager;
-import org.fdroid.fdroid.FDroidApp;
 import org.fdroid.fdroid.Hasher;
 import org.fdroid.fdroid.R;
 import org.fdroid.fdroid.Utils;
@@ -35,9 +34,11 @@ import org.fdroid.fdroid.compat.PackageManagerCompat;
 import org.fdroid.fdroid.data.Apk;
 import org.fdroid.fdroid.data.App;
 import org.fdroid.fdroid.data.AppProvider;
+import org.fdroid.fdroid.data.RepoProvider;
 import org.fdroid.fdroid.data.Schema;
 import org.fdroid.fdroid.net.Downloader;
 import org.fdroid.fdroid.net.DownloaderService;
+import org.fdroid.fdroid.net.MirrorFailover;
 
 import java.io.File;
 import java.io.FileFilter;
@@ -104,6 +105,7 @@ public class InstallManagerService extends Service {
 
     private static final String EXTRA_APP = "org.fdroid.fdroid.installer.extra.APP";
     private static final String EXTRA_APK = "org.fdroid.fdroid.installer.extra.APK";
+    private static final String EXTRA_PRIORITY = "org.fdroid.fdroid.installer.extra.PRIORITY";
 
     private static SharedPreferences pendingInstalls;
 
@@ -235,12 +237,11 @@ public class InstallManagerService extends Service {
         NotificationCompat.Builder builder = createNotificationBuilder(urlString, apk);
         notificationManager.notify(urlString.hashCode(), builder.build());
 
-        FDroidApp.resetMirrorVars();
-        DownloaderService.setTimeout(FDroidApp.getTimeout());
-
         appUpdateStatusManager.addApk(apk, AppUpdateStatusManager.Status.Downloading, null);
 
-        registerPackageDownloaderReceivers(urlString, builder);
+        int priority = intent.getIntExtra(EXTRA_PRIORITY, DownloaderService.PRIORITY_USER);
+        MirrorFailover failover = new MirrorFailover(this, RepoProvider.Helper.findById(this, apk.repoId), urlString);
+        registerPackageDownloaderReceivers(urlString, apk, priority, failover, builder);
         getObb(urlString, apk.getMainObbUrl(), apk.getMainObbFile(), apk.obbMainFileSha256, builder);
         getObb(urlString, apk.getPatchObbUrl(), apk.getPatchObbFile(), apk.obbPatchFileSha256, builder);
 
@@ -248,7 +249,7 @@ public class InstallManagerService extends Service {
         long apkFileSize = apkFilePath.length();
         if (!apkFilePath.exists() || apkFileSize < apk.size) {
             Utils.debugLog(TAG, "download " + urlString + " " + apkFilePath);
-            DownloaderService.queue(this, urlString, apk.repoId, urlString);
+            DownloaderService.queue(this, failover.getUrl(), apk, priority, failover.getTimeout());
         } else if (ApkCache.apkIsCached(apkFilePath, apk)) {
             Utils.debugLog(TAG, "skip download, we have it, straight to install " + urlString + " " + apkFilePath);
             sendBroadcast(intent.getData(), Downloader.ACTION_STARTED, apkFilePath);
@@ -256,7 +257,7 @@ public class InstallManagerService extends Service {
         } else {
             Utils.debugLog(TAG, "delete and download again " + urlString + " " + apkFilePath);
             apkFilePath.delete();
-            DownloaderService.queue(this, urlString, apk.repoId, urlString);
+            DownloaderService.queue(this, failover.getUrl(), apk, priority, failover.getTimeout());
         }
 
         return START_REDELIVER_INTENT; // if killed before completion, retry Intent
@@ -345,7 +346,9 @@ public class InstallManagerService extends Service {
      * Register a {@link BroadcastReceiver} for tracking download progress for a
      * give {@code urlString}.  There can be multiple of these registered at a time.
      */
-    private void registerPackageDownloaderReceivers(String urlString, final NotificationCompat.Builder builder) {
+    private void registerPackageDownloaderReceivers(String urlString, final Apk queuedApk, final int priority,
+                                                    final MirrorFailover failover,
+                                                    final NotificationCompat.Builder builder) {
 
         BroadcastReceiver downloadReceiver = new BroadcastReceiver() {
             @Override
@@ -356,7 +359,6 @@ public class InstallManagerService extends Service {
                 }
                 Uri downloadUri = intent.getData();
                 String urlString = downloadUri.toString();
-                long repoId = intent.getLongExtra(Downloader.EXTRA_REPO_ID, 0);
                 String mirrorUrlString = intent.getStringExtra(Downloader.EXTRA_MIRROR_URL);
 
                 switch (intent.getAction()) {
@@ -397,8 +399,9 @@ public class InstallManagerService extends Service {
                         break;
                     case Downloader.ACTION_CONNECTION_FAILED:
                         try {
-                            DownloaderService.queue(context, FDroidApp.getMirror(mirrorUrlString, repoId), repoId, urlString);
-                            DownloaderService.setTimeout(FDroidApp.getTimeout());
+                            failover.next();
+                            DownloaderService.queue(context, failover.getUrl(), queuedApk, priority,
+                                    failover.getTimeout());
                         } catch (IOException e) {
                             Toast.makeText(context,"Ran out of mirrors", Toast.LENGTH_SHORT).show();
                             appUpdateStatusManager.setDownloadError(urlString, intent.getStringExtra(Downloader.EXTRA_ERROR_MESSAGE));
@@ -506,6 +509,13 @@ public class InstallManagerService extends Service {
      * @param context this app's {@link Context}
      */
     public static void queue(Context context, App app, @NonNull Apk apk) {
+        queue(context, app, apk, DownloaderService.PRIORITY_USER);
+    }
+
+    /**
+     * @param priority which {@link DownloaderService} priority class to download the APK with
+     */
+    public static void queue(Context context, App app, @NonNull Apk apk, int priority) {
         String urlString = apk.getCanonicalUrl();
         AppUpdateStatusManager.getInstance(context).addApk(apk, AppUpdateStatusManager.Status.PendingInstall, null);
         putPendingInstall(context, urlString, apk.packageName);
@@ -515,6 +525,7 @@ public class InstallManagerService extends Service {
         intent.setData(Uri.parse(urlString));
         intent.putExtra(EXTRA_APP, app);
         intent.putExtra(EXTRA_APK, apk);
+        intent.putExtra(EXTRA_PRIORITY, priority);
         context.startService(intent);
     }
 
@@ -0,0 +1,209 @@
+package org.fdroid.fdroid.net;
+
+import android.os.Process;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs downloads on a fixed pool of worker threads, with no more than a given number of them
+ * talking to the same host at once. Waiting downloads are started in order of their priority
+ * (lower numbers first), and in the order they were queued within the same priority. A download
+ * which can't start because its host is already busy doesn't hold up downloads from other hosts
+ * queued after it.  Downloads of the lowest priority, the one passed as {@code lastPriority},
+ * are held back until nothing else is queued or running, and then run one at a time.
+ * <p>
+ * Each download is identified by its URL, and the same URL is never queued or run twice at once.
+ * All of the bookkeeping is guarded by the lock of the scheduler, which callers can also take to
+ * do something atomically with it, e.g. to only stop a service if nothing was queued meanwhile.
+ */
+final class DownloadScheduler {
+
+    private static final class Job implements Comparable<Job> {
+        final String urlString;
+        final String host;
+        final int priority;
+        final long sequence;
+        final Runnable work;
+
+        Job(String urlString, String host, int priority, long sequence, Runnable work) {
+            this.urlString = urlString;
+            this.host = host;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.work = work;
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : sequence == other.sequence ? 0 : 1;
+        }
+    }
+
+    private final int maxDownloads;
+    private final int maxDownloadsPerHost;
+    private final int lastPriority;
+    private final Runnable onIdle;
+    private final ExecutorService workers;
+
+    private final TreeSet<Job> queued = new TreeSet<>();
+    private final Map<String, Job> active = new HashMap<>();
+    private final Map<String, Integer> activePerHost = new HashMap<>();
+    private long nextSequence;
+
+    /**
+     * @param lastPriority Downloads queued with this priority, or a lower one (a higher number),
+     *                     are only started when no other download is queued or running.
+     * @param onIdle Run on a worker thread each time the last running download finishes and
+     *               there is nothing left in the queue, while holding the lock of the scheduler.
+     *               It is not run anymore after {@link #shutdown()}.
+     */
+    DownloadScheduler(int maxDownloads, int maxDownloadsPerHost, int lastPriority, Runnable onIdle) {
+        this.maxDownloads = maxDownloads;
+        this.maxDownloadsPerHost = maxDownloadsPerHost;
+        this.lastPriority = lastPriority;
+        this.onIdle = onIdle;
+        workers = Executors.newFixedThreadPool(maxDownloads, new ThreadFactory() {
+            private int count;
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "DownloadScheduler-" + ++count);
+            }
+        });
+    }
+
+    /**
+     * Queues {@code work} to be run once a worker and a connection to {@code host} are free.
+     * If {@code urlString} is already waiting, it just moves up to {@code priority} if that is
+     * more urgent than before.
+     *
+     * @return false if {@code urlString} is already being downloaded, or the scheduler was shut
+     * down, so nothing was queued.
+     */
+    synchronized boolean queue(String urlString, String host, int priority, Runnable work) {
+        if (workers.isShutdown() || active.containsKey(urlString)) {
+            return false;
+        }
+        Job waiting = findQueued(urlString);
+        if (waiting != null) {
+            if (waiting.priority <= priority) {
+                return true;
+            }
+            queued.remove(waiting);
+            work = waiting.work;
+        }
+        queued.add(new Job(urlString, host == null ? "" : host, priority, nextSequence++, work));
+        startWaitingJobs();
+        return true;
+    }
+
+    /**
+     * Takes {@code urlString} out of the queue, if it hasn't started yet.
+     *
+     * @return whether it was waiting in the queue.
+     */
+    synchronized boolean remove(String urlString) {
+        Job waiting = findQueued(urlString);
+        return waiting != null && queued.remove(waiting);
+    }
+
+    /**
+     * Frees up the worker and host slot of {@code urlString} while its work is still running, so
+     * that the same URL can be queued again straight away, e.g. from a listener which retries it
+     * on another mirror.  Must only be called from the work itself, once it is as good as done.
+     */
+    synchronized void release(String urlString) {
+        Job job = active.get(urlString);
+        if (job != null) {
+            finished(job);
+        }
+    }
+
+    synchronized boolean isQueuedOrActive(String urlString) {
+        return active.containsKey(urlString) || findQueued(urlString) != null;
+    }
+
+    synchronized boolean isIdle() {
+        return active.isEmpty() && queued.isEmpty();
+    }
+
+    /**
+     * Drops everything still waiting. Downloads which are already running are left to finish.
+     */
+    synchronized void shutdown() {
+        queued.clear();
+        workers.shutdown();
+    }
+
+    private Job findQueued(String urlString) {
+        for (Job job : queued) {
+            if (job.urlString.equals(urlString)) {
+                return job;
+            }
+        }
+        return null;
+    }
+
+    private void startWaitingJobs() {
+        Iterator<Job> iterator = queued.iterator();
+        while (active.size() < maxDownloads && iterator.hasNext()) {
+            final Job job = iterator.next();
+            if (job.priority >= lastPriority && !(active.isEmpty() && job == queued.first())) {
+                // everything queued after it is held back too
+                return;
+            }
+            Integer perHost = activePerHost.get(job.host);
+            if (perHost != null && perHost >= maxDownloadsPerHost) {
+                continue;
+            }
+            iterator.remove();
+            active.put(job.urlString, job);
+            activePerHost.put(job.host, perHost == null ? 1 : perHost + 1);
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        job.work.run();
+                    } finally {
+                        finished(job);
+                    }
+                }
+            });
+        }
+    }
+
+    private synchronized void finished(Job job) {
+        if (active.get(job.urlString) != job) {
+            return; // already released
+        }
+        active.remove(job.urlString);
+        int perHost = activePerHost.get(job.host) - 1;
+        if (perHost == 0) {
+            activePerHost.remove(job.host);
+        } else {
+            activePerHost.put(job.host, perHost);
+        }
+        if (workers.isShutdown()) {
+            return;
+        }
+        startWaitingJobs();
+        if (isIdle()) {
+            onIdle.run();
+        }
+    }
+}
@@ -10,15 +10,43 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.ConnectException;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 public abstract class Downloader {
 
     private static final String TAG = "Downloader";
 
+    private static final int PROGRESS_INTERVAL_MILLIS = 100;
+
+    /**
+     * The most that the copy buffer of each thread grows to, see {@link #getBuffer(int)}.
+     */
+    private static final int MAX_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Sends the progress of every download which is running, so that each one doesn't
+     * need a thread of its own just for that.
+     */
+    private static final ScheduledExecutorService PROGRESS_TICKER =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "DownloaderProgress");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private static final ThreadLocal<ByteBuffer> BUFFER = new ThreadLocal<>();
+
     public static final String ACTION_STARTED = "org.fdroid.fdroid.net.Downloader.action.STARTED";
     public static final String ACTION_PROGRESS = "org.fdroid.fdroid.net.Downloader.action.PROGRESS";
     public static final String ACTION_INTERRUPTED = "org.fdroid.fdroid.net.Downloader.action.INTERRUPTED";
@@ -37,6 +65,17 @@ public abstract class Downloader {
     private volatile long bytesRead;
     private volatile long totalBytes;
 
+    /**
+     * How long the server took to respond to the first request, and then to send the file,
+     * in milliseconds.  Used to keep track of how well each mirror is doing.
+     *
+     * @see MirrorHealth
+     * @see #recordResponseTime(long)
+     */
+    private volatile long responseMillis;
+    private boolean responseTimed;
+    private volatile long transferMillis;
+
     public final File outputFile;
 
     final String urlString;
@@ -50,12 +89,18 @@ public abstract class Downloader {
      */
     private volatile ProgressListener downloaderProgressListener;
 
+    private ScheduledFuture<?> progressUpdates;
+
     protected abstract InputStream getDownloadersInputStream() throws IOException;
 
     protected abstract void close();
 
     Downloader(Uri uri, File destFile) {
-        this.urlString = uri.toString();
+        this(uri.toString(), destFile);
+    }
+
+    Downloader(String urlString, File destFile) {
+        this.urlString = urlString;
         outputFile = destFile;
     }
 
@@ -94,6 +139,15 @@ public abstract class Downloader {
 
     public abstract boolean hasChanged();
 
+    /**
+     * Only ask the server whether the file still matches {@link #cacheTag},
+     * without downloading anything.  This is meant to be cheap, so it is
+     * fine to run many of these at once.
+     *
+     * @return whether the file on the server is the same one as last time
+     */
+    public abstract boolean isCached() throws IOException;
+
     protected abstract long totalDownloadSize();
 
     public abstract void download() throws ConnectException, IOException, InterruptedException;
@@ -105,18 +159,40 @@ public abstract class Downloader {
         return notFound;
     }
 
+    /**
+     * @return how long the server took to respond to the first request, or 0 if there was none
+     */
+    public long getResponseMillis() {
+        return responseMillis;
+    }
+
+    /**
+     * @return how long it took to receive {@link #getBytesTransferred()}
+     */
+    public long getTransferMillis() {
+        return transferMillis;
+    }
+
+    public long getBytesTransferred() {
+        return bytesRead;
+    }
+
     void downloadFromStream(int bufferSize, boolean resumable) throws IOException, InterruptedException {
         Utils.debugLog(TAG, "Downloading from stream");
         InputStream input = null;
-        OutputStream outputStream = new FileOutputStream(outputFile, resumable);
+        FileOutputStream outputStream = new FileOutputStream(outputFile, resumable);
         try {
+            long requested = System.currentTimeMillis();
             input = getInputStream();
+            recordResponseTime(requested);
 
             // Getting the input stream is slow(ish) for HTTP downloads, so we'll check if
             // we were interrupted before proceeding to the download.
             throwExceptionIfInterrupted();
 
-            copyInputToOutputStream(input, bufferSize, outputStream);
+            long started = System.currentTimeMillis();
+            copyInputToOutputChannel(input, bufferSize, outputStream.getChannel());
+            transferMillis = System.currentTimeMillis() - started;
         } finally {
             Utils.closeQuietly(outputStream);
             Utils.closeQuietly(input);
@@ -127,6 +203,19 @@ public abstract class Downloader {
         throwExceptionIfInterrupted();
     }
 
+    /**
+     * Records how long it took from {@code requestedMillis}, taken before connecting, until
+     * the response arrived.  Only the first request of a download counts, as later ones may
+     * reuse its connection, so the same thing is measured whether the download starts with
+     * a {@code HEAD} request or goes straight to the {@code GET}.
+     */
+    void recordResponseTime(long requestedMillis) {
+        if (!responseTimed) {
+            responseTimed = true;
+            responseMillis = System.currentTimeMillis() - requestedMillis;
+        }
+    }
+
     /**
      * After every network operation that could take a while, we will check if an
      * interrupt occured during that blocking operation. The goal is to ensure we
@@ -135,7 +224,7 @@ public abstract class Downloader {
      *
      * @throws InterruptedException
      */
-    private void throwExceptionIfInterrupted() throws InterruptedException {
+    void throwExceptionIfInterrupted() throws InterruptedException {
         if (cancelled) {
             Utils.debugLog(TAG, "Received interrupt, cancelling download");
             throw new InterruptedException();
@@ -149,34 +238,71 @@ public abstract class Downloader {
         cancelled = true;
     }
 
+    boolean isCancelled() {
+        return cancelled;
+    }
+
     /**
-     * This copies the downloaded data from the InputStream to the OutputStream,
+     * Starts sending progress updates for a download of {@code totalBytes}, which carry on
+     * until {@link #stopProgressUpdates()}.  Downloads which don't go through
+     * {@link #downloadFromStream(int, boolean)} keep them up to date with
+     * {@link #setBytesRead(long)}.
+     */
+    void startProgressUpdates(long totalBytes) {
+        bytesRead = 0;
+        this.totalBytes = totalBytes;
+        progressUpdates = PROGRESS_TICKER.scheduleAtFixedRate(progressTask, 0, PROGRESS_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    void stopProgressUpdates() {
+        downloaderProgressListener = null;
+        if (progressUpdates != null) {
+            progressUpdates.cancel(false);
+        }
+    }
+
+    void setBytesRead(long bytesRead) {
+        this.bytesRead = bytesRead;
+    }
+
+    /**
+     * A heap buffer of at least {@code minSize} bytes, which is kept for the next
+     * download on the same thread.  Download threads are pooled, so once a buffer has
+     * grown to fit a fast connection, it doesn't have to be allocated again.  The
+     * stream is read straight into its {@link ByteBuffer#array()}, which is then
+     * written to the file without another copy on the Java side.
+     */
+    static ByteBuffer getBuffer(int minSize) {
+        ByteBuffer buffer = BUFFER.get();
+        if (buffer == null || buffer.capacity() < minSize) {
+            buffer = ByteBuffer.allocate(minSize);
+            BUFFER.set(buffer);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * This copies the downloaded data from the InputStream to the file,
      * keeping track of the number of bytes that have flowed through for the
-     * progress counter.
+     * progress counter.  Each time a read fills the whole buffer, there is more
+     * data waiting than fits in it, so the buffer is doubled, up to
+     * {@link #MAX_BUFFER_SIZE}.
      */
-    private void copyInputToOutputStream(InputStream input, int bufferSize, OutputStream output)
+    private void copyInputToOutputChannel(InputStream input, int bufferSize, FileChannel output)
             throws IOException, InterruptedException {
-        Timer timer = new Timer();
         try {
-            bytesRead = 0;
-            totalBytes = totalDownloadSize();
-            byte[] buffer = new byte[bufferSize];
+            ByteBuffer buffer = getBuffer(bufferSize);
 
-            timer.scheduleAtFixedRate(progressTask, 0, 100);
+            startProgressUpdates(totalDownloadSize());
 
             // Getting the total download size could potentially take time, depending on how
             // it is implemented, so we may as well check this before we proceed.
             throwExceptionIfInterrupted();
 
             while (true) {
-
-                int count;
-                if (input.available() > 0) {
-                    int readLength = Math.min(input.available(), buffer.length);
-                    count = input.read(buffer, 0, readLength);
-                } else {
-                    count = input.read(buffer);
-                }
+                int count = input.read(buffer.array(), 0, buffer.capacity());
 
                 throwExceptionIfInterrupted();
 
@@ -185,21 +311,29 @@ public abstract class Downloader {
                     break;
                 }
                 bytesRead += count;
-                output.write(buffer, 0, count);
+                buffer.limit(count);
+                while (buffer.hasRemaining()) {
+                    output.write(buffer);
+                }
+                if (count == buffer.capacity() && buffer.capacity() < MAX_BUFFER_SIZE) {
+                    buffer = getBuffer(Math.min(MAX_BUFFER_SIZE, buffer.capacity() * 2));
+                } else {
+                    buffer.clear();
+                }
             }
+        } catch (ClosedByInterruptException e) {
+            // the thread was interrupted while writing, which is just another way of cancelling
+            throw new InterruptedException();
         } finally {
-            downloaderProgressListener = null;
-            timer.cancel();
-            timer.purge();
-            output.flush();
+            stopProgressUpdates();
             output.close();
         }
     }
 
     /**
-     * Send progress updates on a timer to avoid flooding receivers with pointless events.
+     * Send progress updates on the shared ticker to avoid flooding receivers with pointless events.
      */
-    private final TimerTask progressTask = new TimerTask() {
+    private final Runnable progressTask = new Runnable() {
         @Override
         public void run() {
             if (downloaderProgressListener != null) {
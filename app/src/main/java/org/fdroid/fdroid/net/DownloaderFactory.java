@@ -2,15 +2,44 @@ package org.fdroid.fdroid.net;
 
 import android.content.Context;
 import android.net.Uri;
+import androidx.annotation.Nullable;
+import android.text.TextUtils;
+import org.fdroid.fdroid.data.Apk;
 import org.fdroid.fdroid.data.Repo;
 import org.fdroid.fdroid.data.RepoProvider;
 import org.fdroid.fdroid.data.Schema;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 public class DownloaderFactory {
 
+    private static volatile HttpTransport transport = new KeepAliveTransport();
+
+    /**
+     * Where all HTTP downloads get their connections from, e.g. one which
+     * multiplexes HTTP/2.  The default is {@link KeepAliveTransport}.
+     */
+    public static void setTransport(HttpTransport transport) {
+        DownloaderFactory.transport = transport;
+    }
+
+    public static HttpTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Streams {@code urlString} straight from the server, without a temporary file.
+     * Closing the stream hands the connection back to the {@link HttpTransport}, so
+     * that lots of small files from the same server, like icons, share connections.
+     */
+    public static InputStream openStream(Context context, String urlString) throws IOException {
+        return create(context, Uri.parse(urlString), null).getInputStream();
+    }
+
     /**
      * Downloads to a temporary file, which *you must delete yourself when
      * you are done.  It is stored in {@link Context#getCacheDir()} and starts
@@ -24,6 +53,46 @@ public class DownloaderFactory {
         return create(context, uri, destFile);
     }
 
+    /**
+     * Like {@link #create(Context, Uri, File)}, except that APKs of at least
+     * {@link SegmentedDownloader#MIN_SIZE} are downloaded from all the mirrors
+     * of their repo at once, if it has any, using {@link SegmentedDownloader}.
+     *
+     * @param apk the APK being downloaded, if it is one
+     */
+    public static Downloader create(Context context, Uri uri, File destFile, @Nullable Apk apk)
+            throws IOException {
+        if (apk != null && apk.size >= SegmentedDownloader.MIN_SIZE && !TextUtils.isEmpty(apk.hash)) {
+            Repo repo = RepoProvider.Helper.findById(context, apk.repoId);
+            if (repo != null && repo.username == null) {
+                List<String> urlStrings = getMirrorUrls(context, repo, uri.toString(), apk.getCanonicalUrl());
+                if (urlStrings.size() > 1) {
+                    return new SegmentedDownloader(destFile, urlStrings, apk.size, apk.hash, apk.hashType);
+                }
+            }
+        }
+        return create(context, uri, destFile);
+    }
+
+    /**
+     * {@code urlString} on each of the mirrors of {@code repo}, starting with
+     * {@code mirrorUrlString}, then the rest from best to worst.
+     */
+    private static List<String> getMirrorUrls(Context context, Repo repo, String mirrorUrlString,
+                                              String urlString) {
+        List<String> urlStrings = new ArrayList<>();
+        urlStrings.add(mirrorUrlString);
+        if (urlString.startsWith(repo.address)) {
+            String path = urlString.substring(repo.address.length());
+            for (String mirror : MirrorHealth.rankMirrors(context, repo)) {
+                if (!urlStrings.contains(mirror + path)) {
+                    urlStrings.add(mirror + path);
+                }
+            }
+        }
+        return urlStrings;
+    }
+
     public static Downloader create(Context context, Uri uri, File destFile)
             throws IOException {
         Downloader downloader;
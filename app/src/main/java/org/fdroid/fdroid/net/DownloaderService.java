@@ -22,19 +22,18 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.net.Uri;
-import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.Looper;
-import android.os.Message;
 import android.os.PatternMatcher;
-import android.os.Process;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import android.text.TextUtils;
 import android.util.Log;
+import org.fdroid.fdroid.Preferences;
 import org.fdroid.fdroid.ProgressListener;
 import org.fdroid.fdroid.R;
 import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.data.Apk;
+import org.fdroid.fdroid.data.Repo;
+import org.fdroid.fdroid.data.RepoProvider;
 import org.fdroid.fdroid.data.SanitizedFile;
 import org.fdroid.fdroid.installer.ApkCache;
 
@@ -50,13 +49,14 @@ import java.net.NoRouteToHostException;
 import java.net.ProtocolException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * DownloaderService is a service that handles asynchronous download requests
  * (expressed as {@link Intent}s) on demand.  Clients send download requests
  * through {@link #queue(Context, String, long, String)} calls.  The
- * service is started as needed, it handles each {@code Intent} using a worker
- * thread, and stops itself when it runs out of work.  Requests can be canceled
+ * service is started as needed, it handles each {@code Intent} using a pool of worker
+ * threads, and stops itself when it runs out of work.  Requests can be canceled
  * using {@link #cancel(Context, String)}.  If this service is killed during
  * operation, it will receive the queued {@link #queue(Context, String, long, String)}
  * and {@link #cancel(Context, String)} requests again due to
@@ -69,9 +69,13 @@ import java.net.UnknownHostException;
  * will receive the Intents, launch a worker thread, and stop the service as
  * appropriate.
  * <p>
- * All requests are handled on a single worker thread -- they may take as
- * long as necessary (and will not block the application's main loop), but
- * only one request will be processed at a time.
+ * Requests are handled by a {@link DownloadScheduler}, which runs up to
+ * {@link Preferences#getDownloadConcurrency()} at a time, no more than
+ * {@link Preferences#getDownloadConcurrencyPerHost()} of them from the same
+ * host.  They may take as long as necessary (and will not block the
+ * application's main loop).  Waiting requests are started in order of their
+ * priority, so an install the user just asked for does not have to wait for all
+ * of the updates being downloaded in the background.
  * <p>
  * The full URL for the file to download is also used as the unique ID to
  * represent the download itself throughout F-Droid.  This follows the model
@@ -91,42 +95,70 @@ public class DownloaderService extends Service {
     private static final String ACTION_QUEUE = "org.fdroid.fdroid.net.DownloaderService.action.QUEUE";
     private static final String ACTION_CANCEL = "org.fdroid.fdroid.net.DownloaderService.action.CANCEL";
 
-    private volatile Looper serviceLooper;
-    private static volatile ServiceHandler serviceHandler;
-    private static volatile Downloader downloader;
-    private LocalBroadcastManager localBroadcastManager;
-    private static volatile int timeout;
+    private static final String EXTRA_PRIORITY = "org.fdroid.fdroid.net.DownloaderService.extra.PRIORITY";
+    private static final String EXTRA_TIMEOUT = "org.fdroid.fdroid.net.DownloaderService.extra.TIMEOUT";
+    private static final String EXTRA_APK = "org.fdroid.fdroid.net.DownloaderService.extra.APK";
 
-    private final class ServiceHandler extends Handler {
-        ServiceHandler(Looper looper) {
-            super(looper);
-        }
+    /**
+     * Something the user has just asked for, like installing an app.
+     */
+    public static final int PRIORITY_USER = 0;
 
-        @Override
-        public void handleMessage(Message msg) {
-            Utils.debugLog(TAG, "Handling download message with ID of " + msg.what);
-            handleIntent((Intent) msg.obj);
-            stopSelf(msg.arg1);
-        }
-    }
+    /**
+     * Updates which are downloaded without the user asking, ready to be installed.
+     */
+    public static final int PRIORITY_BACKGROUND = 1;
+
+    /**
+     * Only started once no other download is queued or running, like the update of F-Droid
+     * itself, whose install restarts the app and would cut off anything still going.
+     */
+    public static final int PRIORITY_LAST = 2;
+
+    private static volatile DownloadScheduler scheduler;
+    private static final ConcurrentHashMap<String, Downloader> ACTIVE_DOWNLOADERS = new ConcurrentHashMap<>();
+    private LocalBroadcastManager localBroadcastManager;
+
+    /**
+     * The {@code startId} of the most recent {@link #onStartCommand(Intent, int, int)}, so the
+     * service stops once the scheduler has run out of work, unless something new came in since.
+     * Guarded by the lock of the {@link #scheduler}, so that it can't change between checking
+     * that the scheduler is idle and stopping.
+     */
+    private int lastStartId;
 
     @Override
     public void onCreate() {
         super.onCreate();
         Utils.debugLog(TAG, "Creating downloader service.");
 
-        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
-
-        serviceLooper = thread.getLooper();
-        serviceHandler = new ServiceHandler(serviceLooper);
+        Runnable stopWhenIdle = new Runnable() {
+            @Override
+            public void run() {
+                // the scheduler is locked while this runs, see onStartCommand()
+                stopSelf(lastStartId);
+            }
+        };
+        Preferences prefs = Preferences.get();
+        scheduler = new DownloadScheduler(prefs.getDownloadConcurrency(), prefs.getDownloadConcurrencyPerHost(),
+                PRIORITY_LAST, stopWhenIdle);
         localBroadcastManager = LocalBroadcastManager.getInstance(this);
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         Utils.debugLog(TAG, "Received Intent for downloading: " + intent + " (with a startId of " + startId + ")");
+        synchronized (scheduler) {
+            lastStartId = startId;
+            int result = handleCommand(intent);
+            if (scheduler.isIdle()) {
+                stopSelf(startId);
+            }
+            return result;
+        }
+    }
 
+    private int handleCommand(Intent intent) {
         if (intent == null) {
             return START_NOT_STICKY;
         }
@@ -139,25 +171,31 @@ public class DownloaderService extends Service {
 
         if (ACTION_CANCEL.equals(intent.getAction())) {
             Utils.debugLog(TAG, "Cancelling download of " + uriString);
-            Integer whatToRemove = uriString.hashCode();
-            if (serviceHandler.hasMessages(whatToRemove)) {
-                Utils.debugLog(TAG, "Removing download with ID of " + whatToRemove
-                        + " from service handler, then sending interrupted event.");
-                serviceHandler.removeMessages(whatToRemove);
+            Downloader downloader = ACTIVE_DOWNLOADERS.get(uriString);
+            if (scheduler.remove(uriString)) {
+                Utils.debugLog(TAG, "Removing download of " + uriString
+                        + " from the queue, then sending interrupted event.");
                 sendBroadcast(intent.getData(), Downloader.ACTION_INTERRUPTED);
-            } else if (isActive(uriString)) {
+            } else if (downloader != null) {
                 downloader.cancelDownload();
             } else {
-                Utils.debugLog(TAG, "ACTION_CANCEL called on something not queued or running"
-                        + " (expected to find message with ID of " + whatToRemove + " in queue).");
+                Utils.debugLog(TAG, "ACTION_CANCEL called on something not queued or running: " + uriString);
             }
         } else if (ACTION_QUEUE.equals(intent.getAction())) {
-            Message msg = serviceHandler.obtainMessage();
-            msg.arg1 = startId;
-            msg.obj = intent;
-            msg.what = uriString.hashCode();
-            serviceHandler.sendMessage(msg);
-            Utils.debugLog(TAG, "Queued download of " + uriString);
+            final Intent queuedIntent = intent;
+            int priority = intent.getIntExtra(EXTRA_PRIORITY, PRIORITY_USER);
+            String urlString = getCanonicalUrl(intent);
+            boolean queued = scheduler.queue(urlString, intent.getData().getHost(), priority, new Runnable() {
+                @Override
+                public void run() {
+                    handleIntent(queuedIntent);
+                }
+            });
+            if (queued) {
+                Utils.debugLog(TAG, "Queued download of " + uriString + " with priority " + priority);
+            } else {
+                Utils.debugLog(TAG, "Already downloading " + urlString + ", not queueing it again");
+            }
         } else {
             Utils.debugLog(TAG, "Received Intent with unknown action: " + intent);
         }
@@ -167,8 +205,8 @@ public class DownloaderService extends Service {
 
     @Override
     public void onDestroy() {
-        Utils.debugLog(TAG, "Destroying downloader service. Will move to background and stop our Looper.");
-        serviceLooper.quit(); //NOPMD - this is copied from IntentService, no super call needed
+        Utils.debugLog(TAG, "Destroying downloader service. Will let running downloads finish and drop the rest.");
+        scheduler.shutdown(); //NOPMD - this is copied from IntentService, no super call needed
     }
 
     /**
@@ -180,13 +218,13 @@ public class DownloaderService extends Service {
     }
 
     /**
-     * This method is invoked on the worker thread with a request to process.
-     * Only one Intent is processed at a time, but the processing happens on a
-     * worker thread that runs independently from other application logic.
-     * So, if this code takes a long time, it will hold up other requests to
-     * the same DownloaderService, but it will not hold up anything else.
-     * When all requests have been handled, the DownloaderService stops itself,
-     * so you should not ever call {@link #stopSelf}.
+     * This method is invoked on a worker thread with a request to process.
+     * Several Intents may be processed at once, each on its own worker thread
+     * that runs independently from other application logic.  So, if this code
+     * takes a long time, it will take up one of the
+     * {@link Preferences#getDownloadConcurrency()} workers, but it will not hold up anything else.  When all requests have
+     * been handled, the DownloaderService stops itself, so you should not ever
+     * call {@link #stopSelf}.
      * <p/>
      * Downloads are put into subdirectories based on hostname/port of each repo
      * to prevent files with the same names from conflicting.  Each repo enforces
@@ -198,29 +236,40 @@ public class DownloaderService extends Service {
      */
     private void handleIntent(Intent intent) {
         final Uri uri = intent.getData();
-        final SanitizedFile localFile = ApkCache.getApkDownloadPath(this, uri);
-        long repoId = intent.getLongExtra(Downloader.EXTRA_REPO_ID, 0);
         String originalUrlString = intent.getStringExtra(Downloader.EXTRA_CANONICAL_URL);
+        final String urlString = getCanonicalUrl(intent);
+        // the same file goes to the same place, whichever mirror it comes from, so it can be resumed
+        final SanitizedFile localFile = ApkCache.getApkDownloadPath(this, Uri.parse(urlString));
+        long repoId = intent.getLongExtra(Downloader.EXTRA_REPO_ID, 0);
+        Repo repo = repoId == 0 ? null : RepoProvider.Helper.findById(this, repoId);
+        String mirror = MirrorHealth.findMirror(repo, uri.toString());
         sendBroadcast(uri, Downloader.ACTION_STARTED, localFile, repoId, originalUrlString);
 
+        Downloader downloader = null;
         try {
-            downloader = DownloaderFactory.create(this, uri, localFile);
+            Apk apk = intent.getParcelableExtra(EXTRA_APK);
+            downloader = DownloaderFactory.create(this, uri, localFile, apk);
+            ACTIVE_DOWNLOADERS.put(urlString, downloader);
             downloader.setListener(new ProgressListener() {
                 @Override
-                public void onProgress(String urlString, long bytesRead, long totalBytes) {
+                public void onProgress(String mirrorUrlString, long bytesRead, long totalBytes) {
                     Intent intent = new Intent(Downloader.ACTION_PROGRESS);
-                    intent.setData(uri);
+                    intent.setData(Uri.parse(urlString));
                     intent.putExtra(Downloader.EXTRA_BYTES_READ, bytesRead);
                     intent.putExtra(Downloader.EXTRA_TOTAL_BYTES, totalBytes);
                     localBroadcastManager.sendBroadcast(intent);
                 }
             });
-            downloader.setTimeout(timeout);
+            int timeout = intent.getIntExtra(EXTRA_TIMEOUT, 0);
+            if (timeout > 0) {
+                downloader.setTimeout(timeout);
+            }
             downloader.download();
             if (downloader.isNotFound()) {
                 sendBroadcast(uri, Downloader.ACTION_INTERRUPTED, localFile, getString(R.string.download_404),
                         repoId, originalUrlString);
             } else {
+                MirrorHealth.recordSuccess(this, mirror, downloader);
                 sendBroadcast(uri, Downloader.ACTION_COMPLETE, localFile, repoId, originalUrlString);
             }
         } catch (InterruptedException e) {
@@ -230,17 +279,36 @@ public class DownloaderService extends Service {
                 | ProtocolException | UnknownHostException e) {
             // if the above list of exceptions changes, also change it in IndexV1Updater.update()
             Log.e(TAG, e.getLocalizedMessage());
+            MirrorHealth.recordFailure(this, mirror);
+            // whoever gets this may well queue the same file again from another mirror
+            scheduler.release(urlString);
             sendBroadcast(uri, Downloader.ACTION_CONNECTION_FAILED, localFile, repoId, originalUrlString);
         } catch (IOException e) {
             e.printStackTrace();
             sendBroadcast(uri, Downloader.ACTION_INTERRUPTED, localFile,
                     e.getLocalizedMessage(), repoId, originalUrlString);
         } finally {
+            if (downloader instanceof SegmentedDownloader) {
+                for (String failedUrl : ((SegmentedDownloader) downloader).getFailedUrls()) {
+                    MirrorHealth.recordFailure(this, MirrorHealth.findMirror(repo, failedUrl));
+                }
+            }
             if (downloader != null) {
+                // a retry of the same file might already have taken its place
+                ACTIVE_DOWNLOADERS.remove(urlString, downloader);
                 downloader.close();
             }
         }
-        downloader = null;
+    }
+
+    /**
+     * Downloads are known by the URL they were queued for, whichever mirror they
+     * actually come from, so {@link #cancel(Context, String)} and
+     * {@link #isQueuedOrActive(String)} work with the same URL.
+     */
+    private static String getCanonicalUrl(Intent intent) {
+        String urlString = intent.getStringExtra(Downloader.EXTRA_CANONICAL_URL);
+        return TextUtils.isEmpty(urlString) ? intent.getDataString() : urlString;
     }
 
     private void sendBroadcast(Uri uri, String action) {
@@ -284,16 +352,65 @@ public class DownloaderService extends Service {
      * @see #cancel(Context, String)
      */
     public static void queue(Context context, String mirrorUrlString, long repoId, String urlString) {
+        queue(context, mirrorUrlString, repoId, urlString, PRIORITY_USER);
+    }
+
+    /**
+     * Add a URL to the download queue, to be started ahead of anything waiting
+     * with a lower {@code priority}.
+     *
+     * @param priority one of {@link #PRIORITY_USER}, {@link #PRIORITY_BACKGROUND}
+     *                 or {@link #PRIORITY_LAST}
+     * @see #queue(Context, String, long, String)
+     */
+    public static void queue(Context context, String mirrorUrlString, long repoId, String urlString,
+                             int priority) {
+        queue(context, mirrorUrlString, repoId, urlString, priority, 0);
+    }
+
+    /**
+     * Add a URL to the download queue, with the connect and read timeout to use
+     * for it, e.g. from {@link MirrorFailover#getTimeout()}.
+     *
+     * @param timeout in milliseconds, or 0 for the default
+     * @see #queue(Context, String, long, String, int)
+     */
+    public static void queue(Context context, String mirrorUrlString, long repoId, String urlString,
+                             int priority, int timeout) {
+        if (TextUtils.isEmpty(mirrorUrlString)) {
+            return;
+        }
+        context.startService(createQueueIntent(context, mirrorUrlString, repoId, urlString, priority, timeout));
+    }
+
+    /**
+     * Add an APK to the download queue.  Knowing which APK it is means that a big
+     * one can be downloaded from several mirrors at once, and checked against its
+     * {@link Apk#hash} afterwards, see {@link SegmentedDownloader}.
+     *
+     * @see #queue(Context, String, long, String, int, int)
+     */
+    public static void queue(Context context, String mirrorUrlString, Apk apk, int priority, int timeout) {
         if (TextUtils.isEmpty(mirrorUrlString)) {
             return;
         }
+        Intent intent = createQueueIntent(context, mirrorUrlString, apk.repoId, apk.getCanonicalUrl(),
+                priority, timeout);
+        intent.putExtra(EXTRA_APK, apk);
+        context.startService(intent);
+    }
+
+    private static Intent createQueueIntent(Context context, String mirrorUrlString, long repoId, String urlString,
+                                            int priority, int timeout) {
         Utils.debugLog(TAG, "Preparing " + mirrorUrlString + " to go into the download queue");
         Intent intent = new Intent(context, DownloaderService.class);
         intent.setAction(ACTION_QUEUE);
         intent.setData(Uri.parse(mirrorUrlString));
         intent.putExtra(Downloader.EXTRA_REPO_ID, repoId);
         intent.putExtra(Downloader.EXTRA_CANONICAL_URL, urlString);
-        context.startService(intent);
+        intent.putExtra(EXTRA_PRIORITY, priority);
+        intent.putExtra(EXTRA_TIMEOUT, timeout);
+        return intent;
     }
 
     /**
@@ -325,21 +442,11 @@ public class DownloaderService extends Service {
         if (TextUtils.isEmpty(urlString)) { //NOPMD - suggests unreadable format
             return false;
         }
-        if (serviceHandler == null) {
+        DownloadScheduler scheduler = DownloaderService.scheduler;
+        if (scheduler == null) {
             return false; // this service is not even running
         }
-        return serviceHandler.hasMessages(urlString.hashCode()) || isActive(urlString);
-    }
-
-    /**
-     * Check if a URL is actively being downloaded.
-     */
-    private static boolean isActive(String urlString) {
-        return downloader != null && TextUtils.equals(urlString, downloader.urlString);
-    }
-
-    public static void setTimeout(int ms) {
-        timeout = ms;
+        return scheduler.isQueuedOrActive(urlString);
     }
 
     /**
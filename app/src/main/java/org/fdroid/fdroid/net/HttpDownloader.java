@@ -26,7 +26,6 @@ import android.net.Uri;
 import android.os.Build;
 import android.text.TextUtils;
 import android.util.Base64;
-import info.guardianproject.netcipher.NetCipher;
 import org.apache.commons.io.FileUtils;
 import org.fdroid.fdroid.BuildConfig;
 import org.fdroid.fdroid.FDroidApp;
@@ -48,6 +47,10 @@ import java.net.URL;
  * the bits of HTTP that F-Droid needs to operate.  It does not support things
  * like redirects or other HTTP tricks.  This keeps the security model and code
  * a lot simpler.
+ * <p>
+ * Connections come from the {@link HttpTransport} set in {@link DownloaderFactory},
+ * and are handed back to it when done instead of being disconnected, so that the
+ * next request to the same server can reuse them.
  */
 public class HttpDownloader extends Downloader {
     private static final String TAG = "HttpDownloader";
@@ -57,7 +60,10 @@ public class HttpDownloader extends Downloader {
     private final String username;
     private final String password;
     private URL sourceUrl;
+    private final HttpTransport transport;
     private HttpURLConnection connection;
+    private boolean responded;
+    private boolean released;
     private boolean newFileAvailableOnServer;
 
     /**
@@ -86,12 +92,15 @@ public class HttpDownloader extends Downloader {
         this.sourceUrl = new URL(urlString);
         this.username = username;
         this.password = password;
+        this.transport = DownloaderFactory.getTransport();
     }
 
     @Override
     protected InputStream getDownloadersInputStream() throws IOException {
         setupConnection(false);
-        return new BufferedInputStream(connection.getInputStream());
+        InputStream input = connection.getInputStream();
+        responded = true;
+        return new BufferedInputStream(input);
     }
 
     /**
@@ -108,15 +117,29 @@ public class HttpDownloader extends Downloader {
         // get the file size from the server
         HttpURLConnection tmpConn = getConnection();
         tmpConn.setRequestMethod("HEAD");
-        String etag = tmpConn.getHeaderField(HEADER_FIELD_ETAG);
-
+        String etag;
+        int statusCode;
+        String responseMessage;
         int contentLength = -1;
-        int statusCode = tmpConn.getResponseCode();
-        tmpConn.disconnect();
+        boolean headResponded = false;
+        try {
+            // getHeaderField() hides errors, so this has to come first
+            long requested = System.currentTimeMillis();
+            statusCode = tmpConn.getResponseCode();
+            recordResponseTime(requested);
+            headResponded = true;
+            etag = tmpConn.getHeaderField(HEADER_FIELD_ETAG);
+            responseMessage = tmpConn.getResponseMessage();
+            if (statusCode == 200) {
+                contentLength = tmpConn.getContentLength();
+            }
+        } finally {
+            // the GET below can then go over the same connection
+            transport.release(tmpConn, headResponded);
+        }
         newFileAvailableOnServer = false;
         switch (statusCode) {
             case 200:
-                contentLength = tmpConn.getContentLength();
                 if (!TextUtils.isEmpty(etag) && etag.equals(cacheTag)) {
                     Utils.debugLog(TAG, urlString + " is cached, not downloading");
                     return;
@@ -128,7 +151,7 @@ public class HttpDownloader extends Downloader {
                 return;
             default:
                 Utils.debugLog(TAG, "HEAD check of " + urlString + " returned " + statusCode + ": "
-                        + tmpConn.getResponseMessage());
+                        + responseMessage);
         }
 
         boolean resumable = false;
@@ -146,12 +169,31 @@ public class HttpDownloader extends Downloader {
         cacheTag = connection.getHeaderField(HEADER_FIELD_ETAG);
     }
 
+    @Override
+    public boolean isCached() throws IOException {
+        if (TextUtils.isEmpty(cacheTag)) {
+            return false;
+        }
+        HttpURLConnection tmpConn = getConnection();
+        tmpConn.setRequestMethod("HEAD");
+        tmpConn.setReadTimeout(getTimeout());
+        boolean headResponded = false;
+        try {
+            int statusCode = tmpConn.getResponseCode();
+            headResponded = true;
+            String etag = tmpConn.getHeaderField(HEADER_FIELD_ETAG);
+            return statusCode == 200 && cacheTag.equals(etag);
+        } finally {
+            transport.release(tmpConn, headResponded);
+        }
+    }
+
     private HttpURLConnection getConnection() throws SocketTimeoutException, IOException {
         HttpURLConnection connection;
             if (queryString != null) {
-                connection = NetCipher.getHttpURLConnection(new URL(urlString + "?" + queryString));
+                connection = transport.open(new URL(urlString + "?" + queryString));
             } else {
-                connection = NetCipher.getHttpURLConnection(sourceUrl);
+                connection = transport.open(sourceUrl);
             }
 
         connection.setRequestProperty("User-Agent", "F-Droid " + BuildConfig.VERSION_NAME);
@@ -203,8 +245,10 @@ public class HttpDownloader extends Downloader {
 
     @Override
     public void close() {
-        if (connection != null) {
-            connection.disconnect();
+        // this is called both when the stream is closed and when the download is done
+        if (connection != null && !released) {
+            released = true;
+            transport.release(connection, responded);
         }
     }
 }
@@ -0,0 +1,35 @@
+package org.fdroid.fdroid.net;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * How {@link HttpDownloader} and {@link SegmentedDownloader} get their connections, set with
+ * {@link DownloaderFactory#setTransport(HttpTransport)}.  {@link KeepAliveTransport} is used
+ * unless something else is set.  Anything else must honour the proxy set up for Tor via
+ * {@link info.guardianproject.netcipher.NetCipher}, like it does.
+ * <p>
+ * Connections are handed out as plain {@link HttpURLConnection}s, so a transport can be backed
+ * by any HTTP client that provides those, e.g. one which multiplexes many small requests for
+ * icons and indexes over a single HTTP/2 connection.
+ */
+public interface HttpTransport {
+
+    /**
+     * A new connection to {@code url}, which has not been connected yet, so that the caller can
+     * still set the request method and headers.
+     */
+    HttpURLConnection open(URL url) throws IOException;
+
+    /**
+     * Called once the caller is done with {@code connection}, whether or not it read all of the
+     * response.  The transport may keep the underlying socket around for the next request to the
+     * same server.  Called at most once for each connection.
+     *
+     * @param responded whether the response to the request came in.  If it didn't, either no
+     *                  request was sent or it failed, so the connection must not be asked for
+     *                  anything else, as that would send the request (again).
+     */
+    void release(HttpURLConnection connection, boolean responded);
+}
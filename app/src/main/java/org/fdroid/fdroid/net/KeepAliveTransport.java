@@ -0,0 +1,48 @@
+package org.fdroid.fdroid.net;
+
+import info.guardianproject.netcipher.NetCipher;
+import org.fdroid.fdroid.Utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Opens connections through {@link NetCipher}, and lets the connection pool built into
+ * {@link HttpURLConnection} keep them alive between requests to the same server.  The pool
+ * only gets a socket back once the response body has been closed, and
+ * {@link HttpURLConnection#disconnect()} throws the socket away instead, so releasing a
+ * connection here just closes its body.  That way, e.g. the {@code HEAD} and {@code GET}
+ * requests of {@link HttpDownloader#download()} go over the same connection, and so do all of
+ * the icons from one repo, which matters most over Tor, where each new connection takes seconds.
+ * <p>
+ * A body which was not read to the end can't be reused, and is closed by the pool itself.
+ * Connections which never got a response are just disconnected.
+ */
+public class KeepAliveTransport implements HttpTransport {
+
+    @Override
+    public HttpURLConnection open(URL url) throws IOException {
+        return NetCipher.getHttpURLConnection(url);
+    }
+
+    @Override
+    public void release(HttpURLConnection connection, boolean responded) {
+        if (!responded) {
+            connection.disconnect();
+            return;
+        }
+        InputStream body;
+        try {
+            body = connection.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST
+                    ? connection.getErrorStream()
+                    : connection.getInputStream();
+        } catch (IOException e) {
+            // the body can't be read, so there is nothing worth keeping
+            connection.disconnect();
+            return;
+        }
+        Utils.closeQuietly(body);
+    }
+}
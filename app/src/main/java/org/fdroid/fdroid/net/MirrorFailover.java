@@ -0,0 +1,100 @@
+package org.fdroid.fdroid.net;
+
+import android.content.Context;
+import androidx.annotation.Nullable;
+
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.data.Repo;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Which mirror to download a single file from, and which to try next if that one fails.  It
+ * starts with the mirror {@link MirrorHealth} thinks is best.  Once all of them have failed, it
+ * goes through them again with a longer timeout, up to {@link #TIMEOUTS the last one}.  Files
+ * which have nowhere else to come from are not retried at all.
+ * <p>
+ * Each download has its own instance, so several downloads from the same repo can fail over
+ * independently of each other.
+ */
+public final class MirrorFailover {
+
+    private static final String TAG = "MirrorFailover";
+
+    private static final int[] TIMEOUTS = {10000, 30000, 60000};
+
+    private final String urlString;
+
+    /**
+     * The part of {@link #urlString} which gets swapped for each mirror, or null if it
+     * doesn't come from a repo, in which case there is nothing to fail over to.
+     */
+    @Nullable
+    private final String address;
+    private final List<String> mirrors;
+
+    private int mirrorIndex;
+    private int timeoutIndex;
+
+    /**
+     * @param urlString the canonical URL of the file, i.e. starting with {@link Repo#address}
+     */
+    public MirrorFailover(Context context, @Nullable Repo repo, String urlString) {
+        this.urlString = urlString;
+        if (repo != null && urlString.startsWith(repo.address)) {
+            address = repo.address;
+            mirrors = MirrorHealth.rankMirrors(context, repo);
+        } else {
+            address = null;
+            mirrors = Collections.singletonList(null);
+        }
+    }
+
+    /**
+     * @return the URL to download the file from the current mirror
+     */
+    public String getUrl() {
+        String mirror = getMirror();
+        return mirror == null ? urlString : mirror + urlString.substring(address.length());
+    }
+
+    /**
+     * @return the base URL of the current mirror, or null if the file doesn't come from a repo
+     */
+    @Nullable
+    public String getMirror() {
+        return mirrors.get(mirrorIndex);
+    }
+
+    /**
+     * @return the connect and read timeout to use with the current mirror, in milliseconds
+     */
+    public int getTimeout() {
+        return TIMEOUTS[timeoutIndex];
+    }
+
+    /**
+     * Moves on to the next mirror, after the current one failed.
+     *
+     * @throws IOException if there are no other mirrors, or every mirror has
+     *                     already failed with the longest timeout
+     */
+    public void next() throws IOException {
+        if (mirrors.size() == 1) {
+            throw new IOException("No mirrors available");
+        }
+        mirrorIndex++;
+        if (mirrorIndex == mirrors.size()) {
+            if (timeoutIndex == TIMEOUTS.length - 1) {
+                Utils.debugLog(TAG, "Mirrors: Giving up on " + urlString);
+                throw new IOException("Ran out of mirrors");
+            }
+            mirrorIndex = 0;
+            timeoutIndex++;
+        }
+        Utils.debugLog(TAG, "Trying mirror " + getMirror() + " for " + urlString
+                + ", timeout=" + getTimeout() / 1000 + "s");
+    }
+}
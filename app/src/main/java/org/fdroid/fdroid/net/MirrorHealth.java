@@ -0,0 +1,230 @@
+package org.fdroid.fdroid.net;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import androidx.annotation.Nullable;
+import android.text.TextUtils;
+
+import org.fdroid.fdroid.FDroidApp;
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.data.Repo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps track of how well each mirror of each repo has been doing, so that downloads can start
+ * with the mirror which is likely to be fastest instead of only moving on to another one after
+ * the first has timed out.  For each mirror, this keeps an exponentially weighted moving average
+ * of how long it takes to respond, how fast it sends data once it does, and how often it fails.
+ * These are kept in a {@link SharedPreferences} file, so they survive restarts.
+ * <p>
+ * Mirrors are identified by their base URL, i.e. {@link Repo#address} or one of
+ * {@link Repo#getMirrorList()}.
+ */
+public final class MirrorHealth {
+
+    private static final String TAG = "MirrorHealth";
+
+    private static final String PREFERENCES_FILE = "mirror-health";
+
+    /**
+     * How much each new sample counts towards the averages, compared to everything before it.
+     */
+    private static final double WEIGHT = 0.3;
+
+    /**
+     * What a mirror is assumed to do before anything has been downloaded from it.  These are on
+     * the hopeful side, so that new mirrors get tried rather than never being picked.
+     */
+    private static final double DEFAULT_LATENCY_MILLIS = 500;
+    private static final double DEFAULT_BYTES_PER_SECOND = 512 * 1024;
+
+    /**
+     * The size of download which mirrors are compared for.  Latency matters most for small files
+     * and throughput for big ones; this is about the size of a typical APK.
+     */
+    private static final double TYPICAL_DOWNLOAD_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * Transfers shorter than this say more about latency than throughput, so they are not used
+     * for the throughput average.
+     */
+    private static final long MIN_TRANSFER_MILLIS = 250;
+
+    private static final class Stats {
+        double latencyMillis = DEFAULT_LATENCY_MILLIS;
+        double bytesPerSecond = DEFAULT_BYTES_PER_SECOND;
+        double failureRate;
+
+        /**
+         * The expected time in milliseconds to download {@link #TYPICAL_DOWNLOAD_BYTES}, counting
+         * the attempts that fail as wasted.
+         */
+        double getScore() {
+            double millis = latencyMillis + TYPICAL_DOWNLOAD_BYTES * 1000 / bytesPerSecond;
+            return millis / Math.max(0.05, 1 - failureRate);
+        }
+
+        String serialize() {
+            return latencyMillis + "," + bytesPerSecond + "," + failureRate;
+        }
+
+        @Nullable
+        static Stats parse(String serialized) {
+            String[] parts = serialized.split(",");
+            if (parts.length != 3) {
+                return null;
+            }
+            try {
+                Stats stats = new Stats();
+                stats.latencyMillis = Double.parseDouble(parts[0]);
+                stats.bytesPerSecond = Double.parseDouble(parts[1]);
+                stats.failureRate = Double.parseDouble(parts[2]);
+                return stats;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Everything from {@link #PREFERENCES_FILE}, read the first time it is needed.  Guarded by
+     * the class lock.
+     */
+    private static Map<String, Stats> stats;
+
+    private MirrorHealth() {
+    }
+
+    /**
+     * All of the mirrors of {@code repo} which can be used right now, including its
+     * {@link Repo#address}, best first.  {@code .onion} mirrors are only included when
+     * using Tor.  Mirrors which are equally good, e.g. because none of them have been
+     * used yet, stay in the order the repo lists them, after {@link Repo#address}.
+     */
+    public static List<String> rankMirrors(Context context, Repo repo) {
+        Set<String> candidates = new LinkedHashSet<>();
+        candidates.add(repo.address);
+        for (String mirror : repo.getMirrorList()) {
+            if (FDroidApp.isUsingTor() || !mirror.contains(".onion")) {
+                candidates.add(mirror);
+            }
+        }
+
+        final Map<String, Double> scores = new HashMap<>();
+        synchronized (MirrorHealth.class) {
+            Map<String, Stats> all = load(context);
+            for (String mirror : candidates) {
+                Stats mirrorStats = all.get(mirror);
+                scores.put(mirror, (mirrorStats == null ? new Stats() : mirrorStats).getScore());
+            }
+        }
+
+        List<String> ranked = new ArrayList<>(candidates);
+        Collections.sort(ranked, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return Double.compare(scores.get(a), scores.get(b));
+            }
+        });
+        return ranked;
+    }
+
+    /**
+     * Which of the mirrors of {@code repo} {@code urlString} was downloaded from, if any.
+     */
+    @Nullable
+    public static String findMirror(@Nullable Repo repo, String urlString) {
+        if (repo == null || TextUtils.isEmpty(urlString)) {
+            return null;
+        }
+        String found = urlString.startsWith(repo.address) ? repo.address : null;
+        for (String mirror : repo.getMirrorList()) {
+            if (urlString.startsWith(mirror) && (found == null || mirror.length() > found.length())) {
+                found = mirror;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Adds how long {@code downloader} took to the averages of {@code mirror}, once it has
+     * successfully finished.
+     */
+    public static void recordSuccess(Context context, @Nullable String mirror, Downloader downloader) {
+        if (mirror == null) {
+            return;
+        }
+        synchronized (MirrorHealth.class) {
+            Stats mirrorStats = get(context, mirror);
+            long responseMillis = downloader.getResponseMillis();
+            if (responseMillis > 0) {
+                mirrorStats.latencyMillis = average(mirrorStats.latencyMillis, responseMillis);
+            }
+            long transferMillis = downloader.getTransferMillis();
+            if (transferMillis >= MIN_TRANSFER_MILLIS) {
+                double bytesPerSecond = downloader.getBytesTransferred() * 1000.0 / transferMillis;
+                mirrorStats.bytesPerSecond = average(mirrorStats.bytesPerSecond, bytesPerSecond);
+            }
+            mirrorStats.failureRate = average(mirrorStats.failureRate, 0);
+            save(context, mirror, mirrorStats);
+        }
+    }
+
+    /**
+     * Counts a download from {@code mirror} which could not connect, timed out, etc.
+     */
+    public static void recordFailure(Context context, @Nullable String mirror) {
+        if (mirror == null) {
+            return;
+        }
+        synchronized (MirrorHealth.class) {
+            Stats mirrorStats = get(context, mirror);
+            mirrorStats.failureRate = average(mirrorStats.failureRate, 1);
+            save(context, mirror, mirrorStats);
+        }
+        Utils.debugLog(TAG, "Download from " + mirror + " failed");
+    }
+
+    private static double average(double average, double sample) {
+        return average + WEIGHT * (sample - average);
+    }
+
+    private static Stats get(Context context, String mirror) {
+        Map<String, Stats> all = load(context);
+        Stats mirrorStats = all.get(mirror);
+        if (mirrorStats == null) {
+            mirrorStats = new Stats();
+            all.put(mirror, mirrorStats);
+        }
+        return mirrorStats;
+    }
+
+    private static Map<String, Stats> load(Context context) {
+        if (stats == null) {
+            stats = new HashMap<>();
+            for (Map.Entry<String, ?> entry : getPreferences(context).getAll().entrySet()) {
+                Stats mirrorStats = entry.getValue() instanceof String ? Stats.parse((String) entry.getValue()) : null;
+                if (mirrorStats != null) {
+                    stats.put(entry.getKey(), mirrorStats);
+                }
+            }
+        }
+        return stats;
+    }
+
+    private static void save(Context context, String mirror, Stats mirrorStats) {
+        getPreferences(context).edit().putString(mirror, mirrorStats.serialize()).apply();
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getApplicationContext().getSharedPreferences(PREFERENCES_FILE, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,455 @@
+package org.fdroid.fdroid.net;
+
+import android.net.Uri;
+import android.os.Process;
+
+import org.apache.commons.io.FileUtils;
+import org.fdroid.fdroid.BuildConfig;
+import org.fdroid.fdroid.Hasher;
+import org.fdroid.fdroid.ProgressListener;
+import org.fdroid.fdroid.Utils;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads one big file from several mirrors at once, using HTTP {@code Range} requests.
+ * The file is cut into segments, which up to {@link #MAX_CONNECTIONS} connections take turns
+ * to download straight into their place in the output file, which is allocated at its full size
+ * up front.  Connections are spread over the mirrors, best first.
+ * <p>
+ * A segment which fails goes back to be picked up again from where it stopped, and a mirror
+ * which keeps failing, or doesn't support ranges, gets no more segments.  If none of them
+ * support ranges, the file is downloaded in one go instead.  Once there are no
+ * segments left to start, connections which run out of work take over the second half of
+ * whichever segment has the most left to go, which is usually the one stuck on the slowest
+ * mirror.  The finished file is checked against the expected hash, since it was put together
+ * from different servers.  If it can't be finished, what was downloaded so far is deleted, since
+ * a file of the full size with holes in it would look complete to the next attempt.
+ * <p>
+ * This only needs plain URLs, so it works just as well with a local HTTP server that serves
+ * ranges as with a real repo.
+ */
+public class SegmentedDownloader extends Downloader {
+    private static final String TAG = "SegmentedDownloader";
+
+    /**
+     * Files smaller than this are not worth the extra connections.
+     */
+    public static final long MIN_SIZE = 20 * 1024 * 1024;
+
+    private static final long SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * A segment is only split in two if both halves would be at least this big.
+     */
+    private static final long MIN_SPLIT_SIZE = 512 * 1024;
+
+    private static final int MAX_CONNECTIONS = 4;
+
+    /**
+     * How many times a mirror may fail before it is not given any more segments.
+     */
+    private static final int MAX_FAILURES_PER_SOURCE = 3;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Shared by all segmented downloads, so that the threads, and with them the buffers from
+     * {@link #getBuffer(int)}, are kept from one download to the next.
+     */
+    private static final ExecutorService CONNECTIONS = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "SegmentedDownloader-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private static final class Source {
+        final URL url;
+        int connections;
+        int failures;
+        boolean refusesRanges;
+
+        Source(URL url) {
+            this.url = url;
+        }
+    }
+
+    /**
+     * The bytes from {@code offset} up to, but not including, {@code end}, which are still to be
+     * downloaded.  Both only change while holding the lock of the {@link SegmentedDownloader}.
+     */
+    private static final class Segment {
+        long offset;
+        long end;
+
+        Segment(long offset, long end) {
+            this.offset = offset;
+            this.end = end;
+        }
+    }
+
+    private final List<Source> sources = new ArrayList<>();
+    private final long size;
+    private final String hash;
+    private final String hashType;
+
+    private final ArrayDeque<Segment> pending = new ArrayDeque<>();
+    private final List<Segment> active = new ArrayList<>();
+    private final AtomicLong downloaded = new AtomicLong();
+    private final List<String> failedUrls = new ArrayList<>();
+    private IOException lastFailure;
+
+    private final HttpTransport transport = DownloaderFactory.getTransport();
+
+    private volatile ProgressListener listener;
+    private volatile Downloader fallback;
+
+    /**
+     * @param urlStrings the same file on each of the mirrors, best first, so the first is where
+     *                   it would come from if it were not segmented
+     * @param size       the size of the file in bytes, which the servers must agree with
+     */
+    SegmentedDownloader(File destFile, List<String> urlStrings, long size, String hash, String hashType)
+            throws MalformedURLException {
+        super(urlStrings.get(0), destFile);
+        for (String urlString : urlStrings) {
+            if (HttpDownloader.queryString != null) {
+                urlString += "?" + HttpDownloader.queryString;
+            }
+            sources.add(new Source(new URL(urlString)));
+        }
+        this.size = size;
+        this.hash = hash;
+        this.hashType = hashType;
+    }
+
+    @Override
+    public void download() throws IOException, InterruptedException {
+        Utils.debugLog(TAG, "Downloading " + size + " bytes of " + urlString + " from " + sources.size() + " mirrors");
+        boolean finished = false;
+        try {
+            downloadSegmented();
+            finished = true;
+        } finally {
+            if (!finished) {
+                FileUtils.deleteQuietly(outputFile);
+            }
+        }
+    }
+
+    private void downloadSegmented() throws IOException, InterruptedException {
+        RandomAccessFile file = new RandomAccessFile(outputFile, "rw");
+        try {
+            file.setLength(size);
+        } finally {
+            file.close();
+        }
+
+        synchronized (this) {
+            for (long offset = 0; offset < size; offset += SEGMENT_SIZE) {
+                pending.add(new Segment(offset, Math.min(size, offset + SEGMENT_SIZE)));
+            }
+        }
+
+        int connections = Math.min(MAX_CONNECTIONS, pending.size());
+        List<Future<Void>> workers = new ArrayList<>(connections);
+        startProgressUpdates(size);
+        try {
+            for (int i = 0; i < connections; i++) {
+                workers.add(CONNECTIONS.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws InterruptedException {
+                        downloadSegments();
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> worker : workers) {
+                try {
+                    worker.get();
+                } catch (ExecutionException e) {
+                    // only ever cancelling, which is checked for below
+                    Utils.debugLog(TAG, "Segment download stopped: " + e.getCause());
+                }
+            }
+        } finally {
+            for (Future<Void> worker : workers) {
+                worker.cancel(true);
+            }
+            stopProgressUpdates();
+        }
+
+        throwExceptionIfInterrupted();
+
+        boolean complete;
+        boolean refusesRanges = true;
+        synchronized (this) {
+            complete = pending.isEmpty() && downloaded.get() == size;
+            for (Source source : sources) {
+                refusesRanges &= source.refusesRanges;
+            }
+        }
+        if (!complete) {
+            if (!refusesRanges) {
+                throw lastFailure != null ? lastFailure : new IOException("Could not download all of " + urlString);
+            }
+            downloadInOneGo();
+        }
+
+        if (!Hasher.isFileMatchingHash(outputFile, hash, hashType)) {
+            throw new IOException(urlString + " does not match the expected " + hashType + " hash");
+        }
+    }
+
+    /**
+     * The URL of each segment which failed, other than because the download was cancelled or
+     * the mirror doesn't support ranges, once for each time it failed.  Meant for keeping
+     * {@link MirrorHealth} up to date.
+     */
+    public synchronized List<String> getFailedUrls() {
+        return new ArrayList<>(failedUrls);
+    }
+
+    /**
+     * For when none of the mirrors support ranges after all, which leaves only downloading the
+     * whole file from the first one.
+     */
+    private void downloadInOneGo() throws IOException, InterruptedException {
+        Utils.debugLog(TAG, "No mirror supports ranges, downloading " + urlString + " in one go");
+        FileUtils.deleteQuietly(outputFile);
+        HttpDownloader downloader = new HttpDownloader(Uri.parse(urlString), outputFile);
+        downloader.setTimeout(getTimeout());
+        downloader.setListener(listener);
+        fallback = downloader;
+        try {
+            if (isCancelled()) {
+                throw new InterruptedException();
+            }
+            downloader.download();
+        } finally {
+            downloader.close();
+        }
+    }
+
+    @Override
+    public void setListener(ProgressListener listener) {
+        super.setListener(listener);
+        this.listener = listener;
+    }
+
+    @Override
+    public void cancelDownload() {
+        super.cancelDownload();
+        Downloader downloader = fallback;
+        if (downloader != null) {
+            downloader.cancelDownload();
+        }
+    }
+
+    /**
+     * Keeps downloading segments until there are none left, or no mirrors left to get them from.
+     */
+    private void downloadSegments() throws InterruptedException {
+        while (!isCancelled()) {
+            Source source;
+            Segment segment;
+            synchronized (this) {
+                source = pickSource();
+                segment = source == null ? null : nextSegment();
+                if (segment == null) {
+                    return;
+                }
+                source.connections++;
+                active.add(segment);
+            }
+
+            try {
+                downloadSegment(source, segment);
+            } catch (IOException e) {
+                Utils.debugLog(TAG, "Segment from " + source.url + " failed: " + e.getLocalizedMessage());
+                synchronized (this) {
+                    source.failures++;
+                    lastFailure = e;
+                    if (!source.refusesRanges && !isCancelled()) {
+                        failedUrls.add(source.url.toString());
+                    }
+                    if (segment.offset < segment.end) {
+                        pending.addFirst(segment);
+                    }
+                }
+            } finally {
+                synchronized (this) {
+                    source.connections--;
+                    active.remove(segment);
+                }
+            }
+        }
+    }
+
+    /**
+     * The mirror with the fewest connections open, not counting those which have failed too
+     * often, with the best mirror winning ties.
+     */
+    private Source pickSource() {
+        Source best = null;
+        for (Source source : sources) {
+            if (source.failures < MAX_FAILURES_PER_SOURCE && (best == null || source.connections < best.connections)) {
+                best = source;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * The next segment which nobody is working on, or else the second half of the segment with
+     * the most left to download, if that is worth splitting.
+     */
+    private Segment nextSegment() {
+        Segment segment = pending.poll();
+        if (segment != null) {
+            return segment;
+        }
+
+        Segment largest = null;
+        for (Segment candidate : active) {
+            if (largest == null || candidate.end - candidate.offset > largest.end - largest.offset) {
+                largest = candidate;
+            }
+        }
+        if (largest == null || largest.end - largest.offset < 2 * MIN_SPLIT_SIZE) {
+            return null;
+        }
+        long middle = largest.offset + (largest.end - largest.offset) / 2;
+        Segment secondHalf = new Segment(middle, largest.end);
+        largest.end = middle;
+        return secondHalf;
+    }
+
+    private void downloadSegment(Source source, Segment segment) throws IOException, InterruptedException {
+        long offset;
+        long end;
+        synchronized (this) {
+            offset = segment.offset;
+            end = segment.end;
+        }
+
+        HttpURLConnection connection = transport.open(source.url);
+        connection.setRequestProperty("User-Agent", "F-Droid " + BuildConfig.VERSION_NAME);
+        connection.setConnectTimeout(getTimeout());
+        connection.setReadTimeout(getTimeout());
+        connection.setRequestProperty("Range", "bytes=" + offset + "-" + (end - 1));
+        InputStream input = null;
+        RandomAccessFile file = null;
+        boolean responded = false;
+        try {
+            int statusCode = connection.getResponseCode();
+            responded = true;
+            if (statusCode == HttpURLConnection.HTTP_OK) {
+                // the whole file is on its way, so this mirror ignores ranges
+                synchronized (this) {
+                    source.failures = MAX_FAILURES_PER_SOURCE;
+                    source.refusesRanges = true;
+                }
+                throw new ProtocolException(source.url + " returned " + statusCode + " to a range request");
+            } else if (statusCode != HttpURLConnection.HTTP_PARTIAL) {
+                // an error like any other, which may well be gone on the next try
+                throw new IOException(source.url + " returned " + statusCode);
+            }
+            input = connection.getInputStream();
+            file = new RandomAccessFile(outputFile, "rw");
+            FileChannel output = file.getChannel();
+
+            ByteBuffer buffer = getBuffer(BUFFER_SIZE);
+            while (true) {
+                throwExceptionIfInterrupted();
+                int wanted;
+                synchronized (this) {
+                    // the end moves closer if another connection took over part of this segment
+                    wanted = (int) Math.min(BUFFER_SIZE, segment.end - segment.offset);
+                }
+                if (wanted <= 0) {
+                    return;
+                }
+                int count = input.read(buffer.array(), 0, wanted);
+                if (count == -1) {
+                    throw new EOFException(source.url + " ended before the requested range did");
+                }
+                buffer.clear();
+                buffer.limit(count);
+                while (buffer.hasRemaining()) {
+                    output.write(buffer, offset + buffer.position());
+                }
+                offset += count;
+                synchronized (this) {
+                    segment.offset = offset;
+                }
+                setBytesRead(downloaded.addAndGet(count));
+            }
+        } catch (ClosedByInterruptException e) {
+            // the worker was cancelled while writing
+            throw new InterruptedException();
+        } finally {
+            Utils.closeQuietly(file);
+            Utils.closeQuietly(input);
+            transport.release(connection, responded);
+        }
+    }
+
+    @Override
+    protected InputStream getDownloadersInputStream() throws IOException {
+        throw new IOException("Segmented downloads can only be saved to a file");
+    }
+
+    @Override
+    public boolean hasChanged() {
+        return true;
+    }
+
+    @Override
+    public boolean isCached() {
+        return false;
+    }
+
+    @Override
+    protected long totalDownloadSize() {
+        return size;
+    }
+
+    @Override
+    protected void close() {
+        // each segment releases its own connection
+    }
+}
@@ -12,13 +12,17 @@ import android.widget.TextView;
 
 import org.fdroid.fdroid.R;
 import org.fdroid.fdroid.Utils;
-import org.fdroid.fdroid.data.App;
 
 public abstract class AppListAdapter extends CursorAdapter {
 
     private LayoutInflater mInflater;
     private String upgradeFromTo;
 
+    /**
+     * Looked up once for each new cursor, rather than for each row.
+     */
+    private AppListItem.Columns columns;
+
     @SuppressLint("RestrictedApi")
     @Override
     public boolean isEmpty() {
@@ -46,6 +50,7 @@ public abstract class AppListAdapter extends CursorAdapter {
         TextView status;
         TextView license;
         ImageView icon;
+        final AppListItem item = new AppListItem();
     }
 
     @Override
@@ -72,17 +77,22 @@ public abstract class AppListAdapter extends CursorAdapter {
     }
 
     private void setupView(View view, Cursor cursor, ViewHolder holder) {
-        final App app = new App(cursor);
+        if (columns == null || !columns.isFor(cursor)) {
+            columns = new AppListItem.Columns(cursor);
+        }
+        final AppListItem app = holder.item;
+        app.bind(cursor, columns);
 
-        holder.name.setText(app.name);
-        holder.summary.setText(app.summary);
+        holder.name.setText(app.getName());
+        holder.summary.setText(app.getSummary());
 
-        Utils.setIconFromRepoOrPM(app, holder.icon, holder.icon.getContext());
+        Context context = holder.icon.getContext();
+        Utils.setIconFromRepoOrPM(app.getIconUrl(context), app.getPackageName(), holder.icon, context);
 
         holder.status.setText(getVersionInfo(holder.status.getContext(), app));
-        holder.license.setText(app.license);
+        holder.license.setText(app.getLicense());
 
-        // Disable it all if it isn't compatible...
+        // Disable it all if it isn't compatible, or the user asked for apps like it to be greyed out...
         final View[] views = {
             view,
             holder.status,
@@ -91,14 +101,15 @@ public abstract class AppListAdapter extends CursorAdapter {
             holder.name,
         };
 
+        boolean enabled = app.isCompatible() && !app.isFiltered();
         for (View v : views) {
-            v.setEnabled(app.compatible);
+            v.setEnabled(enabled);
         }
     }
 
-    private String getVersionInfo(Context context, App app) {
+    private String getVersionInfo(Context context, AppListItem app) {
 
-        if (app.suggestedVersionCode <= 0) {
+        if (app.getSuggestedVersionCode() <= 0) {
             return null;
         }
 
@@ -106,14 +117,14 @@ public abstract class AppListAdapter extends CursorAdapter {
             return app.getSuggestedVersionName();
         }
 
-        final String installedVersionString = app.installedVersionName;
+        final String installedVersionString = app.getInstalledVersionName();
 
-        if (app.canAndWantToUpdate(context) && showStatusUpdate()) {
+        if (showStatusUpdate() && app.canAndWantToUpdate()) {
             return String.format(upgradeFromTo,
                     installedVersionString, app.getSuggestedVersionName());
         }
 
-        if (app.installedVersionCode > 0 && showStatusInstalled()) {
+        if (app.getInstalledVersionCode() > 0 && showStatusInstalled()) {
             return installedVersionString + " ✔";
         }
 
@@ -0,0 +1,165 @@
+package org.fdroid.fdroid.views;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import org.fdroid.fdroid.data.App;
+import org.fdroid.fdroid.data.Schema.AppMetadataTable.Cols;
+
+/**
+ * A single row of an app list, read straight from the cursor of an
+ * {@link org.fdroid.fdroid.views.fragments.AppListFragment}. Building a whole {@link App} for
+ * each row means looking up every column by name, and parsing dates and comma separated lists
+ * that the list never shows, all while the user is scrolling. The preferences of each app come
+ * from the same row too, rather than from a query of their own.
+ * <p>
+ * Each {@link AppListAdapter} view keeps one of these and points it at the row being bound.
+ * Only the columns which are actually shown are read, and only while the cursor is still at
+ * that row. The few things which need a full {@link App} (media apps) get one built on demand
+ * via {@link #getApp()}.
+ */
+final class AppListItem {
+
+    /**
+     * The position of each column used by {@link AppListItem} in a particular cursor.
+     */
+    static final class Columns {
+        private final Cursor cursor;
+        private final int packageName;
+        private final int name;
+        private final int summary;
+        private final int license;
+        private final int compatible;
+        private final int filtered;
+        private final int icon;
+        private final int iconUrl;
+        private final int repoId;
+        private final int isApk;
+        private final int suggestedVersionCode;
+        private final int suggestedVersionName;
+        private final int installedVersionCode;
+        private final int installedVersionName;
+        private final int ignoreAllUpdates;
+        private final int ignoreThisUpdate;
+
+        Columns(Cursor cursor) {
+            this.cursor = cursor;
+            packageName = cursor.getColumnIndexOrThrow(Cols.Package.PACKAGE_NAME);
+            name = cursor.getColumnIndexOrThrow(Cols.NAME);
+            summary = cursor.getColumnIndexOrThrow(Cols.SUMMARY);
+            license = cursor.getColumnIndexOrThrow(Cols.LICENSE);
+            compatible = cursor.getColumnIndexOrThrow(Cols.IS_COMPATIBLE);
+            filtered = cursor.getColumnIndexOrThrow(Cols.IS_FILTERED);
+            icon = cursor.getColumnIndexOrThrow(Cols.ICON);
+            iconUrl = cursor.getColumnIndexOrThrow(Cols.ICON_URL);
+            repoId = cursor.getColumnIndexOrThrow(Cols.REPO_ID);
+            isApk = cursor.getColumnIndexOrThrow(Cols.IS_APK);
+            suggestedVersionCode = cursor.getColumnIndexOrThrow(Cols.SUGGESTED_VERSION_CODE);
+            suggestedVersionName = cursor.getColumnIndexOrThrow(Cols.SuggestedApk.VERSION_NAME);
+            installedVersionCode = cursor.getColumnIndexOrThrow(Cols.InstalledApp.VERSION_CODE);
+            installedVersionName = cursor.getColumnIndexOrThrow(Cols.InstalledApp.VERSION_NAME);
+            ignoreAllUpdates = cursor.getColumnIndexOrThrow(Cols.Prefs.IGNORE_ALL_UPDATES);
+            ignoreThisUpdate = cursor.getColumnIndexOrThrow(Cols.Prefs.IGNORE_THIS_UPDATE);
+        }
+
+        boolean isFor(Cursor cursor) {
+            return this.cursor == cursor;
+        }
+    }
+
+    private Cursor cursor;
+    private Columns columns;
+    private App app;
+
+    void bind(Cursor cursor, Columns columns) {
+        this.cursor = cursor;
+        this.columns = columns;
+        this.app = null;
+    }
+
+    String getPackageName() {
+        return cursor.getString(columns.packageName);
+    }
+
+    String getName() {
+        return cursor.getString(columns.name);
+    }
+
+    String getSummary() {
+        return cursor.getString(columns.summary);
+    }
+
+    String getLicense() {
+        return cursor.getString(columns.license);
+    }
+
+    boolean isCompatible() {
+        return cursor.getInt(columns.compatible) == 1;
+    }
+
+    /**
+     * @see Cols#IS_FILTERED
+     */
+    boolean isFiltered() {
+        return cursor.getInt(columns.filtered) == 1;
+    }
+
+    int getSuggestedVersionCode() {
+        return cursor.getInt(columns.suggestedVersionCode);
+    }
+
+    String getSuggestedVersionName() {
+        return cursor.getString(columns.suggestedVersionName);
+    }
+
+    int getInstalledVersionCode() {
+        return cursor.getInt(columns.installedVersionCode);
+    }
+
+    String getInstalledVersionName() {
+        return cursor.getString(columns.installedVersionName);
+    }
+
+    /**
+     * @see App#getIconUrl(Context)
+     */
+    String getIconUrl(Context context) {
+        return App.getIconUrl(context, cursor.getLong(columns.repoId), getPackageName(),
+                cursor.getString(columns.iconUrl), cursor.getString(columns.icon));
+    }
+
+    /**
+     * @see App#isInstalled(Context)
+     */
+    boolean isInstalled(Context context) {
+        return getInstalledVersionCode() > 0
+                || (cursor.getInt(columns.isApk) != 1 && getApp().isMediaInstalled(context));
+    }
+
+    /**
+     * @see App#hasUpdates()
+     */
+    boolean hasUpdates() {
+        int suggestedVersionCode = getSuggestedVersionCode();
+        int installedVersionCode = getInstalledVersionCode();
+        return suggestedVersionCode > 0 && installedVersionCode > 0 && installedVersionCode < suggestedVersionCode;
+    }
+
+    /**
+     * @see App#canAndWantToUpdate(Context)
+     */
+    boolean canAndWantToUpdate() {
+        return hasUpdates() && cursor.getInt(columns.ignoreAllUpdates) == 0
+                && cursor.getInt(columns.ignoreThisUpdate) < getSuggestedVersionCode();
+    }
+
+    /**
+     * Only for the rare cases where more than the list columns are needed.
+     */
+    App getApp() {
+        if (app == null) {
+            app = new App(cursor);
+        }
+        return app;
+    }
+}
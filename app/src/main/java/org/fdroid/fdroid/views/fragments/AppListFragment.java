@@ -52,8 +52,10 @@ public abstract class AppListFragment extends ListFragment implements
             AppMetadataTable.Cols.InstalledApp.VERSION_NAME,
             AppMetadataTable.Cols.SuggestedApk.VERSION_NAME,
             AppMetadataTable.Cols.SUGGESTED_VERSION_CODE,
-            AppMetadataTable.Cols.REQUIREMENTS, // Needed for filtering apps that require root.
-            AppMetadataTable.Cols.ANTI_FEATURES, // Needed for filtering apps that require anti-features.
+            AppMetadataTable.Cols.IS_FILTERED, // Needed for greying out apps that require root or have anti-features.
+            AppMetadataTable.Cols.Prefs.IGNORE_ALL_UPDATES, // Needed to tell whether the user wants to update, without querying the prefs of each app.
+            AppMetadataTable.Cols.Prefs.IGNORE_THIS_UPDATE,
+            AppMetadataTable.Cols.Prefs.IGNORE_VULNERABILITIES,
             AppMetadataTable.Cols.IS_APK, // If we don't have this checking if an app is installed is super expensive.
             AppMetadataTable.Cols.REPO_ID,
     };
@@ -64,6 +66,13 @@ public abstract class AppListFragment extends ListFragment implements
 
     @Nullable private String searchQuery;
 
+    private final SearchSession searchSession = new SearchSession();
+
+    /**
+     * The search query which the current loader was created for, or null if it is not a search.
+     */
+    @Nullable private String loaderSearchQuery;
+
     protected abstract AppListAdapter getAppListAdapter();
 
     protected abstract String getFromTitle();
@@ -76,6 +85,14 @@ public abstract class AppListFragment extends ListFragment implements
 
     protected abstract int getNoSearchResultsMessage();
 
+    /**
+     * Whether {@link #getDataUri()} lists apps sorted by name, in which case they are read a page
+     * at a time by {@link PagedAppListLoader} rather than all at once.
+     */
+    protected boolean isSortedByName() {
+        return false;
+    }
+
     /**
      * Subclasses can choose to do different things based on when a user begins searching.
      * For example, the "Available" tab chooses to hide its category spinner to make it clear
@@ -175,23 +192,42 @@ public abstract class AppListFragment extends ListFragment implements
 
     @Override
     public void onPreferenceChange() {
+        // preferences such as ignored updates decide which apps a search can find
+        searchSession.reset();
         getAppListAdapter().notifyDataSetChanged();
     }
 
     @Override
     public void onLoadFinished(@NonNull Loader<Cursor> loader, Cursor data) {
+        searchSession.onResults(loaderSearchQuery, data);
         appAdapter.swapCursor(data);
     }
 
     @Override
     public void onLoaderReset(@NonNull Loader<Cursor> loader) {
+        searchSession.reset();
         appAdapter.swapCursor(null);
     }
 
+    /**
+     * When the search query has only been added to since the last results came in, the new
+     * search is limited to those results (see {@link SearchAppListLoader}). Restarting the loader
+     * cancels the query of the previous one if it is still running, so fast typing doesn't
+     * queue up searches which are already out of date.
+     */
     @NonNull
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        Uri uri = updateSearchStatus() ? getDataUri(searchQuery) : getDataUri();
+        if (updateSearchStatus()) {
+            loaderSearchQuery = searchQuery;
+            return new SearchAppListLoader(getActivity(), getDataUri(searchQuery), APP_PROJECTION,
+                    searchSession, searchQuery, APP_SORT);
+        }
+        Uri uri = getDataUri();
+        loaderSearchQuery = null;
+        if (isSortedByName()) {
+            return new PagedAppListLoader(getActivity(), uri, APP_PROJECTION);
+        }
         return new CursorLoader(
                 getActivity(), uri, APP_PROJECTION, null, null, APP_SORT);
     }
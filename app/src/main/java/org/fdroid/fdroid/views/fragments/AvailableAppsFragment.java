@@ -176,6 +176,13 @@ public class AvailableAppsFragment extends AppListFragment implements
         return AppProvider.getCategoryUri(currentCategory);
     }
 
+    @Override
+    protected boolean isSortedByName() {
+        return currentCategory == null
+                || !(currentCategory.equals(CategoryProvider.Helper.getCategoryRecentlyUpdated(getActivity()))
+                || currentCategory.equals(CategoryProvider.Helper.getCategoryWhatsNew(getActivity())));
+    }
+
     @Override
     protected Uri getDataUri(String query) {
         return AppProvider.getSearchUri(query);
@@ -0,0 +1,373 @@
+package org.fdroid.fdroid.views.fragments;
+
+import android.content.ContentResolver;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.DataSetObservable;
+import android.database.DataSetObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.Nullable;
+
+import org.fdroid.fdroid.data.AppProvider;
+import org.fdroid.fdroid.data.Schema.AppMetadataTable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A list of apps sorted by name, which is read from {@link AppProvider} one page at a time
+ * (see {@link AppProvider#getPageUri(Uri, int, String, long)}) rather than all at once. Only the
+ * first page is read up front. Each following page is read in the background once the list gets
+ * close to the end of what has been read so far, and only then does {@link #getCount()} grow to
+ * include it (observers registered via {@link #registerDataSetObserver(DataSetObserver)} are told
+ * when that happens).
+ * <p>
+ * Pages more than {@link #KEEP_DISTANCE} pages away from the one being shown are dropped. When
+ * the list scrolls back towards them, they are read again in the background as soon as the page
+ * next to them is shown, starting after the same app as they did the first time, so they are
+ * normally back before they are needed.  Only if the list gets there first does it have to wait.
+ * <p>
+ * Apart from the first page, which is read by whoever creates this, and the queries, which
+ * run on a background thread, everything happens on the main thread.
+ */
+final class PagedAppCursor extends AbstractCursor {
+
+    static final int PAGE_SIZE = 50;
+
+    /**
+     * How close to the last row read so far the list has to get before the next page is read.
+     */
+    private static final int PREFETCH_DISTANCE = PAGE_SIZE / 2;
+
+    /**
+     * How many pages either side of the one being shown are kept.  Those right next to it are
+     * read again in the background if they were dropped.
+     */
+    private static final int KEEP_DISTANCE = 2;
+
+    private static final ExecutorService PREFETCHER = Executors.newSingleThreadExecutor();
+
+    private static final class Page {
+        final int start;
+
+        /**
+         * The name and {@code _id} of the last app on the page before, or null for the first page.
+         * Apps without a name sort as if their name was empty, see {@link #getSortName(Cursor)}.
+         */
+        @Nullable
+        final String afterName;
+        final long afterId;
+
+        @Nullable
+        Cursor rows;
+
+        /**
+         * Reading the page again after it was dropped, see {@link #reloadInBackground(Page)}.
+         */
+        @Nullable
+        FutureTask<Cursor> reload;
+        int size;
+        String lastName;
+        long lastId;
+
+        Page(int start, @Nullable String afterName, long afterId) {
+            this.start = start;
+            this.afterName = afterName;
+            this.afterId = afterId;
+        }
+    }
+
+    private final ContentResolver resolver;
+    private final Uri uri;
+    private final String[] projection;
+    private final String selection;
+    private final String[] selectionArgs;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final DataSetObservable pageObservable = new DataSetObservable();
+
+    private final List<Page> pages = new ArrayList<>();
+    private final String[] columnNames;
+    private final int nameColumn;
+    private final int idColumn;
+
+    private int count;
+    private boolean hasMore;
+    private boolean prefetching;
+    private int currentPage;
+
+    @Nullable
+    private Cursor current;
+
+    PagedAppCursor(ContentResolver resolver, Uri uri, String[] projection, String selection, String[] selectionArgs) {
+        this.resolver = resolver;
+        this.uri = uri;
+        this.projection = projection;
+        this.selection = selection;
+        this.selectionArgs = selectionArgs;
+
+        Page first = new Page(0, null, 0);
+        Cursor rows = query(first);
+        columnNames = rows == null ? projection : rows.getColumnNames();
+        nameColumn = indexOf(columnNames, AppMetadataTable.Cols.NAME);
+        idColumn = indexOf(columnNames, "_id");
+        if (rows != null) {
+            addPage(first, rows);
+        }
+
+        setNotificationUri(resolver, uri);
+    }
+
+    private static int indexOf(String[] columnNames, String columnName) {
+        for (int i = 0; i < columnNames.length; i++) {
+            if (columnName.equals(columnNames[i])) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Paging apps requires the " + columnName + " column");
+    }
+
+    @Nullable
+    private Cursor query(Page page) {
+        Uri pageUri = AppProvider.getPageUri(uri, PAGE_SIZE, page.afterName, page.afterId);
+        Cursor rows = resolver.query(pageUri, projection, selection, selectionArgs, null);
+        if (rows != null) {
+            // Fill the window now, rather than on whichever thread first moves the cursor.
+            rows.getCount();
+        }
+        return rows;
+    }
+
+    private void addPage(Page page, Cursor rows) {
+        page.rows = rows;
+        page.size = rows.getCount();
+        if (rows.moveToLast()) {
+            page.lastName = getSortName(rows);
+            page.lastId = rows.getLong(idColumn);
+        }
+        pages.add(page);
+        count += page.size;
+        hasMore = page.size == PAGE_SIZE;
+        evictFarPages();
+    }
+
+    /**
+     * The name an app is sorted by, which is never null, so that the next page can always
+     * start after it (see {@link AppProvider#getPageUri(Uri, int, String, long)}).
+     */
+    private String getSortName(Cursor rows) {
+        return rows.isNull(nameColumn) ? "" : rows.getString(nameColumn);
+    }
+
+    /**
+     * Closes the pages which are more than {@link #KEEP_DISTANCE} away from {@link #currentPage}.
+     */
+    private void evictFarPages() {
+        for (int i = 0; i < pages.size(); i++) {
+            Page page = pages.get(i);
+            if (page.rows != null && page.rows != current && Math.abs(i - currentPage) > KEEP_DISTANCE) {
+                page.rows.close();
+                page.rows = null;
+            }
+        }
+    }
+
+    /**
+     * Starts reading {@code page} again, if it was dropped and isn't already being read. It is
+     * put back in place on the main thread once it is ready, unless {@link #onMove(int, int)}
+     * needed it before then and took it straight from {@link Page#reload}.
+     */
+    private void reloadInBackground(final Page page) {
+        if (page.rows != null || page.reload != null) {
+            return;
+        }
+        page.reload = new FutureTask<Cursor>(new Callable<Cursor>() {
+            @Override
+            public Cursor call() {
+                return query(page);
+            }
+        }) {
+            @Override
+            protected void done() {
+                final FutureTask<Cursor> reload = this;
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (page.reload != reload) {
+                            return;
+                        }
+                        page.reload = null;
+                        Cursor rows = getReloaded(reload);
+                        if (rows == null) {
+                            return;
+                        }
+                        if (isClosed() || Math.abs(pages.indexOf(page) - currentPage) > KEEP_DISTANCE) {
+                            rows.close();
+                            return;
+                        }
+                        page.rows = rows;
+                    }
+                });
+            }
+        };
+        PREFETCHER.execute(page.reload);
+    }
+
+    @Nullable
+    private static Cursor getReloaded(FutureTask<Cursor> reload) {
+        try {
+            return reload.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private void prefetchNextPage() {
+        final Page last = pages.get(pages.size() - 1);
+        final Page next = new Page(last.start + last.size, last.lastName, last.lastId);
+        prefetching = true;
+        PREFETCHER.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Cursor rows = query(next);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        prefetching = false;
+                        if (rows == null) {
+                            return;
+                        }
+                        if (isClosed()) {
+                            rows.close();
+                            return;
+                        }
+                        addPage(next, rows);
+                        pageObservable.notifyChanged();
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        int pageIndex = newPosition / PAGE_SIZE;
+        Page page = pages.get(pageIndex);
+        if (page.rows == null) {
+            // the list got here before the page was read again, so there is no way around waiting
+            reloadInBackground(page);
+            FutureTask<Cursor> reload = page.reload;
+            page.reload = null;
+            page.rows = getReloaded(reload);
+            if (page.rows == null) {
+                return false;
+            }
+        }
+
+        current = page.rows;
+        if (pageIndex != currentPage) {
+            currentPage = pageIndex;
+            evictFarPages();
+            if (pageIndex > 0) {
+                reloadInBackground(pages.get(pageIndex - 1));
+            }
+            if (pageIndex + 1 < pages.size()) {
+                reloadInBackground(pages.get(pageIndex + 1));
+            }
+        }
+        if (hasMore && !prefetching && newPosition >= count - PREFETCH_DISTANCE) {
+            prefetchNextPage();
+        }
+        return current.moveToPosition(newPosition - page.start);
+    }
+
+    @Override
+    public void registerDataSetObserver(DataSetObserver observer) {
+        super.registerDataSetObserver(observer);
+        pageObservable.registerObserver(observer);
+    }
+
+    @Override
+    public void unregisterDataSetObserver(DataSetObserver observer) {
+        super.unregisterDataSetObserver(observer);
+        pageObservable.unregisterObserver(observer);
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        for (Page page : pages) {
+            if (page.rows != null) {
+                page.rows.close();
+                page.rows = null;
+            }
+        }
+        current = null;
+    }
+
+    @Override
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return columnNames;
+    }
+
+    @Override
+    public String getString(int column) {
+        return current.getString(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return current.getShort(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return current.getInt(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        return current.getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return current.getFloat(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return current.getDouble(column);
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        return current.getBlob(column);
+    }
+
+    @Override
+    public int getType(int column) {
+        return current.getType(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return current.isNull(column);
+    }
+}
@@ -0,0 +1,28 @@
+package org.fdroid.fdroid.views.fragments;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+
+import androidx.loader.content.CursorLoader;
+
+/**
+ * Loads a {@link PagedAppCursor} instead of every app at once. Like {@link CursorLoader}, it
+ * reloads when the apps change.
+ */
+final class PagedAppListLoader extends CursorLoader {
+
+    private final ForceLoadContentObserver observer = new ForceLoadContentObserver();
+
+    PagedAppListLoader(Context context, Uri uri, String[] projection) {
+        super(context, uri, projection, null, null, null);
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        Cursor cursor = new PagedAppCursor(getContext().getContentResolver(),
+                getUri(), getProjection(), getSelection(), getSelectionArgs());
+        cursor.registerContentObserver(observer);
+        return cursor;
+    }
+}
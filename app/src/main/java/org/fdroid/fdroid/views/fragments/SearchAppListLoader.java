@@ -0,0 +1,31 @@
+package org.fdroid.fdroid.views.fragments;
+
+import android.content.Context;
+import android.net.Uri;
+
+import androidx.annotation.Nullable;
+import androidx.loader.content.CursorLoader;
+
+/**
+ * Searches for apps, limited to the results of the previous search when {@link SearchSession}
+ * allows it. Those results are only valid for the apps as they were then, so once the apps
+ * change (e.g. a repo update, an install or an ignored update) the session is forgotten and the
+ * reload searches every app again.
+ */
+final class SearchAppListLoader extends CursorLoader {
+
+    private final SearchSession searchSession;
+
+    SearchAppListLoader(Context context, Uri uri, String[] projection, SearchSession searchSession,
+                        @Nullable String query, String sortOrder) {
+        super(context, uri, projection, searchSession.getRefinedSelection(query), null, sortOrder);
+        this.searchSession = searchSession;
+    }
+
+    @Override
+    public void onContentChanged() {
+        searchSession.reset();
+        setSelection(null);
+        super.onContentChanged();
+    }
+}
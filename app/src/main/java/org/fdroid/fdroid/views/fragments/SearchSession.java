@@ -0,0 +1,86 @@
+package org.fdroid.fdroid.views.fragments;
+
+import android.database.Cursor;
+import android.text.TextUtils;
+
+import androidx.annotation.Nullable;
+
+import org.fdroid.fdroid.data.AppProvider;
+import org.fdroid.fdroid.data.Schema.AppMetadataTable;
+
+/**
+ * Remembers which apps matched the last search run by an {@link AppListFragment}. While the
+ * user keeps typing (e.g. "fire" -> "firef" -> "firefo"), each new query can only match a
+ * subset of the apps which matched the one before, so rather than searching every app
+ * again the next query is limited to those.
+ * <p>
+ * This only holds for the word prefix matching done by
+ * {@link AppProvider#getSearchMatch(String, String)}. As soon as the query is shortened or
+ * changed in any other way, the next search is done from scratch.
+ */
+final class SearchSession {
+
+    /**
+     * Beyond this many results, listing them in the query costs more than it saves.
+     */
+    private static final int MAX_CANDIDATES = 500;
+
+    @Nullable
+    private String query;
+
+    @Nullable
+    private long[] candidateIds;
+
+    /**
+     * @return A selection limiting a search for {@code newQuery} to the apps which matched the
+     * previous search, or null if it has to search every app.
+     */
+    @Nullable
+    String getRefinedSelection(@Nullable String newQuery) {
+        if (query == null || candidateIds == null || newQuery == null || !newQuery.startsWith(query)) {
+            return null;
+        }
+
+        String[] ids = new String[candidateIds.length];
+        for (int i = 0; i < candidateIds.length; i++) {
+            ids[i] = Long.toString(candidateIds[i]);
+        }
+        return AppMetadataTable.NAME + "." + AppMetadataTable.Cols.ROW_ID + " IN (" + TextUtils.join(",", ids) + ")";
+    }
+
+    /**
+     * Keeps the ids of each app in {@code results}, as the candidates for the next search.
+     * The cursor is left at the position it was in before.
+     *
+     * @param searchQuery The query these are the results of, or null if they are not search
+     *                    results at all.
+     */
+    void onResults(@Nullable String searchQuery, @Nullable Cursor results) {
+        reset();
+        if (TextUtils.isEmpty(searchQuery) || results == null || results.getCount() > MAX_CANDIDATES
+                || AppProvider.getSearchMatch(searchQuery, null) == null) {
+            return;
+        }
+
+        int idColumn = results.getColumnIndex("_id");
+        if (idColumn < 0) {
+            return;
+        }
+
+        long[] ids = new long[results.getCount()];
+        int position = results.getPosition();
+        results.moveToPosition(-1);
+        while (results.moveToNext()) {
+            ids[results.getPosition()] = results.getLong(idColumn);
+        }
+        results.moveToPosition(position);
+
+        query = searchQuery;
+        candidateIds = ids;
+    }
+
+    void reset() {
+        query = null;
+        candidateIds = null;
+    }
+}
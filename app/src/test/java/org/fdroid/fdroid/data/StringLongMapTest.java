@@ -0,0 +1,50 @@
+package org.fdroid.fdroid.data;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link StringLongMap} against a plain {@link HashMap}.
+ */
+public class StringLongMapTest {
+
+    @Test
+    public void keepsTheFirstValueOfEachKey() {
+        StringLongMap map = new StringLongMap();
+        assertEquals(-1, map.get("org.fdroid.fdroid", -1));
+        assertTrue(map.putIfAbsent("org.fdroid.fdroid", 1));
+        assertFalse(map.putIfAbsent("org.fdroid.fdroid", 2));
+        assertEquals(1, map.get("org.fdroid.fdroid", -1));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void matchesAHashMapWhileGrowing() {
+        StringLongMap map = new StringLongMap();
+        Map<String, Long> expected = new HashMap<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 50000; i++) {
+            // package names mostly differ only at the end, and some come up more than once
+            String key = "org.example.app" + random.nextInt(40000);
+            long value = random.nextLong();
+            boolean absent = !expected.containsKey(key);
+            if (absent) {
+                expected.put(key, value);
+            }
+            assertEquals(absent, map.putIfAbsent(key, value));
+        }
+
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<String, Long> entry : expected.entrySet()) {
+            assertEquals((long) entry.getValue(), map.get(entry.getKey(), -1));
+        }
+        assertEquals(-1, map.get("org.example.missing", -1));
+    }
+}
@@ -0,0 +1,286 @@
+package org.fdroid.fdroid.data;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Checks {@link SuggestedVersionCalculator#suggestVersions(SuggestedVersionCalculator.Input, int, boolean)}
+ * against {@link #suggestLikeSql(boolean)}, which follows the two statements of
+ * {@link AppProvider#updateSuggestedFromUpstream(String, String, String)} and
+ * {@code AppProvider#updateSuggestedFromLatest(String)} clause by clause.
+ */
+public class SuggestedVersionCalculatorTest {
+
+    private static final long NONE = SuggestedVersionCalculator.NONE;
+
+    private static final class TestApp {
+        final long packageId;
+        final Long upstreamVersionCode;
+        final boolean compatible;
+        final Long suggestedVersionCode;
+
+        TestApp(long packageId, Long upstreamVersionCode, boolean compatible, Long suggestedVersionCode) {
+            this.packageId = packageId;
+            this.upstreamVersionCode = upstreamVersionCode;
+            this.compatible = compatible;
+            this.suggestedVersionCode = suggestedVersionCode;
+        }
+    }
+
+    private static final class TestApk {
+        final long packageId;
+        final int versionCode;
+        final String signature;
+        final boolean compatible;
+
+        TestApk(long packageId, int versionCode, String signature, boolean compatible) {
+            this.packageId = packageId;
+            this.versionCode = versionCode;
+            this.signature = signature;
+            this.compatible = compatible;
+        }
+    }
+
+    private final List<TestApp> apps = new ArrayList<>();
+    private final List<TestApk> apks = new ArrayList<>();
+    private final Map<Long, String> installed = new HashMap<>();
+
+    @Test
+    public void upstreamVersionCodeCapsTheSuggestedVersion() throws InterruptedException {
+        apps.add(new TestApp(1, 20L, true, null));
+        apks.add(new TestApk(1, 10, "a", true));
+        apks.add(new TestApk(1, 20, "a", true));
+        apks.add(new TestApk(1, 30, "a", true));
+        assertSuggested(false, 20);
+        assertSuggested(true, 30);
+    }
+
+    @Test
+    public void fallsBackToTheHighestApkWithoutAnyBelowUpstream() throws InterruptedException {
+        apps.add(new TestApp(1, 5L, true, null));
+        apks.add(new TestApk(1, 10, "a", true));
+        apks.add(new TestApk(1, 20, "a", true));
+        assertSuggested(false, 20);
+    }
+
+    @Test
+    public void negativeUpstreamKeepsAnExistingSuggestedVersion() throws InterruptedException {
+        apps.add(new TestApp(1, -1L, true, 10L));
+        apps.add(new TestApp(2, -1L, true, null));
+        apks.add(new TestApk(1, 10, "a", true));
+        apks.add(new TestApk(1, 20, "a", true));
+        apks.add(new TestApk(2, 10, "a", true));
+        apks.add(new TestApk(2, 20, "a", true));
+        assertSuggested(false, 10, 20);
+    }
+
+    @Test
+    public void installedSignatureMustMatch() throws InterruptedException {
+        apps.add(new TestApp(1, null, true, null));
+        apps.add(new TestApp(2, null, true, null));
+        apps.add(new TestApp(3, null, true, null));
+        apks.add(new TestApk(1, 10, "a", true));
+        apks.add(new TestApk(1, 20, "b", true));
+        apks.add(new TestApk(2, 10, "a", true));
+        apks.add(new TestApk(2, 20, null, true));
+        apks.add(new TestApk(3, 10, "a", true));
+        apks.add(new TestApk(3, 20, null, true));
+        installed.put(1L, "a");
+        installed.put(2L, "a");
+        // not installed, so the COALESCE lets an apk without a signature through
+        assertSuggested(false, 10, 10, 20);
+    }
+
+    @Test
+    public void incompatibleApksAreOnlySuggestedForIncompatibleApps() throws InterruptedException {
+        apps.add(new TestApp(1, null, true, null));
+        apps.add(new TestApp(2, null, false, null));
+        apps.add(new TestApp(3, 15L, true, null));
+        apks.add(new TestApk(1, 10, "a", true));
+        apks.add(new TestApk(1, 20, "a", false));
+        apks.add(new TestApk(2, 10, "a", true));
+        apks.add(new TestApk(2, 20, "a", false));
+        apks.add(new TestApk(3, 10, "a", false));
+        apks.add(new TestApk(3, 20, "a", false));
+        assertSuggested(false, 10, 20, NONE);
+    }
+
+    @Test
+    public void apksFromEveryRepoOfAPackageCount() throws InterruptedException {
+        // the same package in two repos, with the apks split between them
+        apps.add(new TestApp(1, 25L, true, null));
+        apps.add(new TestApp(1, null, true, null));
+        apks.add(new TestApk(1, 10, "a", true));
+        apks.add(new TestApk(1, 20, "a", true));
+        apks.add(new TestApk(1, 30, "a", true));
+        assertSuggested(false, 20, 30);
+    }
+
+    @Test
+    public void matchesTheSqlOnRandomData() throws InterruptedException {
+        Random random = new Random(12345);
+        String[] signatures = {"a", "b", "c", null};
+        for (long packageId = 1; packageId <= 3000; packageId++) {
+            int repos = 1 + random.nextInt(2);
+            for (int i = 0; i < repos; i++) {
+                int upstreamKind = random.nextInt(4);
+                Long upstream = upstreamKind == 0 ? null
+                        : upstreamKind == 1 ? Long.valueOf(-1) : Long.valueOf(random.nextInt(12) * 10);
+                Long suggested = random.nextBoolean() ? null : Long.valueOf(random.nextInt(12) * 10);
+                apps.add(new TestApp(packageId, upstream, random.nextInt(5) > 0, suggested));
+            }
+            int apkCount = random.nextInt(6);
+            for (int i = 0; i < apkCount; i++) {
+                apks.add(new TestApk(packageId, 10 * (1 + random.nextInt(10)),
+                        signatures[random.nextInt(signatures.length)], random.nextInt(4) > 0));
+            }
+            if (random.nextInt(3) == 0) {
+                installed.put(packageId, signatures[random.nextInt(signatures.length - 1)]);
+            }
+        }
+
+        for (boolean unstableUpdates : new boolean[]{false, true}) {
+            long[] expected = suggestLikeSql(unstableUpdates);
+            SuggestedVersionCalculator.Input input = toInput();
+            assertArrayEquals(expected, SuggestedVersionCalculator.suggestVersions(input, 1, unstableUpdates));
+            assertArrayEquals(expected, SuggestedVersionCalculator.suggestVersions(input, 4, unstableUpdates));
+        }
+    }
+
+    private void assertSuggested(boolean unstableUpdates, long... expected) throws InterruptedException {
+        assertArrayEquals("SQL rules", expected, suggestLikeSql(unstableUpdates));
+        assertArrayEquals("in memory", expected,
+                SuggestedVersionCalculator.suggestVersions(toInput(), 1, unstableUpdates));
+    }
+
+    /**
+     * The two {@code UPDATE} statements, run one after the other over {@link #apps}, sorted
+     * by package in the same way as {@link #toInput()}.
+     */
+    private long[] suggestLikeSql(boolean unstableUpdates) {
+        List<TestApp> sortedApps = sortedApps();
+        Long[] suggested = new Long[sortedApps.size()];
+        for (int i = 0; i < sortedApps.size(); i++) {
+            suggested[i] = sortedApps.get(i).suggestedVersionCode;
+        }
+
+        // updateSuggestedFromUpstream(): WHERE upstreamVersionCode > 0
+        for (int i = 0; i < sortedApps.size(); i++) {
+            TestApp app = sortedApps.get(i);
+            if (app.upstreamVersionCode != null && app.upstreamVersionCode > 0) {
+                suggested[i] = maxVersionCode(app, unstableUpdates ? null : app.upstreamVersionCode);
+            }
+        }
+
+        // updateSuggestedFromLatest(): WHERE COALESCE(upstreamVersionCode, 0) = 0 OR suggestedVersionCode IS NULL
+        for (int i = 0; i < sortedApps.size(); i++) {
+            TestApp app = sortedApps.get(i);
+            long upstream = app.upstreamVersionCode == null ? 0 : app.upstreamVersionCode;
+            if (upstream == 0 || suggested[i] == null) {
+                suggested[i] = maxVersionCode(app, null);
+            }
+        }
+
+        long[] result = new long[suggested.length];
+        for (int i = 0; i < suggested.length; i++) {
+            result[i] = suggested[i] == null ? NONE : suggested[i];
+        }
+        return result;
+    }
+
+    /**
+     * {@code SELECT MAX(apk.versionCode)} with the joins and conditions of both statements,
+     * or {@code null} when no apk matches.
+     */
+    private Long maxVersionCode(TestApp app, Long maxVersionCode) {
+        Long max = null;
+        String installedSignature = installed.get(app.packageId);
+        for (TestApk apk : apks) {
+            String signature = installedSignature != null ? installedSignature : apk.signature;
+            boolean signatureMatches = apk.signature == null ? signature == null : apk.signature.equals(signature);
+            if (apk.packageId == app.packageId
+                    && signatureMatches
+                    && (maxVersionCode == null || apk.versionCode <= maxVersionCode)
+                    && (!app.compatible || apk.compatible)
+                    && (max == null || apk.versionCode > max)) {
+                max = (long) apk.versionCode;
+            }
+        }
+        return max;
+    }
+
+    private List<TestApp> sortedApps() {
+        List<TestApp> sorted = new ArrayList<>(apps);
+        Collections.sort(sorted, new Comparator<TestApp>() {
+            @Override
+            public int compare(TestApp a, TestApp b) {
+                return Long.compare(a.packageId, b.packageId);
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * The same data as {@link SuggestedVersionCalculator} reads it from the database.
+     */
+    private SuggestedVersionCalculator.Input toInput() {
+        Map<String, Integer> signatureIds = new HashMap<>();
+        SuggestedVersionCalculator.Input input = new SuggestedVersionCalculator.Input();
+
+        List<TestApk> sortedApks = new ArrayList<>(apks);
+        Collections.sort(sortedApks, new Comparator<TestApk>() {
+            @Override
+            public int compare(TestApk a, TestApk b) {
+                int byPackage = Long.compare(a.packageId, b.packageId);
+                return byPackage != 0 ? byPackage : Integer.compare(b.versionCode, a.versionCode);
+            }
+        });
+        input.apkPackageIds = new long[sortedApks.size()];
+        input.apkVersionCodes = new int[sortedApks.size()];
+        input.apkSignatures = new int[sortedApks.size()];
+        input.apkCompatible = new boolean[sortedApks.size()];
+        for (int i = 0; i < sortedApks.size(); i++) {
+            TestApk apk = sortedApks.get(i);
+            input.apkPackageIds[i] = apk.packageId;
+            input.apkVersionCodes[i] = apk.versionCode;
+            input.apkSignatures[i] = signatureId(signatureIds, apk.signature);
+            input.apkCompatible[i] = apk.compatible;
+        }
+
+        List<TestApp> sortedApps = sortedApps();
+        input.appPackageIds = new long[sortedApps.size()];
+        input.appUpstreamVersionCodes = new long[sortedApps.size()];
+        input.appCompatible = new boolean[sortedApps.size()];
+        input.appSuggested = new long[sortedApps.size()];
+        for (int i = 0; i < sortedApps.size(); i++) {
+            TestApp app = sortedApps.get(i);
+            input.appPackageIds[i] = app.packageId;
+            input.appUpstreamVersionCodes[i] = app.upstreamVersionCode == null ? 0 : app.upstreamVersionCode;
+            input.appCompatible[i] = app.compatible;
+            input.appSuggested[i] = app.suggestedVersionCode == null ? NONE : app.suggestedVersionCode;
+        }
+
+        for (Map.Entry<Long, String> entry : installed.entrySet()) {
+            input.installedSignatures.put(entry.getKey(), signatureId(signatureIds, entry.getValue()));
+        }
+        return input;
+    }
+
+    private static int signatureId(Map<String, Integer> signatureIds, String signature) {
+        Integer id = signatureIds.get(signature);
+        if (id == null) {
+            id = signatureIds.size();
+            signatureIds.put(signature, id);
+        }
+        return id;
+    }
+}
@@ -0,0 +1,318 @@
+package org.fdroid.fdroid.net;
+
+import org.fdroid.fdroid.Hasher;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs {@link SegmentedDownloader} against small HTTP servers on localhost which serve
+ * {@code Range} requests, some of which are made to misbehave.
+ */
+public class SegmentedDownloaderTest {
+
+    private static final String HASH_TYPE = "SHA-256";
+
+    /**
+     * Big enough to be cut into a few segments.
+     */
+    private static final int SIZE = 10 * 1024 * 1024 + 12345;
+
+    private final byte[] data = new byte[SIZE];
+    private String hash;
+    private File destFile;
+    private HttpTransport originalTransport;
+
+    @Before
+    public void setUp() throws Exception {
+        new Random(42).nextBytes(data);
+        hash = new Hasher(HASH_TYPE, data).getHash();
+        destFile = File.createTempFile("segmented-", ".apk");
+
+        // NetCipher isn't needed to talk to localhost
+        originalTransport = DownloaderFactory.getTransport();
+        DownloaderFactory.setTransport(new HttpTransport() {
+            @Override
+            public HttpURLConnection open(URL url) throws IOException {
+                return (HttpURLConnection) url.openConnection();
+            }
+
+            @Override
+            public void release(HttpURLConnection connection, boolean responded) {
+                connection.disconnect();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        DownloaderFactory.setTransport(originalTransport);
+        destFile.delete();
+    }
+
+    @Test
+    public void downloadsFromSeveralMirrors() throws Exception {
+        RangeServer first = new RangeServer(data, -1);
+        RangeServer second = new RangeServer(data, -1);
+        try {
+            SegmentedDownloader downloader = createDownloader(hash, first.getUrl(), second.getUrl());
+            downloader.download();
+
+            assertArrayEquals(data, Files.readAllBytes(destFile.toPath()));
+            assertTrue(first.requests.get() > 0);
+            assertTrue(second.requests.get() > 0);
+            assertTrue(downloader.getFailedUrls().isEmpty());
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    @Test
+    public void movesSegmentsOffAMirrorWhichKeepsBreaking() throws Exception {
+        RangeServer good = new RangeServer(data, -1);
+        RangeServer broken = new RangeServer(data, 64 * 1024);
+        try {
+            SegmentedDownloader downloader = createDownloader(hash, broken.getUrl(), good.getUrl());
+            downloader.download();
+
+            assertArrayEquals(data, Files.readAllBytes(destFile.toPath()));
+            List<String> failedUrls = downloader.getFailedUrls();
+            assertFalse(failedUrls.isEmpty());
+            for (String failedUrl : failedUrls) {
+                assertTrue(failedUrl, failedUrl.startsWith(broken.getUrl()));
+            }
+        } finally {
+            good.close();
+            broken.close();
+        }
+    }
+
+    @Test
+    public void countsServerErrorsAsFailuresOfThatMirror() throws Exception {
+        RangeServer good = new RangeServer(data, -1);
+        RangeServer unavailable = new RangeServer(data, -1, 503);
+        try {
+            SegmentedDownloader downloader = createDownloader(hash, unavailable.getUrl(), good.getUrl());
+            downloader.download();
+
+            assertArrayEquals(data, Files.readAllBytes(destFile.toPath()));
+            List<String> failedUrls = downloader.getFailedUrls();
+            assertFalse(failedUrls.isEmpty());
+            for (String failedUrl : failedUrls) {
+                assertTrue(failedUrl, failedUrl.startsWith(unavailable.getUrl()));
+            }
+        } finally {
+            good.close();
+            unavailable.close();
+        }
+    }
+
+    @Test
+    public void doesNotFallBackToOneGoWhenEveryMirrorReturnsErrors() throws Exception {
+        RangeServer first = new RangeServer(data, -1, 503);
+        RangeServer second = new RangeServer(data, -1, 503);
+        try {
+            SegmentedDownloader downloader = createDownloader(hash, first.getUrl(), second.getUrl());
+            try {
+                downloader.download();
+                fail("Expected the download to fail");
+            } catch (IOException expected) {
+                assertTrue(expected.getMessage(), expected.getMessage().contains("503"));
+            }
+            assertFalse(first.sawRequestWithoutRange);
+            assertFalse(destFile.exists());
+            assertEquals(2, new HashSet<>(downloader.getFailedUrls()).size());
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    @Test
+    public void deletesTheFileWhenAllMirrorsFail() throws Exception {
+        RangeServer first = new RangeServer(data, 64 * 1024);
+        RangeServer second = new RangeServer(data, 64 * 1024);
+        try {
+            SegmentedDownloader downloader = createDownloader(hash, first.getUrl(), second.getUrl());
+            try {
+                downloader.download();
+                fail("Expected the download to fail");
+            } catch (IOException expected) {
+                // expected
+            }
+            assertFalse(destFile.exists());
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    @Test
+    public void deletesTheFileWhenTheHashDoesNotMatch() throws Exception {
+        RangeServer server = new RangeServer(data, -1);
+        try {
+            char[] wrongHash = new char[hash.length()];
+            Arrays.fill(wrongHash, '0');
+            SegmentedDownloader downloader = createDownloader(new String(wrongHash), server.getUrl());
+            try {
+                downloader.download();
+                fail("Expected the hash check to fail");
+            } catch (IOException expected) {
+                // expected
+            }
+            assertFalse(destFile.exists());
+        } finally {
+            server.close();
+        }
+    }
+
+    private SegmentedDownloader createDownloader(String expectedHash, String... urlStrings) throws IOException {
+        return new SegmentedDownloader(destFile, Arrays.asList(urlStrings), SIZE, expectedHash, HASH_TYPE);
+    }
+
+    /**
+     * Serves {@code data} at any path, answering {@code Range} requests with
+     * {@code 206 Partial Content} and one connection per request, unless it was told to
+     * answer everything with an error instead.
+     */
+    private static final class RangeServer implements Runnable {
+        private static final Pattern RANGE = Pattern.compile("Range: bytes=(\\d+)-(\\d+)", Pattern.CASE_INSENSITIVE);
+        private static final Charset ASCII = Charset.forName("US-ASCII");
+
+        final AtomicInteger requests = new AtomicInteger();
+        volatile boolean sawRequestWithoutRange;
+
+        private final byte[] data;
+        private final int breakAfterBytes;
+        private final int errorStatus;
+        private final ServerSocket serverSocket;
+
+        /**
+         * @param breakAfterBytes how much of each response to send before dropping the
+         *                        connection, or -1 to send all of it
+         */
+        RangeServer(byte[] data, int breakAfterBytes) throws IOException {
+            this(data, breakAfterBytes, -1);
+        }
+
+        /**
+         * @param errorStatus the status to answer every request with, without a body, or -1
+         *                    to serve {@code data}
+         */
+        RangeServer(byte[] data, int breakAfterBytes, int errorStatus) throws IOException {
+            this.data = data;
+            this.breakAfterBytes = breakAfterBytes;
+            this.errorStatus = errorStatus;
+            serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            Thread thread = new Thread(this, "RangeServer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        String getUrl() {
+            return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/repo/big.apk";
+        }
+
+        @Override
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                try {
+                    final Socket socket = serverSocket.accept();
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    }, "RangeServer-connection");
+                    thread.setDaemon(true);
+                    thread.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private void serve(Socket socket) {
+            try {
+                InputStream input = socket.getInputStream();
+                BufferedReader reader = new BufferedReader(new InputStreamReader(input, ASCII));
+                long start = 0;
+                long end = data.length - 1;
+                boolean ranged = false;
+                String line;
+                while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                    Matcher matcher = RANGE.matcher(line);
+                    if (matcher.matches()) {
+                        start = Long.parseLong(matcher.group(1));
+                        end = Math.min(data.length - 1, Long.parseLong(matcher.group(2)));
+                        ranged = true;
+                    }
+                }
+                requests.incrementAndGet();
+                if (!ranged) {
+                    sawRequestWithoutRange = true;
+                }
+
+                OutputStream output = socket.getOutputStream();
+                if (errorStatus > 0) {
+                    output.write(("HTTP/1.1 " + errorStatus + " Error\r\n"
+                            + "Content-Length: 0\r\n"
+                            + "Connection: close\r\n\r\n").getBytes(ASCII));
+                    output.flush();
+                    return;
+                }
+
+                int length = (int) (end - start + 1);
+                String headers = (ranged ? "HTTP/1.1 206 Partial Content\r\n"
+                        + "Content-Range: bytes " + start + "-" + end + "/" + data.length + "\r\n"
+                        : "HTTP/1.1 200 OK\r\n")
+                        + "Content-Length: " + length + "\r\n"
+                        + "Connection: close\r\n\r\n";
+                output.write(headers.getBytes(ASCII));
+                int sending = breakAfterBytes < 0 ? length : Math.min(length, breakAfterBytes);
+                output.write(data, (int) start, sending);
+                output.flush();
+            } catch (IOException e) {
+                // the client went away, nothing to do about it
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // ignored
+                }
+            }
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+}